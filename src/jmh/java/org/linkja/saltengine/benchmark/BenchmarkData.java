@@ -0,0 +1,57 @@
+package org.linkja.saltengine.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Helper methods to create and clean up the data used by the benchmarks
+ */
+public class BenchmarkData {
+  /**
+   * Write a valid site file with the requested number of sites
+   * @param siteFile The file to write
+   * @param siteCount The number of sites (rows) to include
+   * @throws IOException
+   */
+  public static void writeSiteFile(File siteFile, int siteCount) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(siteFile.toPath())) {
+      for (int index = 1; index <= siteCount; index++) {
+        writer.write(String.format("%d,Benchmark Site %d", index, index));
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * Remove a directory created for a benchmark, along with everything in it
+   * @param directory The directory to remove
+   * @throws IOException
+   */
+  public static void deleteDirectory(Path directory) throws IOException {
+    if (directory == null || !Files.exists(directory)) {
+      return;
+    }
+
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  /**
+   * Remove everything in a directory except for the specified file, so each benchmark invocation writes to a
+   * directory in the same state
+   * @param directory The directory to clean
+   * @param keep The file to keep
+   * @throws IOException
+   */
+  public static void cleanDirectory(Path directory, Path keep) throws IOException {
+    try (Stream<Path> paths = Files.list(directory)) {
+      paths.filter(path -> !path.equals(keep)).map(Path::toFile).forEach(File::delete);
+    }
+  }
+}
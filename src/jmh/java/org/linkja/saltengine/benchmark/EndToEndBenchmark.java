@@ -0,0 +1,89 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.SaltFile;
+import org.linkja.saltengine.SaltEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures complete runs of generate() and addSites(), including writing the salt files to a temporary directory.
+ * Every invocation starts from a directory that only contains the site file (and, for addSites, the salt file of
+ * the existing project).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+  @Param({"10", "1000", "10000"})
+  public int siteCount;
+
+  @Param({"1", "4"})
+  public int threadCount;
+
+  private Path generateDirectory;
+  private Path addSitesDirectory;
+  private File generateSiteFile;
+  private File addSitesSiteFile;
+  private File existingSaltFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    generateDirectory = Files.createTempDirectory("saltengine-benchmark");
+    generateSiteFile = generateDirectory.resolve("sites.csv").toFile();
+    BenchmarkData.writeSiteFile(generateSiteFile, siteCount);
+
+    // For addSites we need the salt file for an existing project, which we create from a single site in a separate
+    // directory and then keep outside of the directory the benchmark writes to.
+    Path projectDirectory = Files.createTempDirectory("saltengine-benchmark");
+    File projectSiteFile = projectDirectory.resolve("project.csv").toFile();
+    Files.write(projectSiteFile.toPath(), "0,Existing Site\n".getBytes());
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Benchmark Project");
+    engine.setSitesFile(projectSiteFile);
+    engine.generate();
+    projectSiteFile.delete();
+    existingSaltFile = projectDirectory.resolve(new SaltFile().getSaltFileName("Benchmark Project", "0")).toFile();
+
+    addSitesDirectory = Files.createTempDirectory("saltengine-benchmark");
+    addSitesSiteFile = addSitesDirectory.resolve("sites.csv").toFile();
+    BenchmarkData.writeSiteFile(addSitesSiteFile, siteCount);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    BenchmarkData.deleteDirectory(generateDirectory);
+    BenchmarkData.deleteDirectory(addSitesDirectory);
+    BenchmarkData.deleteDirectory(existingSaltFile.getParentFile().toPath());
+  }
+
+  @Setup(Level.Invocation)
+  public void cleanOutput() throws Exception {
+    BenchmarkData.cleanDirectory(generateDirectory, generateSiteFile.toPath());
+    BenchmarkData.cleanDirectory(addSitesDirectory, addSitesSiteFile.toPath());
+  }
+
+  @Benchmark
+  public void generate() throws Exception {
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Benchmark Project");
+    engine.setSitesFile(generateSiteFile);
+    engine.setThreadCount(threadCount);
+    engine.generate();
+  }
+
+  @Benchmark
+  public void addSites() throws Exception {
+    SaltEngine engine = new SaltEngine();
+    engine.setSitesFile(addSitesSiteFile);
+    engine.setSaltFile(existingSaltFile);
+    engine.setThreadCount(threadCount);
+    engine.addSites();
+  }
+}
@@ -0,0 +1,48 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.SaltFile;
+import org.linkja.core.Site;
+import org.linkja.saltengine.SaltEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of encrypting and writing a single salt file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SaltFileBenchmark {
+  private Path directory;
+  private File outputFile;
+  private SaltFile saltFile;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("saltengine-benchmark");
+    SaltEngine engine = new SaltEngine();
+    saltFile = new SaltFile();
+    saltFile.setSite(new Site("1", "Benchmark Site 1"));
+    saltFile.setPrivateSalt(engine.generateToken());
+    saltFile.setProjectSalt(engine.generateToken());
+    saltFile.setProjectName("Benchmark Project");
+    outputFile = directory.resolve(saltFile.getSaltFileName(saltFile.getProjectName(), "1")).toFile();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    BenchmarkData.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public void save() throws Exception {
+    saltFile.save(outputFile);
+  }
+}
@@ -0,0 +1,72 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.Site;
+import org.linkja.saltengine.SaltEngine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures how long it takes to read and validate site files of different sizes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SiteFileBenchmark {
+  @Param({"10", "1000", "100000", "1000000"})
+  public int siteCount;
+
+  private Path directory;
+  private File siteFile;
+  private File compressedSiteFile;
+  private List<Site> sites;
+  private SaltEngine engine;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("saltengine-benchmark");
+    siteFile = directory.resolve("sites.csv").toFile();
+    BenchmarkData.writeSiteFile(siteFile, siteCount);
+    compressedSiteFile = directory.resolve("sites.csv.gz").toFile();
+    try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressedSiteFile.toPath()))) {
+      Files.copy(siteFile.toPath(), output);
+    }
+    engine = new SaltEngine();
+    sites = engine.loadSites(siteFile);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    BenchmarkData.deleteDirectory(directory);
+  }
+
+  @Benchmark
+  public List<Site> loadSites() throws Exception {
+    return engine.loadSites(siteFile);
+  }
+
+  @Benchmark
+  public List<Site> loadCompressedSites() throws Exception {
+    return engine.loadSites(compressedSiteFile);
+  }
+
+  @Benchmark
+  public void validateSites() throws Exception {
+    engine.validateSites(sites);
+  }
+
+  @Benchmark
+  public long streamSites(Blackhole blackhole) throws Exception {
+    return engine.streamSites(siteFile, (site, rowNumber) -> blackhole.consume(site));
+  }
+}
@@ -0,0 +1,52 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.saltengine.SaltEngine;
+import org.linkja.saltengine.TokenBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the memory allocated for each private token when tokens are created as Strings (generateTokens) against
+ * writing them into pooled, wipeable buffers (generateTokenBuffer).  The benchmarks are run with the GC profiler, so
+ * the allocation per token is reported as gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenAllocationBenchmark {
+  @Param({"32", "256"})
+  public int tokenLength;
+
+  private SaltEngine engine;
+
+  @Setup
+  public void setUp() {
+    engine = new SaltEngine();
+  }
+
+  @Benchmark
+  public void stringToken(Blackhole blackhole) throws LinkjaException {
+    blackhole.consume(engine.generateTokens(1, tokenLength).get(0));
+  }
+
+  @Benchmark
+  public void bufferToken(Blackhole blackhole) throws LinkjaException {
+    try (TokenBuffer token = engine.generateTokenBuffer(tokenLength)) {
+      blackhole.consume(token.charAt(0));
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void bufferTokenThreads(Blackhole blackhole) throws LinkjaException {
+    try (TokenBuffer token = engine.generateTokenBuffer(tokenLength)) {
+      blackhole.consume(token.charAt(0));
+    }
+  }
+}
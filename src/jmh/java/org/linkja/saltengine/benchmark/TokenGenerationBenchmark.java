@@ -0,0 +1,49 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.saltengine.SaltEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-token cost of making one native call per token (generateToken) against slicing tokens out of the
+ * pooled entropy (generateTokens).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenGenerationBenchmark {
+  // The number of tokens requested in each bulk call, used to report a per-token cost
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"32", "256", "1024"})
+  public int tokenLength;
+
+  private SaltEngine engine;
+
+  @Setup
+  public void setUp() {
+    engine = new SaltEngine();
+  }
+
+  @Benchmark
+  public String singleCall() throws LinkjaException {
+    return engine.generateToken(tokenLength);
+  }
+
+  @Benchmark
+  public String pooled() throws LinkjaException {
+    return engine.generateTokens(1, tokenLength).get(0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public List<String> pooledBatch() throws LinkjaException {
+    return engine.generateTokens(BATCH_SIZE, tokenLength);
+  }
+}
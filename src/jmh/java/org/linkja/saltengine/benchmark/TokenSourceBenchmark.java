@@ -0,0 +1,64 @@
+package org.linkja.saltengine.benchmark;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.saltengine.SaltEngine;
+import org.linkja.saltengine.TokenBuffer;
+import org.linkja.saltengine.TokenSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the native and pure Java token sources when several threads create tokens at the same time, both calling
+ * the source directly and going through the engine's shared token pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenSourceBenchmark {
+  @Param({TokenSource.NATIVE, TokenSource.JAVA})
+  public String tokenSource;
+
+  private SaltEngine engine;
+  private TokenSource source;
+
+  @Setup
+  public void setUp() throws LinkjaException {
+    engine = new SaltEngine();
+    engine.setTokenSource(tokenSource);
+    source = engine.getTokenSource();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public String direct_1Thread() {
+    return source.generateToken(SaltEngine.DEFAULT_TOKEN_LENGTH);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String direct_8Threads() {
+    return source.generateToken(SaltEngine.DEFAULT_TOKEN_LENGTH);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public char pooled_1Thread() throws LinkjaException {
+    return pooled();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public char pooled_8Threads() throws LinkjaException {
+    return pooled();
+  }
+
+  private char pooled() throws LinkjaException {
+    try (TokenBuffer buffer = engine.generateTokenBuffer(SaltEngine.DEFAULT_TOKEN_LENGTH)) {
+      return buffer.charAt(0);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package org.linkja.saltengine.loadtest;
+
+import org.apache.commons.cli.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.linkja.core.SaltFile;
+import org.linkja.core.Site;
+import org.linkja.saltengine.RunMetrics;
+import org.linkja.saltengine.SaltEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Runs SaltEngine against synthetic site files of a chosen size, and reports how it copes.  Run with:
+ *
+ *   mvn -P loadtest -DskipTests verify -Dloadtest.rows=1000000
+ *
+ * Each scenario reports its elapsed time, rows (and salt files) per second, and peak heap use.  The scenarios are:
+ *
+ *   load     - loadSites on a site file with the requested duplicate rate
+ *   validate - validateSites on the sites that were loaded (rejected, if there are duplicates)
+ *   stream   - streamSites on the same site file
+ *   generate - generate() for a new project, from a site file without duplicates
+ *   addSites - addSites() for a separate set of new sites, using a salt file created by generate
+ *
+ * generate and addSites write a salt file for every site, and need the native linkja-crypto library.  With millions
+ * of rows, use --generateRows to limit them to a size the disk can hold.
+ */
+public class LoadTest {
+  public static final String PROJECT_NAME = "Load Test";
+  public static final List<String> ALL_SCENARIOS = Arrays.asList("load", "validate", "stream", "generate", "addSites");
+
+  private long rows;
+  private long generateRows;
+  private long addRows;
+  private double duplicateRate;
+  private int threadCount;
+  private long seed;
+  private Path directory;
+  // Only a directory that the load test created itself is removed at the end
+  private boolean temporaryDirectory;
+  private List<String> scenarios;
+
+  private final JSONArray results = new JSONArray();
+  private List<Site> loadedSites;
+
+  public static void main(String[] args) {
+    Options options = setUpCommandLine();
+    LoadTest loadTest = new LoadTest();
+    CommandLine cmd;
+    try {
+      cmd = new DefaultParser().parse(options, args);
+      loadTest.configure(cmd);
+    }
+    catch (Exception exc) {
+      new HelpFormatter().printHelp("LoadTest", options);
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    try {
+      loadTest.run();
+      JSONObject report = loadTest.getReport();
+      if (cmd.hasOption("resultFile")) {
+        Files.write(Paths.get(cmd.getOptionValue("resultFile")), report.toString(2).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    catch (Exception exc) {
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+    finally {
+      if (!cmd.hasOption("keepFiles")) {
+        loadTest.deleteTemporaryDirectory();
+      }
+    }
+  }
+
+  private void configure(CommandLine cmd) throws IOException {
+    rows = Long.parseLong(cmd.getOptionValue("rows", "10000"));
+    generateRows = Long.parseLong(cmd.getOptionValue("generateRows", Long.toString(rows)));
+    addRows = Long.parseLong(cmd.getOptionValue("addRows", "1000"));
+    duplicateRate = Double.parseDouble(cmd.getOptionValue("duplicateRate", "0"));
+    threadCount = Integer.parseInt(cmd.getOptionValue("threads", "4"));
+    seed = Long.parseLong(cmd.getOptionValue("seed", "1"));
+    temporaryDirectory = !cmd.hasOption("directory");
+    directory = (temporaryDirectory
+            ? Files.createTempDirectory("saltengine-loadtest")
+            : Files.createDirectories(Paths.get(cmd.getOptionValue("directory"))));
+
+    scenarios = new ArrayList<String>();
+    for (String scenario : cmd.getOptionValue("scenarios", String.join(",", ALL_SCENARIOS)).split(",")) {
+      if (!ALL_SCENARIOS.contains(scenario.trim())) {
+        throw new IllegalArgumentException(String.format("Unknown scenario '%s'.  The scenarios are: %s",
+                scenario.trim(), String.join(", ", ALL_SCENARIOS)));
+      }
+      scenarios.add(scenario.trim());
+    }
+  }
+
+  /**
+   * Run each of the requested scenarios in order, displaying the results as they finish
+   * @throws Exception If a site file could not be written
+   */
+  public void run() throws Exception {
+    System.out.printf("Load test: %d rows, %.3f duplicate rate, %d threads, in %s\n", rows, duplicateRate, threadCount, directory);
+    System.out.printf("%-10s %12s %10s %14s %14s %12s  %s\n", "Scenario", "Rows", "Seconds", "Rows/sec", "Files/sec", "Peak heap MB", "Outcome");
+
+    Path siteFile = directory.resolve("sites.csv");
+    writeSiteFile(siteFile, rows, duplicateRate, "S");
+
+    Path generateDirectory = Files.createDirectories(directory.resolve("generate"));
+    Path generateSiteFile = generateDirectory.resolve("sites.csv");
+    Path addSitesDirectory = Files.createDirectories(directory.resolve("addSites"));
+    Path addSitesSiteFile = addSitesDirectory.resolve("sites.csv");
+
+    for (String scenario : scenarios) {
+      switch (scenario) {
+        case "load":
+          runScenario(scenario, rows, engine -> {
+            loadedSites = engine.loadSites(siteFile.toFile());
+            return null;
+          });
+          break;
+        case "validate":
+          if (loadedSites == null) {
+            try {
+              loadedSites = new SaltEngine().loadSites(siteFile.toFile());
+            }
+            catch (Exception exc) {
+              recordResult(scenario, rows, 0, 0, 0, "skipped: the site file could not be loaded", null);
+              break;
+            }
+          }
+          runScenario(scenario, loadedSites.size(), engine -> {
+            engine.validateSites(loadedSites);
+            return null;
+          });
+          break;
+        case "stream":
+          // The loaded sites are no longer needed, and would inflate the peak heap of streaming
+          loadedSites = null;
+          runScenario(scenario, rows, engine -> {
+            engine.streamSites(siteFile.toFile(), (site, rowNumber) -> { });
+            return null;
+          });
+          break;
+        case "generate":
+          loadedSites = null;
+          writeSiteFile(generateSiteFile, generateRows, 0.0, "S");
+          runScenario(scenario, generateRows, engine -> {
+            engine.setProjectName(PROJECT_NAME);
+            engine.setSitesFile(generateSiteFile.toFile());
+            engine.setThreadCount(threadCount);
+            engine.generate();
+            return engine.getMetrics();
+          });
+          break;
+        case "addSites":
+          loadedSites = null;
+          File saltFile = generateDirectory.resolve(new SaltFile().getSaltFileName(PROJECT_NAME,
+                  new SyntheticSiteFile().getSiteID(1))).toFile();
+          if (!saltFile.exists()) {
+            recordResult(scenario, addRows, 0, 0, 0, "skipped: addSites needs the salt files from the generate scenario", null);
+            break;
+          }
+          writeSiteFile(addSitesSiteFile, addRows, 0.0, "N");
+          runScenario(scenario, addRows, engine -> {
+            engine.setSitesFile(addSitesSiteFile.toFile());
+            engine.setSaltFile(saltFile);
+            engine.setThreadCount(threadCount);
+            engine.addSites();
+            return engine.getMetrics();
+          });
+          break;
+      }
+    }
+  }
+
+  private interface Scenario {
+    /**
+     * @return The metrics for the run, if it created salt files
+     */
+    RunMetrics run(SaltEngine engine) throws Exception;
+  }
+
+  private void runScenario(String name, long rowCount, Scenario scenario) {
+    SaltEngine engine = new SaltEngine();
+    resetPeakHeap();
+    long startTime = System.nanoTime();
+    String outcome = "ok";
+    RunMetrics metrics = null;
+    try {
+      metrics = scenario.run(engine);
+    }
+    catch (Exception exc) {
+      String message = (exc.getMessage() == null ? exc.toString() : exc.getMessage());
+      outcome = "rejected: " + message.split("\\R", 2)[0];
+      metrics = (name.equals("generate") || name.equals("addSites") ? engine.getMetrics() : null);
+    }
+    catch (OutOfMemoryError err) {
+      outcome = "out of memory";
+    }
+    double seconds = (double)(System.nanoTime() - startTime) / 1_000_000_000.0;
+    long filesWritten = (metrics == null ? 0 : metrics.getSaltFilesWritten());
+    recordResult(name, rowCount, seconds, filesWritten, getPeakHeap(), outcome, metrics);
+  }
+
+  private void recordResult(String name, long rowCount, double seconds, long filesWritten, long peakHeapBytes,
+                            String outcome, RunMetrics metrics) {
+    double rowsPerSecond = (seconds == 0.0 ? 0.0 : rowCount / seconds);
+    double filesPerSecond = (seconds == 0.0 ? 0.0 : filesWritten / seconds);
+    double peakHeapMB = (double)peakHeapBytes / (1024.0 * 1024.0);
+    System.out.printf("%-10s %12d %10.3f %14.1f %14.1f %12.1f  %s\n", name, rowCount, seconds, rowsPerSecond,
+            filesPerSecond, peakHeapMB, outcome);
+
+    JSONObject result = new JSONObject();
+    result.put("scenario", name);
+    result.put("rows", rowCount);
+    result.put("seconds", seconds);
+    result.put("rowsPerSecond", rowsPerSecond);
+    result.put("filesWritten", filesWritten);
+    result.put("filesPerSecond", filesPerSecond);
+    result.put("peakHeapMB", peakHeapMB);
+    result.put("outcome", outcome);
+    if (metrics != null) {
+      result.put("metrics", metrics.toJSON());
+    }
+    results.put(result);
+  }
+
+  /**
+   * @return The settings and results of the load test, as written to the result file
+   */
+  public JSONObject getReport() {
+    JSONObject report = new JSONObject();
+    report.put("startTime", Instant.now().toString());
+    report.put("rows", rows);
+    report.put("generateRows", generateRows);
+    report.put("addRows", addRows);
+    report.put("duplicateRate", duplicateRate);
+    report.put("threads", threadCount);
+    report.put("seed", seed);
+    report.put("maxHeapMB", (double)Runtime.getRuntime().maxMemory() / (1024.0 * 1024.0));
+    report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+    report.put("results", results);
+    return report;
+  }
+
+  private void writeSiteFile(Path file, long rowCount, double duplicateRate, String idPrefix) throws IOException {
+    SyntheticSiteFile siteFile = new SyntheticSiteFile()
+            .setRowCount(rowCount)
+            .setDuplicateRate(duplicateRate)
+            .setIdPrefix(idPrefix)
+            .setSeed(seed);
+    siteFile.write(file);
+    System.out.printf("  (wrote %s: %d rows, %d edge cases, %d duplicates, %d bytes)\n", directory.relativize(file),
+            rowCount, siteFile.getEdgeCaseRows(), siteFile.getDuplicateRows(), Files.size(file));
+  }
+
+  /**
+   * Collect as much garbage as we can and reset the peak usage of each heap pool, so the next peak reflects the next
+   * scenario only
+   */
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * Get the peak heap use since it was last reset.  The pools can peak at different times, so the sum of their peaks
+   * is an upper bound on the actual peak.
+   */
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  private void deleteTemporaryDirectory() {
+    if (directory == null || !temporaryDirectory) {
+      return;
+    }
+
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+    catch (IOException exc) {
+      System.out.printf("Unable to remove the load test files in %s: %s\n", directory, exc.getMessage());
+    }
+  }
+
+  private static Options setUpCommandLine() {
+    Options options = new Options();
+    options.addOption(new Option("r", "rows", true, "The number of rows in the site file (default 10000)"));
+    options.addOption(new Option("d", "duplicateRate", true, "The fraction of rows that repeat an earlier site ID or name (default 0)"));
+    options.addOption(new Option("g", "generateRows", true, "The number of sites for the generate scenario (default: the same as --rows)"));
+    options.addOption(new Option("a", "addRows", true, "The number of new sites for the addSites scenario (default 1000)"));
+    options.addOption(new Option("t", "threads", true, "The number of threads used to create salt files (default 4)"));
+    options.addOption(new Option("s", "scenarios", true, "Comma-separated scenarios to run (default: load,validate,stream,generate,addSites)"));
+    options.addOption(new Option("seed", "seed", true, "Seed for the synthetic site files (default 1)"));
+    options.addOption(new Option("dir", "directory", true, "Directory for the site and salt files, which is kept afterwards (default: a new temporary directory)"));
+    options.addOption(new Option("rf", "resultFile", true, "Write the results to this JSON file"));
+    options.addOption(new Option("k", "keepFiles", false, "Keep the temporary directory with the site and salt files when the load test finishes"));
+    return options;
+  }
+}
@@ -0,0 +1,186 @@
+package org.linkja.saltengine.loadtest;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Writes synthetic site files of any size for load testing.  Most rows are plain, but a fixed share of them contain
+ * the kinds of values that are seen in real site files:
+ *
+ *   - very long site names
+ *   - names with commas, quotes and line breaks, which must be quoted in the CSV file
+ *   - names with accented characters
+ *   - near-duplicates, whose ID or name only differs from another row by case or surrounding spaces
+ *
+ * Near-duplicates are still distinct, so they must not be reported as duplicates.  Exact duplicates (a repeated site
+ * ID or site name) are only added when a duplicate rate is set, and make the file invalid.
+ *
+ * The same settings and seed always produce the same file.
+ */
+public class SyntheticSiteFile {
+  public static final int LONG_NAME_LENGTH = 1000;
+
+  // Out of every 100 rows, the positions that hold each kind of edge case
+  private static final int LONG_NAME_ROW = 7;
+  private static final int COMMA_ROW = 13;
+  private static final int QUOTE_ROW = 17;
+  private static final int NEAR_DUPLICATE_ID_ROW = 23;
+  private static final int NEAR_DUPLICATE_NAME_ROW = 29;
+  private static final int ACCENTED_ROW = 31;
+  private static final int LINE_BREAK_ROW = 37;
+
+  private long rowCount = 10000;
+  private double duplicateRate = 0.0;
+  private long seed = 1;
+  private String idPrefix = "S";
+
+  // Summary of the most recently written file
+  private long duplicateRows;
+  private long edgeCaseRows;
+
+  public SyntheticSiteFile setRowCount(long rowCount) {
+    if (rowCount < 1) {
+      throw new IllegalArgumentException(String.format("The number of rows must be at least 1, but %d was requested.", rowCount));
+    }
+    this.rowCount = rowCount;
+    return this;
+  }
+
+  /**
+   * @param duplicateRate The fraction of rows, between 0 and 1, that repeat the site ID or site name of an earlier row
+   */
+  public SyntheticSiteFile setDuplicateRate(double duplicateRate) {
+    if (duplicateRate < 0.0 || duplicateRate > 1.0) {
+      throw new IllegalArgumentException(String.format("The duplicate rate must be between 0 and 1, but %f was requested.", duplicateRate));
+    }
+    this.duplicateRate = duplicateRate;
+    return this;
+  }
+
+  public SyntheticSiteFile setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * @param idPrefix The prefix of every site ID, so that files for the same project don't share any sites
+   */
+  public SyntheticSiteFile setIdPrefix(String idPrefix) {
+    this.idPrefix = idPrefix;
+    return this;
+  }
+
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  public double getDuplicateRate() {
+    return duplicateRate;
+  }
+
+  public long getDuplicateRows() {
+    return duplicateRows;
+  }
+
+  public long getEdgeCaseRows() {
+    return edgeCaseRows;
+  }
+
+  /**
+   * @param row The row number, starting at 1
+   * @return The site ID for a row, before any duplicates are applied
+   */
+  public String getSiteID(long row) {
+    if (row % 100 == NEAR_DUPLICATE_ID_ROW && row > 1) {
+      // Differs from the ID of the row before it only by case
+      return String.format("%s%09d", idPrefix.toLowerCase(), row - 1);
+    }
+    return String.format("%s%09d", idPrefix, row);
+  }
+
+  /**
+   * @param row The row number, starting at 1
+   * @return The site name for a row, before any duplicates are applied
+   */
+  public String getSiteName(long row) {
+    switch ((int)(row % 100)) {
+      case LONG_NAME_ROW:
+        StringBuilder name = new StringBuilder(LONG_NAME_LENGTH);
+        name.append(String.format("Regional Health Network %d", row));
+        while (name.length() < LONG_NAME_LENGTH) {
+          name.append(" Affiliated Clinic");
+        }
+        name.setLength(LONG_NAME_LENGTH);
+        return name.toString();
+      case COMMA_ROW:
+        return String.format("Clinic %d, North Campus, Building C", row);
+      case QUOTE_ROW:
+        return String.format("The \"Main Street\" Clinic %d", row);
+      case NEAR_DUPLICATE_NAME_ROW:
+        // Differs from the name of the row before it only by surrounding spaces
+        return String.format(" %s ", getSiteName(row - 1));
+      case ACCENTED_ROW:
+        return String.format("Cl\u00ednica Se\u00f1ora de Guadalupe %d", row);
+      case LINE_BREAK_ROW:
+        return String.format("Community Hospital %d\r\nEmergency Department", row);
+      default:
+        return String.format("Site %d", row);
+    }
+  }
+
+  /**
+   * Write the site file
+   * @param file The file to write, which is replaced if it exists
+   * @throws IOException
+   */
+  public void write(Path file) throws IOException {
+    Random random = new Random(seed);
+    duplicateRows = 0;
+    edgeCaseRows = 0;
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+         CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+      for (long row = 1; row <= rowCount; row++) {
+        String siteID = getSiteID(row);
+        String siteName = getSiteName(row);
+        if (row > 1 && random.nextDouble() < duplicateRate) {
+          // Repeat either the ID or the name of a random earlier row
+          long earlierRow = 1 + (long)(random.nextDouble() * (row - 1));
+          if (random.nextBoolean()) {
+            siteID = getSiteID(earlierRow);
+          }
+          else {
+            siteName = getSiteName(earlierRow);
+          }
+          duplicateRows++;
+        }
+        else if (isEdgeCaseRow(row)) {
+          edgeCaseRows++;
+        }
+
+        printer.printRecord(siteID, siteName);
+      }
+    }
+  }
+
+  private static boolean isEdgeCaseRow(long row) {
+    switch ((int)(row % 100)) {
+      case LONG_NAME_ROW:
+      case COMMA_ROW:
+      case QUOTE_ROW:
+      case NEAR_DUPLICATE_ID_ROW:
+      case NEAR_DUPLICATE_NAME_ROW:
+      case ACCENTED_ROW:
+      case LINE_BREAK_ROW:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
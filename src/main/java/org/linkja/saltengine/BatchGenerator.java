@@ -0,0 +1,247 @@
+package org.linkja.saltengine;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.Site;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates salt files for several new projects in a single run.  The projects are listed in a batch file, which is a
+ * CSV file with two columns on each row: Project Name, Site File.  A relative site file path is resolved against the
+ * directory of the batch file.
+ *
+ * Each site file is loaded and validated once, even if several projects use it.  All of the projects share one
+ * salt file pipeline, so its threads do not sit idle between projects.  Every project still gets its own project
+ * token, and its salt files are written next to its site file, just as they would be by generateProject.
+ */
+public class BatchGenerator {
+  public static final char BATCH_FILE_DELIMITER = ',';
+  public static final int BATCH_FILE_COLUMN_COUNT = 2;
+
+  // Location of fields in the batch file
+  public static final int PROJECT_NAME_INDEX = 0;
+  public static final int SITE_FILE_INDEX = 1;
+
+  /**
+   * A single project in the batch
+   */
+  public static class BatchProject {
+    private final String projectName;
+    private final File sitesFile;
+
+    public BatchProject(String projectName, File sitesFile) {
+      this.projectName = projectName;
+      this.sitesFile = sitesFile;
+    }
+
+    public String getProjectName() {
+      return projectName;
+    }
+
+    public File getSitesFile() {
+      return sitesFile;
+    }
+  }
+
+  private File batchFile;
+  private int threadCount = SaltEngine.DEFAULT_THREAD_COUNT;
+  private SaltFileListener saltFileListener;
+
+  // Project name -> metrics for the most recent run.  The order matches the batch file.
+  private Map<String, RunMetrics> metrics = new LinkedHashMap<String, RunMetrics>();
+
+  public File getBatchFile() {
+    return batchFile;
+  }
+
+  public void setBatchFile(File batchFile) throws FileNotFoundException {
+    if (!batchFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find the batch file %s", batchFile.toString()));
+    }
+    this.batchFile = batchFile;
+  }
+
+  public void setBatchFile(String batchFile) throws FileNotFoundException {
+    setBatchFile(new File(batchFile));
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) throws LinkjaException {
+    if (threadCount < 1) {
+      throw new LinkjaException(String.format("The number of threads must be at least 1, but %d was requested.", threadCount));
+    }
+
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Register a listener that is told about each salt file, for any project, as soon as it has been committed
+   * @param saltFileListener The listener, or null to remove it
+   */
+  public void setSaltFileListener(SaltFileListener saltFileListener) {
+    this.saltFileListener = saltFileListener;
+  }
+
+  /**
+   * Get the timings and counters for each project in the most recent run
+   * @return The metrics, keyed by project name in the order of the batch file
+   */
+  public Map<String, RunMetrics> getMetrics() {
+    return Collections.unmodifiableMap(metrics);
+  }
+
+  /**
+   * Generate the salt files for every project in the batch file.  The batch file and all of the site files are
+   * checked before any salt files are created.  After that, a failure in one project does not stop the others, and
+   * all of the failures are reported together once every project has been attempted.
+   * @throws Exception
+   */
+  public void generate() throws Exception {
+    List<BatchProject> projects = loadBatch(this.batchFile);
+    Map<File, List<Site>> sitesByFile = loadSiteFiles(projects);
+
+    metrics = new LinkedHashMap<String, RunMetrics>();
+    List<String> failures = new ArrayList<String>();
+    try (SaltFilePipeline pipeline = new SaltFilePipeline(this.threadCount)) {
+      // Hand off all of the projects before waiting for any of them, so the pipeline moves straight from one
+      // project to the next.
+      Map<BatchProject, SaltEngine> engines = new LinkedHashMap<BatchProject, SaltEngine>();
+      Map<BatchProject, SaltEngine.ProjectRun> runs = new HashMap<BatchProject, SaltEngine.ProjectRun>();
+      for (BatchProject project : projects) {
+        SaltEngine engine = new SaltEngine();
+        engine.setProjectName(project.getProjectName());
+        engine.setSitesFile(project.getSitesFile());
+        engine.setSaltFileListener(this.saltFileListener);
+        engines.put(project, engine);
+        try {
+          runs.put(project, engine.startGenerate(sitesByFile.get(project.getSitesFile().getCanonicalFile()), pipeline));
+        }
+        catch (Exception e) {
+          failures.add(formatFailure(project, e));
+        }
+      }
+
+      for (Map.Entry<BatchProject, SaltEngine> entry : engines.entrySet()) {
+        BatchProject project = entry.getKey();
+        SaltEngine engine = entry.getValue();
+        SaltEngine.ProjectRun run = runs.get(project);
+        if (run != null) {
+          try {
+            engine.finishGenerate(run);
+          }
+          catch (Exception e) {
+            failures.add(formatFailure(project, e));
+          }
+        }
+        metrics.put(project.getProjectName(), engine.getMetrics());
+      }
+    }
+
+    if (failures.size() > 0) {
+      throw new LinkjaException(String.format("Unable to create the salt files for %d of %d projects:%n%s",
+              failures.size(), projects.size(), String.join(System.lineSeparator(), failures)));
+    }
+  }
+
+  /**
+   * Load the list of projects from a batch file
+   * @param batchFile The batch file
+   * @return The projects, in the order they appear in the batch file
+   * @throws LinkjaException If the batch file is not valid
+   * @throws FileNotFoundException If the batch file, or one of the site files, does not exist
+   */
+  public List<BatchProject> loadBatch(File batchFile) throws LinkjaException, FileNotFoundException {
+    if (!batchFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find the batch file %s", batchFile.toString()));
+    }
+
+    File baseDirectory = batchFile.getAbsoluteFile().getParentFile();
+    List<BatchProject> projects = new ArrayList<BatchProject>();
+    Set<String> projectNames = new HashSet<String>();
+    try (BufferedReader csvReader = new BufferedReader(new FileReader(batchFile))) {
+      CSVParser parser = CSVParser.parse(csvReader, CSVFormat.DEFAULT.withDelimiter(BATCH_FILE_DELIMITER));
+      for (CSVRecord csvRecord : parser) {
+        if (csvRecord.size() != BATCH_FILE_COLUMN_COUNT) {
+          throw new LinkjaException(String.format("Row %d has %d columns.  The batch file must have exactly %d columns on each row: Project Name, Site File",
+                  csvRecord.getRecordNumber(), csvRecord.size(), BATCH_FILE_COLUMN_COUNT));
+        }
+
+        String projectName = csvRecord.get(PROJECT_NAME_INDEX).trim();
+        String siteFileName = csvRecord.get(SITE_FILE_INDEX).trim();
+        if (projectName.equals("")) {
+          throw new LinkjaException(String.format("Row %d has a blank project name, which is not allowed.",
+                  csvRecord.getRecordNumber()));
+        }
+        if (siteFileName.equals("")) {
+          throw new LinkjaException(String.format("Row %d has a blank site file, which is not allowed.",
+                  csvRecord.getRecordNumber()));
+        }
+        if (!projectNames.add(projectName)) {
+          throw new LinkjaException(String.format("Row %d repeats the project '%s'.  Each project may only be listed once.",
+                  csvRecord.getRecordNumber(), projectName));
+        }
+
+        File siteFile = new File(siteFileName);
+        if (!siteFile.isAbsolute()) {
+          siteFile = new File(baseDirectory, siteFileName);
+        }
+        if (!siteFile.exists()) {
+          throw new FileNotFoundException(String.format("Row %d refers to the site file %s, which could not be found.",
+                  csvRecord.getRecordNumber(), siteFile.toString()));
+        }
+
+        projects.add(new BatchProject(projectName, siteFile));
+      }
+    } catch (IOException e) {
+      if (e instanceof FileNotFoundException) {
+        throw (FileNotFoundException)e;
+      }
+      throw new LinkjaException("There was an error loading the batch file.  Please make sure the file exists, and that it is a valid CSV file.");
+    }
+
+    if (projects.size() == 0) {
+      throw new LinkjaException("The batch file does not list any projects.");
+    }
+
+    return projects;
+  }
+
+  /**
+   * Load and validate each distinct site file used by the projects.  A site file that is referred to in more than
+   * one way (e.g., by relative and absolute paths) is still only loaded once.
+   * @return The sites in each site file, keyed by the canonical site file
+   */
+  private Map<File, List<Site>> loadSiteFiles(List<BatchProject> projects) throws Exception {
+    SaltEngine engine = new SaltEngine();
+    Map<File, List<Site>> sitesByFile = new HashMap<File, List<Site>>();
+    for (BatchProject project : projects) {
+      File siteFile = project.getSitesFile().getCanonicalFile();
+      if (sitesByFile.containsKey(siteFile)) {
+        continue;
+      }
+
+      try {
+        List<Site> sites = engine.loadSites(siteFile);
+        engine.validateSites(sites);
+        sitesByFile.put(siteFile, Collections.unmodifiableList(sites));
+      }
+      catch (LinkjaException e) {
+        throw new LinkjaException(String.format("The site file %s for project '%s' is not valid: %s",
+                siteFile.toString(), project.getProjectName(), e.getMessage()));
+      }
+    }
+
+    return sitesByFile;
+  }
+
+  private static String formatFailure(BatchProject project, Exception e) {
+    return String.format("  Project '%s': %s", project.getProjectName(), e.getMessage());
+  }
+}
@@ -0,0 +1,50 @@
+package org.linkja.saltengine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes each salt file as a separate file in a directory.  Salt files are staged under a temporary name in the same
+ * directory, and then renamed, so a failure never leaves a partially written salt file behind.
+ */
+public class DirectoryOutput implements SaltFileOutput {
+  private final Path directory;
+
+  public DirectoryOutput(Path directory) {
+    this.directory = directory;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public Path getStagingPath(String fileName) {
+    return directory.resolve(fileName + SaltEngine.TEMP_FILE_SUFFIX);
+  }
+
+  @Override
+  public long commit(Path stagedFile, String fileName) throws IOException {
+    long fileSize = Files.size(stagedFile);
+    Files.move(stagedFile, directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return fileSize;
+  }
+
+  @Override
+  public String getLocation(String fileName) {
+    return directory.resolve(fileName).toString();
+  }
+
+  @Override
+  public Path findCommitted(String fileName) {
+    Path file = directory.resolve(fileName);
+    return (Files.exists(file) ? file : null);
+  }
+
+  @Override
+  public void close() {
+    // Each salt file is complete once it has been committed, so there is nothing left to do
+  }
+}
@@ -0,0 +1,100 @@
+package org.linkja.saltengine;
+
+/**
+ * A compact set of 64-bit fingerprints, stored in a primitive open-addressing table.  It is used to find duplicates
+ * in very large lists of strings without keeping the strings themselves in memory.  Because different strings can
+ * share a fingerprint, a positive result from {@link #add(long)} only means that the string <i>may</i> have been seen
+ * before - callers must confirm the duplicate some other way.
+ */
+class FingerprintSet {
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  // Slots equal to EMPTY are unused, so a fingerprint that happens to be EMPTY is tracked separately
+  private static final long EMPTY = 0L;
+
+  private long[] slots;
+  private int size = 0;
+  private boolean containsEmpty = false;
+
+  FingerprintSet() {
+    slots = new long[DEFAULT_CAPACITY];
+  }
+
+  /**
+   * Compute the fingerprint for a string.  This is a 64-bit FNV-1a hash over the characters, followed by a final
+   * mixing step so that similar strings spread evenly over the table.
+   * @param value The string to fingerprint
+   * @return The fingerprint
+   */
+  static long fingerprint(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int index = 0; index < value.length(); index++) {
+      hash ^= value.charAt(index);
+      hash *= 0x100000001b3L;
+    }
+
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= (hash >>> 33);
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= (hash >>> 33);
+    return hash;
+  }
+
+  /**
+   * Add a fingerprint to the set
+   * @param fingerprint The fingerprint to add
+   * @return true if the fingerprint was added, false if it was already in the set
+   */
+  boolean add(long fingerprint) {
+    if (fingerprint == EMPTY) {
+      boolean added = !containsEmpty;
+      containsEmpty = true;
+      return added;
+    }
+
+    int slot = findSlot(slots, fingerprint);
+    if (slots[slot] == fingerprint) {
+      return false;
+    }
+
+    slots[slot] = fingerprint;
+    size++;
+    // Keep the table at most half full so that probe sequences stay short
+    if (size * 2 > slots.length) {
+      resize();
+    }
+    return true;
+  }
+
+  boolean contains(long fingerprint) {
+    if (fingerprint == EMPTY) {
+      return containsEmpty;
+    }
+
+    return slots[findSlot(slots, fingerprint)] == fingerprint;
+  }
+
+  int size() {
+    return size + (containsEmpty ? 1 : 0);
+  }
+
+  private static int findSlot(long[] table, long fingerprint) {
+    int mask = table.length - 1;
+    int slot = (int)fingerprint & mask;
+    while (table[slot] != EMPTY && table[slot] != fingerprint) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize() {
+    long[] resized = new long[slots.length * 2];
+    for (long fingerprint : slots) {
+      if (fingerprint != EMPTY) {
+        resized[findSlot(resized, fingerprint)] = fingerprint;
+      }
+    }
+    slots = resized;
+  }
+}
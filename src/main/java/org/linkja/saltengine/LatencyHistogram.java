@@ -0,0 +1,88 @@
+package org.linkja.saltengine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe histogram of latencies (in nanoseconds) used to report percentiles without keeping every
+ * recorded value.  Values are grouped into buckets that are spaced logarithmically, with 16 buckets for each power of
+ * two, so a reported percentile is within about 3% of the actual value.
+ */
+class LatencyHistogram {
+  // Number of bits of each value (after the leading bit) that are used to choose a bucket within a power of two
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong maximum = new AtomicLong();
+
+  void record(long nanoseconds) {
+    long value = Math.max(0, nanoseconds);
+    buckets.incrementAndGet(bucketIndex(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    maximum.accumulateAndGet(value, Math::max);
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getMaximum() {
+    return maximum.get();
+  }
+
+  double getMean() {
+    long recorded = count.get();
+    return (recorded == 0 ? 0.0 : (double)total.get() / recorded);
+  }
+
+  /**
+   * Get the approximate value at a percentile
+   * @param percentile The percentile, between 0 and 100
+   * @return The approximate value, or 0 if nothing has been recorded
+   */
+  long getPercentile(double percentile) {
+    long recorded = count.get();
+    if (recorded == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long)Math.ceil(percentile / 100.0 * recorded));
+    long cumulative = 0;
+    for (int index = 0; index < BUCKET_COUNT; index++) {
+      cumulative += buckets.get(index);
+      if (cumulative >= target) {
+        return Math.min(bucketValue(index), maximum.get());
+      }
+    }
+    return maximum.get();
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int)value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * @return The value in the middle of the range covered by a bucket
+   */
+  static long bucketValue(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+
+    int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKET_COUNT;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKET_COUNT + subBucket) * width) + (width / 2);
+  }
+}
@@ -0,0 +1,32 @@
+package org.linkja.saltengine;
+
+import org.linkja.crypto.Library;
+
+/**
+ * Creates tokens with the native linkja-crypto library.  The library has to be on java.library.path; if it isn't,
+ * the first token fails with an UnsatisfiedLinkError.
+ */
+public class NativeTokenSource implements TokenSource {
+  @Override
+  public String getName() {
+    return NATIVE;
+  }
+
+  @Override
+  public String generateToken(int tokenLength) {
+    return Library.generateToken(tokenLength);
+  }
+
+  /**
+   * @return true if the native library can be loaded and creates tokens
+   */
+  public static boolean isAvailable() {
+    try {
+      Library.generateToken(SaltEngine.MINIMUM_TOKEN_LENGTH);
+      return true;
+    }
+    catch (LinkageError e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,381 @@
+package org.linkja.saltengine;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.linkja.core.Site;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A record of the salt files that have been written for a project in an output directory.  A row is appended (and
+ * flushed) as each salt file is committed, so if a run stops partway through, the manifest shows exactly which salt
+ * files are complete.  A later run can then skip those sites and only process the rest.
+ *
+ * The manifest is a CSV file with the columns: Site ID, File Name, SHA-256, Status.  If a site appears more than once,
+ * the last row for it is the one that counts.
+ *
+ * A run that stops while writing a row can leave it cut off, even inside a quoted field, which CSV can't parse past.
+ * Such a row can't show that a salt file was committed, so it is ignored, and the manifest is rewritten from the rows
+ * before it so that the rows a later run appends can be read again.
+ */
+public class OutputManifest implements Closeable {
+  public static final String MANIFEST_FILE_SUFFIX = ".manifest.csv";
+  public static final String LOCATION_INDEX_FILE_SUFFIX = ".locations.csv";
+
+  public static final String STATUS_COMMITTED = "committed";
+  public static final String STATUS_FAILED = "failed";
+
+  private static final String[] HEADER = { "Site ID", "File Name", "SHA-256", "Status" };
+
+  private static final int SITE_ID_INDEX = 0;
+  private static final int FILE_NAME_INDEX = 1;
+  private static final int CHECKSUM_INDEX = 2;
+  private static final int STATUS_INDEX = 3;
+
+  private final Path manifestFile;
+
+  // Site ID -> file name, for each site whose salt file has been committed
+  private final Map<String, String> committedFiles = new HashMap<String, String>();
+  // Site ID -> checksum of the committed salt file
+  private final Map<String, String> committedChecksums = new HashMap<String, String>();
+
+  private final CSVPrinter printer;
+
+  private OutputManifest(Path manifestFile) throws IOException {
+    this.manifestFile = manifestFile;
+    boolean exists = Files.exists(manifestFile);
+    if (exists && !load()) {
+      rewrite();
+    }
+
+    boolean endsWithNewLine = endsWithNewLine(manifestFile);
+    BufferedWriter writer = Files.newBufferedWriter(manifestFile, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    printer = new CSVPrinter(writer, CSVFormat.DEFAULT);
+    if (exists && !endsWithNewLine) {
+      // Make sure an incomplete last row doesn't run into the first row we add
+      printer.println();
+    }
+    if (!exists) {
+      printer.printRecord((Object[])HEADER);
+      printer.flush();
+    }
+  }
+
+  /**
+   * Open the manifest for a project in an output directory, creating it if it doesn't exist yet
+   * @param directory The output directory
+   * @param projectName The name of the project
+   * @return The manifest
+   * @throws IOException
+   */
+  public static OutputManifest open(Path directory, String projectName) throws IOException {
+    return open(getManifestPath(directory, projectName));
+  }
+
+  /**
+   * Open a manifest file, creating it if it doesn't exist yet
+   * @param manifestFile The path of the manifest file
+   * @return The manifest
+   * @throws IOException
+   */
+  public static OutputManifest open(Path manifestFile) throws IOException {
+    return new OutputManifest(manifestFile);
+  }
+
+  /**
+   * Get the location of the manifest for a project in an output directory
+   * @param directory The output directory
+   * @param projectName The name of the project
+   * @return The path of the manifest file
+   */
+  public static Path getManifestPath(Path directory, String projectName) {
+    return directory.resolve(projectName.replaceAll("[^A-Za-z0-9_\\-]", "_") + MANIFEST_FILE_SUFFIX);
+  }
+
+  /**
+   * Get the location of the index of where each salt file of a project is, for output that is spread across several
+   * directories
+   * @param directory The directory the manifest is in
+   * @param projectName The name of the project
+   * @return The path of the index file
+   */
+  public static Path getLocationIndexPath(Path directory, String projectName) {
+    return directory.resolve(projectName.replaceAll("[^A-Za-z0-9_\\-]", "_") + LOCATION_INDEX_FILE_SUFFIX);
+  }
+
+  public Path getManifestFile() {
+    return manifestFile;
+  }
+
+  /**
+   * @param siteID The site ID to check
+   * @return true if the salt file for the site has been committed
+   */
+  public synchronized boolean isCommitted(String siteID) {
+    return committedFiles.containsKey(siteID);
+  }
+
+  /**
+   * @param siteID The site ID to look up
+   * @return The name of the committed salt file for the site, or null if it has not been committed
+   */
+  public synchronized String getCommittedFileName(String siteID) {
+    return committedFiles.get(siteID);
+  }
+
+  public synchronized int getCommittedCount() {
+    return committedFiles.size();
+  }
+
+  /**
+   * @param siteID The site ID to look up
+   * @return The SHA-256 checksum of the committed salt file for the site, or null if it has not been committed
+   */
+  public synchronized String getCommittedChecksum(String siteID) {
+    return committedChecksums.get(siteID);
+  }
+
+  /**
+   * @return The IDs of all of the sites whose salt files have been committed
+   */
+  public synchronized List<String> getCommittedSiteIDs() {
+    return new ArrayList<String>(committedFiles.keySet());
+  }
+
+  /**
+   * @return The file names of all of the committed salt files
+   */
+  public synchronized List<String> getCommittedFileNames() {
+    return new ArrayList<String>(committedFiles.values());
+  }
+
+  /**
+   * @return The file name of any one of the committed salt files, or null if there are none
+   */
+  public synchronized String getAnyCommittedFileName() {
+    return committedFiles.isEmpty() ? null : committedFiles.values().iterator().next();
+  }
+
+  /**
+   * Record that the salt file for a site has been committed
+   * @param site The site
+   * @param fileName The name of the salt file
+   * @param checksum The SHA-256 checksum of the salt file
+   * @throws IOException
+   */
+  public synchronized void recordCommitted(Site site, String fileName, String checksum) throws IOException {
+    appendCommitted(site, fileName, checksum);
+    flush();
+  }
+
+  /**
+   * Record that the salt file for a site has been committed, without flushing the manifest.  This allows several
+   * commits to be flushed together - until flush is called, the row may be lost if the run stops, in which case the
+   * salt file is simply created again by the next run.
+   * @param site The site
+   * @param fileName The name of the salt file
+   * @param checksum The SHA-256 checksum of the salt file
+   * @throws IOException
+   */
+  public synchronized void appendCommitted(Site site, String fileName, String checksum) throws IOException {
+    printer.printRecord(site.getSiteID(), fileName, checksum, STATUS_COMMITTED);
+    committedFiles.put(site.getSiteID(), fileName);
+    committedChecksums.put(site.getSiteID(), checksum);
+  }
+
+  /**
+   * Write any rows that have been appended to the manifest file
+   * @throws IOException
+   */
+  public synchronized void flush() throws IOException {
+    printer.flush();
+  }
+
+  /**
+   * Record that the salt file for a site could not be created
+   * @param site The site
+   * @throws IOException
+   */
+  public synchronized void recordFailed(Site site) throws IOException {
+    printer.printRecord(site.getSiteID(), "", "", STATUS_FAILED);
+    printer.flush();
+    committedFiles.remove(site.getSiteID());
+    committedChecksums.remove(site.getSiteID());
+  }
+
+  /**
+   * Write an index with the location of the committed salt file for every site (from this run and earlier ones), for
+   * output that doesn't keep the salt files next to the manifest.  It is written under a temporary name first, so
+   * an existing index is only ever replaced by a complete one.
+   * @param indexFile The index file to write
+   * @param output The output the salt files were committed to
+   * @throws IOException
+   */
+  public synchronized void writeLocationIndex(Path indexFile, SaltFileOutput output) throws IOException {
+    List<String> siteIDs = new ArrayList<String>(committedFiles.keySet());
+    Collections.sort(siteIDs);
+    Path stagedFile = indexFile.resolveSibling(indexFile.getFileName().toString() + SaltEngine.TEMP_FILE_SUFFIX);
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(stagedFile, StandardCharsets.UTF_8);
+           CSVPrinter indexPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        indexPrinter.printRecord("Site ID", "Location");
+        for (String siteID : siteIDs) {
+          indexPrinter.printRecord(siteID, output.getLocation(committedFiles.get(siteID)));
+        }
+      }
+      Files.move(stagedFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(stagedFile);
+    }
+  }
+
+  /**
+   * Read an index written by writeLocationIndex
+   * @param indexFile The index file
+   * @return The location of each salt file in the index
+   * @throws IOException
+   */
+  public static List<Path> readLocationIndex(Path indexFile) throws IOException {
+    List<Path> locations = new ArrayList<Path>();
+    try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+      CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT);
+      for (CSVRecord record : parser) {
+        // Skip the header
+        if (record.getRecordNumber() > 1 && record.size() == 2) {
+          locations.add(Paths.get(record.get(1)));
+        }
+      }
+    }
+    catch (IllegalStateException e) {
+      throw new IOException(String.format("The location index %s could not be read (%s)", indexFile.toString(), e.getMessage()));
+    }
+    return locations;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    printer.close();
+  }
+
+  /**
+   * Calculate the SHA-256 checksum of a file
+   * @param file The file
+   * @return The checksum as a hex string
+   * @throws IOException
+   */
+  public static String checksum(Path file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 is not available to calculate checksums", e);
+    }
+
+    try (InputStream stream = Files.newInputStream(file)) {
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = stream.read(buffer)) != -1) {
+        digest.update(buffer, 0, length);
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte value : digest.digest()) {
+      hex.append(String.format("%02x", value));
+    }
+    return hex.toString();
+  }
+
+  private static boolean endsWithNewLine(Path file) throws IOException {
+    if (!Files.exists(file) || Files.size(file) == 0) {
+      return true;
+    }
+
+    try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+      ByteBuffer lastByte = ByteBuffer.allocate(1);
+      channel.position(channel.size() - 1);
+      channel.read(lastByte);
+      return lastByte.get(0) == '\n';
+    }
+  }
+
+  /**
+   * Read the rows of the manifest file
+   * @return false if the rest of the file could not be parsed after some row, so only the rows before it were read
+   * @throws IOException
+   */
+  private boolean load() throws IOException {
+    try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+      CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT);
+      for (CSVRecord record : parser) {
+        // The first row is the header.  Any other row without every column was left incomplete by a run that
+        // stopped while writing to the manifest, so it can't show that a salt file was committed.
+        if (record.getRecordNumber() == 1 || record.size() != HEADER.length) {
+          continue;
+        }
+
+        if (record.get(STATUS_INDEX).equals(STATUS_COMMITTED)) {
+          committedFiles.put(record.get(SITE_ID_INDEX), record.get(FILE_NAME_INDEX));
+          committedChecksums.put(record.get(SITE_ID_INDEX), record.get(CHECKSUM_INDEX));
+        }
+        else {
+          committedFiles.remove(record.get(SITE_ID_INDEX));
+          committedChecksums.remove(record.get(SITE_ID_INDEX));
+        }
+      }
+    }
+    catch (IllegalStateException e) {
+      // The parser reports a row it can't parse (such as one cut off inside a quoted field) this way
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Replace the manifest file with one that only has a row for each committed salt file.  It is written under a
+   * temporary name first, so the manifest is only ever replaced by a complete one.
+   * @throws IOException
+   */
+  private void rewrite() throws IOException {
+    List<String> siteIDs = new ArrayList<String>(committedFiles.keySet());
+    Collections.sort(siteIDs);
+    Path stagedFile = manifestFile.resolveSibling(manifestFile.getFileName().toString() + SaltEngine.TEMP_FILE_SUFFIX);
+    try {
+      try (BufferedWriter writer = Files.newBufferedWriter(stagedFile, StandardCharsets.UTF_8);
+           CSVPrinter manifestPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT)) {
+        manifestPrinter.printRecord((Object[])HEADER);
+        for (String siteID : siteIDs) {
+          manifestPrinter.printRecord(siteID, committedFiles.get(siteID), committedChecksums.get(siteID), STATUS_COMMITTED);
+        }
+      }
+      Files.move(stagedFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(stagedFile);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An exclusive lock on the output of a project, held for the whole of a run so that two runs - in this process or in
+ * separate processes - never write the same manifest, site index or archive at the same time.
+ *
+ * The lock is taken on a file next to the file it protects (e.g., the manifest or the archive).  The lock file is
+ * left in place once the run is over - only the lock on it is released, which the operating system also does if the
+ * process dies.
+ */
+class ProjectLock implements Closeable {
+  public static final String LOCK_FILE_SUFFIX = ".lock";
+
+  private final Path lockFile;
+  private final FileChannel channel;
+
+  private ProjectLock(Path lockFile, FileChannel channel) {
+    this.lockFile = lockFile;
+    this.channel = channel;
+  }
+
+  /**
+   * Lock a file for the current run, without waiting
+   * @param lockedFile The file to protect
+   * @return The lock, which must be closed to release it
+   * @throws LinkjaException If another run already holds the lock
+   * @throws IOException
+   */
+  public static ProjectLock acquire(Path lockedFile) throws LinkjaException, IOException {
+    Path lockFile = getLockPath(lockedFile);
+    FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock = null;
+    try {
+      lock = channel.tryLock();
+    }
+    catch (OverlappingFileLockException e) {
+      // Another run in this process already holds it
+    }
+    catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+
+    if (lock == null) {
+      channel.close();
+      throw new LinkjaException(String.format("%s is being used by another run (it is locked by %s).  Wait for that run to finish and try again.",
+              lockedFile.toString(), lockFile.toString()));
+    }
+    return new ProjectLock(lockFile, channel);
+  }
+
+  /**
+   * Get the location of the lock file for a file
+   * @param lockedFile The file to protect
+   * @return The path of the lock file
+   */
+  public static Path getLockPath(Path lockedFile) {
+    return lockedFile.resolveSibling(lockedFile.getFileName().toString() + LOCK_FILE_SUFFIX);
+  }
+
+  public Path getLockFile() {
+    return lockFile;
+  }
+
+  /**
+   * Release the lock.  Closing the channel releases the lock on it.
+   * @throws IOException
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
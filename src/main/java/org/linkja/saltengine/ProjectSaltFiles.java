@@ -0,0 +1,288 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The salt files that were written for an existing project in an output directory.  The salt files are found using
+ * the project's manifest when there is one, along with the index of their locations if they were spread across
+ * several output directories.  Otherwise, every file in the directory whose name could be a salt file for the project
+ * is used.
+ */
+class ProjectSaltFiles {
+  // Used to work out which part of a salt file name is the site ID
+  private static final String SITE_ID_MARKER = "SITEID";
+
+  private final Path directory;
+  private final String projectName;
+
+  ProjectSaltFiles(Path directory, String projectName) {
+    this.directory = directory;
+    this.projectName = projectName;
+  }
+
+  Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return true if the salt files were spread across several output directories, rather than written to this one
+   */
+  boolean isStriped() {
+    return Files.exists(OutputManifest.getLocationIndexPath(directory, projectName));
+  }
+
+  /**
+   * Find the salt files for the project
+   * @return The salt files, sorted by file name
+   * @throws LinkjaException If there are no salt files for the project
+   * @throws IOException
+   */
+  List<Path> find() throws LinkjaException, IOException {
+    List<Path> files = new ArrayList<Path>();
+    Path manifestFile = OutputManifest.getManifestPath(directory, projectName);
+    if (Files.exists(manifestFile)) {
+      Map<String, Path> locations = new HashMap<String, Path>();
+      if (isStriped()) {
+        for (Path location : OutputManifest.readLocationIndex(OutputManifest.getLocationIndexPath(directory, projectName))) {
+          locations.put(location.getFileName().toString(), location);
+        }
+      }
+      try (OutputManifest manifest = OutputManifest.open(directory, projectName)) {
+        for (String fileName : manifest.getCommittedFileNames()) {
+          Path location = locations.get(fileName);
+          files.add(location != null ? location : directory.resolve(fileName));
+        }
+      }
+    }
+    else {
+      String pattern = new SaltFile().getSaltFileName(projectName, SITE_ID_MARKER);
+      int markerIndex = pattern.indexOf(SITE_ID_MARKER);
+      String prefix = pattern.substring(0, markerIndex);
+      String suffix = pattern.substring(markerIndex + SITE_ID_MARKER.length());
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+        for (Path entry : entries) {
+          String fileName = entry.getFileName().toString();
+          if (Files.isRegularFile(entry) && fileName.length() > prefix.length() + suffix.length()
+                  && fileName.startsWith(prefix) && fileName.endsWith(suffix)) {
+            files.add(entry);
+          }
+        }
+      }
+    }
+
+    if (files.isEmpty()) {
+      throw new LinkjaException(String.format("No salt files were found for the project '%s' in %s",
+              projectName, directory.toString()));
+    }
+
+    files.sort(Comparator.comparing(Path::getFileName));
+    return files;
+  }
+
+  /**
+   * Load the salt files in parallel, and check that they are a consistent set for the project: every file belongs to
+   * the project, is named for its own site, and shares the same project token.
+   * @param files The salt files to load
+   * @param threadCount The number of threads that load the files
+   * @return The loaded salt files, in the same order
+   * @throws LinkjaException If any of the salt files can't be loaded, or they are not a consistent set
+   */
+  List<SaltFile> load(List<Path> files, int threadCount) throws LinkjaException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, files.size()));
+    List<Future<SaltFile>> results = new ArrayList<Future<SaltFile>>(files.size());
+    try {
+      for (Path file : files) {
+        results.add(executor.submit(() -> {
+          SaltFile saltFile = new SaltFile();
+          saltFile.load(file.toFile());
+          return saltFile;
+        }));
+      }
+
+      List<SaltFile> saltFiles = new ArrayList<SaltFile>(files.size());
+      List<String> failures = new ArrayList<String>();
+      for (int index = 0; index < files.size(); index++) {
+        try {
+          saltFiles.add(results.get(index).get());
+        } catch (ExecutionException e) {
+          failures.add(String.format("  %s: %s", files.get(index).getFileName(), e.getCause().getMessage()));
+        }
+      }
+
+      if (failures.size() > 0) {
+        throw new LinkjaException(String.format("Unable to load %d of %d salt files:%n%s",
+                failures.size(), files.size(), String.join(System.lineSeparator(), failures)));
+      }
+
+      checkConsistent(files, saltFiles);
+      return saltFiles;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LinkjaException("Loading the salt files was interrupted before all of them were read");
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void checkConsistent(List<Path> files, List<SaltFile> saltFiles) throws LinkjaException {
+    Set<String> siteIDs = new HashSet<String>();
+    String projectToken = saltFiles.get(0).getProjectSalt();
+    for (int index = 0; index < saltFiles.size(); index++) {
+      SaltFile saltFile = saltFiles.get(index);
+      String fileName = files.get(index).getFileName().toString();
+      String problem = checkSaltFile(fileName, saltFile);
+      if (problem != null) {
+        throw new LinkjaException(String.format("The salt file %s %s.", fileName, problem));
+      }
+      if (!siteIDs.add(saltFile.getSite().getSiteID())) {
+        throw new LinkjaException(String.format("Site IDs must be unique, but '%s' was found in more than one salt file.",
+                saltFile.getSite().getSiteID()));
+      }
+      if (!projectToken.equals(saltFile.getProjectSalt())) {
+        // Never include the tokens themselves in the message
+        throw new LinkjaException(String.format("The salt files %s and %s have different project tokens, so they are not from the same run of the project.",
+                files.get(0).getFileName(), fileName));
+      }
+    }
+  }
+
+  /**
+   * Check that a salt file belongs to the project, and is named for its own site
+   * @param fileName The name of the salt file
+   * @param saltFile The loaded salt file
+   * @return A description of the problem (e.g., "is for the project 'X', not 'Y'"), or null if there is none
+   */
+  String checkSaltFile(String fileName, SaltFile saltFile) {
+    if (!projectName.equals(saltFile.getProjectName())) {
+      return String.format("is for the project '%s', not '%s'", saltFile.getProjectName(), projectName);
+    }
+    if (!fileName.equals(saltFile.getSaltFileName(projectName, saltFile.getSite().getSiteID()))) {
+      return String.format("contains the site '%s', which does not match its name", saltFile.getSite().getSiteID());
+    }
+    return null;
+  }
+
+  /**
+   * Create an empty staging directory next to the salt files, so that files can be moved from it into place with a
+   * rename.  Its name starts with a dot, so it is not mistaken for part of the output.
+   * @return The staging directory
+   * @throws IOException
+   */
+  Path createStagingDirectory() throws IOException {
+    return Files.createTempDirectory(directory, "." + getSafeProjectName() + ".staging-");
+  }
+
+  /**
+   * Replace salt files (and the manifest) in the project directory with the new versions in a staging directory.
+   * Each file is replaced with an atomic rename, so no file is ever missing or partially written.  The previous
+   * versions are kept as hard links (or copies) until every file has been replaced, and if any rename fails they
+   * are all put back, so the directory ends up with either the complete new set or the complete previous set.
+   * @param stagingDirectory The staging directory, which must be in the project directory
+   * @param fileNames The names of the files to move from the staging directory
+   * @throws LinkjaException If the files could not be replaced
+   */
+  void replace(Path stagingDirectory, List<String> fileNames) throws LinkjaException {
+    Path previousDirectory;
+    List<String> previousFileNames = new ArrayList<String>();
+    try {
+      previousDirectory = Files.createTempDirectory(directory, "." + getSafeProjectName() + ".previous-");
+      for (String fileName : fileNames) {
+        Path current = directory.resolve(fileName);
+        if (Files.exists(current)) {
+          keepPrevious(current, previousDirectory.resolve(fileName));
+          previousFileNames.add(fileName);
+        }
+      }
+    } catch (IOException e) {
+      throw new LinkjaException(String.format("Unable to keep a copy of the current salt files before replacing them (%s).  Nothing was changed.",
+              e.getMessage()));
+    }
+
+    List<String> replaced = new ArrayList<String>();
+    try {
+      for (String fileName : fileNames) {
+        Files.move(stagingDirectory.resolve(fileName), directory.resolve(fileName),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        replaced.add(fileName);
+      }
+    } catch (IOException e) {
+      restore(previousDirectory, previousFileNames, replaced, e);
+    }
+
+    deleteDirectory(previousDirectory);
+  }
+
+  /**
+   * Put back the previous version of each file that was already replaced
+   */
+  private void restore(Path previousDirectory, List<String> previousFileNames, List<String> replaced, IOException cause) throws LinkjaException {
+    List<String> notRestored = new ArrayList<String>();
+    for (String fileName : replaced) {
+      try {
+        if (previousFileNames.contains(fileName)) {
+          Files.move(previousDirectory.resolve(fileName), directory.resolve(fileName),
+                  StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        else {
+          Files.deleteIfExists(directory.resolve(fileName));
+        }
+      } catch (IOException e) {
+        notRestored.add(fileName);
+      }
+    }
+
+    if (notRestored.size() > 0) {
+      throw new LinkjaException(String.format("Unable to replace the salt files (%s), and %d of them could not be put back.  The previous versions are in %s.",
+              cause.getMessage(), notRestored.size(), previousDirectory.toString()));
+    }
+
+    deleteDirectory(previousDirectory);
+    throw new LinkjaException(String.format("Unable to replace the salt files (%s).  The previous salt files were put back.",
+            cause.getMessage()));
+  }
+
+  private static void keepPrevious(Path current, Path previous) throws IOException {
+    try {
+      Files.createLink(previous, current);
+    } catch (UnsupportedOperationException | IOException e) {
+      Files.copy(current, previous, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
+
+  /**
+   * Delete a directory and the files in it.  This is only used for staging directories, so a failure is ignored -
+   * anything left behind has a dot name and is never mistaken for a salt file.
+   * @param directory The directory to delete (may be null)
+   */
+  static void deleteDirectory(Path directory) {
+    if (directory == null) {
+      return;
+    }
+
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        Files.deleteIfExists(entry);
+      }
+      Files.deleteIfExists(directory);
+    } catch (IOException e) {
+      // See above
+    }
+  }
+
+  private String getSafeProjectName() {
+    return projectName.replaceAll("[^A-Za-z0-9_\\-]", "_");
+  }
+}
@@ -0,0 +1,310 @@
+package org.linkja.saltengine;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters collected while SaltEngine generates salt files.  All methods are thread-safe, so worker
+ * threads record directly into the same instance.
+ *
+ * Phase times are cumulative across threads.  When several threads are used, the time for a phase can therefore be
+ * larger than the elapsed time of the run.
+ */
+public class RunMetrics {
+  public enum Phase {
+    LOAD_SITES("loadSites", "Load sites"),
+    VALIDATE_SITES("validateSites", "Validate sites"),
+    GENERATE_TOKENS("generateTokens", "Generate tokens"),
+    // SaltFile.save encrypts and writes in a single call, so the two can't be timed separately
+    ENCRYPT_AND_WRITE("encryptAndWrite", "Encrypt and write"),
+    COMMIT_FILES("commitFiles", "Commit files");
+
+    private final String key;
+    private final String label;
+
+    Phase(String key, String label) {
+      this.key = key;
+      this.label = label;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /**
+   * A snapshot of one stage of the pipeline that creates salt files
+   */
+  public static class StageStats {
+    private final String name;
+    private final int threadCount;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long processed;
+    private final double busySeconds;
+    private final double elapsedSeconds;
+
+    StageStats(String name, int threadCount, int queueDepth, int maxQueueDepth, long processed, double busySeconds,
+               double elapsedSeconds) {
+      this.name = name;
+      this.threadCount = threadCount;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.processed = processed;
+      this.busySeconds = busySeconds;
+      this.elapsedSeconds = elapsedSeconds;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getThreadCount() {
+      return threadCount;
+    }
+
+    /**
+     * @return The number of salt files waiting for this stage when the snapshot was taken
+     */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    /**
+     * @return The largest number of salt files that have been waiting for this stage at once
+     */
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    public long getProcessed() {
+      return processed;
+    }
+
+    /**
+     * @return The time the stage spent working, cumulative across its threads
+     */
+    public double getBusySeconds() {
+      return busySeconds;
+    }
+
+    public double getItemsPerSecond() {
+      return (elapsedSeconds == 0.0 ? 0.0 : processed / elapsedSeconds);
+    }
+
+    /**
+     * @return The fraction of the time the threads of the stage were working, between 0 and 1.  A stage that is close
+     * to 1 is the one holding back the others.
+     */
+    public double getUtilization() {
+      return (elapsedSeconds == 0.0 ? 0.0 : Math.min(1.0, busySeconds / (elapsedSeconds * threadCount)));
+    }
+
+    public JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("stage", name);
+      json.put("threads", threadCount);
+      json.put("queueDepth", queueDepth);
+      json.put("maxQueueDepth", maxQueueDepth);
+      json.put("processed", processed);
+      json.put("busySeconds", busySeconds);
+      json.put("itemsPerSecond", getItemsPerSecond());
+      json.put("utilization", getUtilization());
+      return json;
+    }
+  }
+
+  public static final double[] REPORTED_PERCENTILES = { 50.0, 90.0, 99.0 };
+
+  private final Instant startTime;
+  private final long startNanos;
+  private volatile long endNanos = 0;
+
+  private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+  private final AtomicLong sitesLoaded = new AtomicLong();
+  private final AtomicLong sitesSkipped = new AtomicLong();
+  private final AtomicLong tokensGenerated = new AtomicLong();
+  private final AtomicLong saltFilesWritten = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final LatencyHistogram siteLatency = new LatencyHistogram();
+
+  // The pipeline used by the run, until the run finishes.  After that, the last snapshot of its stages is kept.
+  private volatile SaltFilePipeline pipeline;
+  private volatile List<StageStats> pipelineStages = Collections.emptyList();
+
+  public RunMetrics() {
+    startTime = Instant.now();
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Mark the end of the run.  Until this is called, the elapsed time keeps increasing.
+   */
+  public void finish() {
+    endNanos = System.nanoTime();
+    SaltFilePipeline finishedPipeline = pipeline;
+    if (finishedPipeline != null) {
+      pipelineStages = finishedPipeline.getStageStats();
+      pipeline = null;
+    }
+  }
+
+  void setPipeline(SaltFilePipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Get the state of each stage of the pipeline that creates the salt files.  While the run is in progress, this shows
+   * the current queue depths.  If the pipeline was shared with other projects, the counts include their salt files.
+   * @return The stages, in the order salt files pass through them
+   */
+  public List<StageStats> getPipelineStages() {
+    SaltFilePipeline currentPipeline = pipeline;
+    return (currentPipeline == null ? pipelineStages : currentPipeline.getStageStats());
+  }
+
+  public Instant getStartTime() {
+    return startTime;
+  }
+
+  public double getElapsedSeconds() {
+    long end = (endNanos == 0 ? System.nanoTime() : endNanos);
+    return toSeconds(end - startNanos);
+  }
+
+  public void addPhaseTime(Phase phase, long nanoseconds) {
+    phaseNanos.addAndGet(phase.ordinal(), nanoseconds);
+  }
+
+  public double getPhaseSeconds(Phase phase) {
+    return toSeconds(phaseNanos.get(phase.ordinal()));
+  }
+
+  public void addSitesLoaded(long count) {
+    sitesLoaded.addAndGet(count);
+  }
+
+  public long getSitesLoaded() {
+    return sitesLoaded.get();
+  }
+
+  /**
+   * Record sites that were skipped because their salt files were created by an earlier run
+   * @param count
+   */
+  public void addSitesSkipped(long count) {
+    sitesSkipped.addAndGet(count);
+  }
+
+  public long getSitesSkipped() {
+    return sitesSkipped.get();
+  }
+
+  public void addTokensGenerated(long count) {
+    tokensGenerated.addAndGet(count);
+  }
+
+  public long getTokensGenerated() {
+    return tokensGenerated.get();
+  }
+
+  /**
+   * Record that a salt file was written
+   * @param bytes The size of the file
+   */
+  public void addSaltFileWritten(long bytes) {
+    saltFilesWritten.incrementAndGet();
+    bytesWritten.addAndGet(bytes);
+  }
+
+  public long getSaltFilesWritten() {
+    return saltFilesWritten.get();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * Record the time it took to create the salt file for one site, from generating its token until the file was
+   * committed
+   * @param nanoseconds
+   */
+  public void recordSiteLatency(long nanoseconds) {
+    siteLatency.record(nanoseconds);
+  }
+
+  /**
+   * @param percentile The percentile, between 0 and 100
+   * @return The approximate per-site latency in milliseconds at the percentile
+   */
+  public double getSiteLatencyMillis(double percentile) {
+    return toMillis(siteLatency.getPercentile(percentile));
+  }
+
+  public double getMaximumSiteLatencyMillis() {
+    return toMillis(siteLatency.getMaximum());
+  }
+
+  public double getMeanSiteLatencyMillis() {
+    return siteLatency.getMean() / 1_000_000.0;
+  }
+
+  /**
+   * Convert the metrics to JSON, in the format written to the metrics file
+   * @return
+   */
+  public JSONObject toJSON() {
+    JSONObject json = new JSONObject();
+    json.put("startTime", startTime.toString());
+    json.put("elapsedSeconds", getElapsedSeconds());
+
+    JSONObject phases = new JSONObject();
+    for (Phase phase : Phase.values()) {
+      phases.put(phase.getKey(), getPhaseSeconds(phase));
+    }
+    json.put("phaseSeconds", phases);
+
+    JSONObject counters = new JSONObject();
+    counters.put("sitesLoaded", getSitesLoaded());
+    counters.put("sitesSkipped", getSitesSkipped());
+    counters.put("tokensGenerated", getTokensGenerated());
+    counters.put("saltFilesWritten", getSaltFilesWritten());
+    counters.put("bytesWritten", getBytesWritten());
+    json.put("counters", counters);
+
+    JSONObject latency = new JSONObject();
+    latency.put("count", siteLatency.getCount());
+    latency.put("mean", getMeanSiteLatencyMillis());
+    for (double percentile : REPORTED_PERCENTILES) {
+      latency.put(String.format("p%d", (int)percentile), getSiteLatencyMillis(percentile));
+    }
+    latency.put("max", getMaximumSiteLatencyMillis());
+    json.put("siteLatencyMillis", latency);
+
+    JSONArray stages = new JSONArray();
+    for (StageStats stage : getPipelineStages()) {
+      stages.put(stage.toJSON());
+    }
+    json.put("pipeline", stages);
+    return json;
+  }
+
+  private static double toSeconds(long nanoseconds) {
+    return (double)nanoseconds / 1_000_000_000.0;
+  }
+
+  private static double toMillis(long nanoseconds) {
+    return (double)nanoseconds / 1_000_000.0;
+  }
+}
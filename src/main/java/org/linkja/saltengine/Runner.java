@@ -1,8 +1,19 @@
 package org.linkja.saltengine;
 
 import org.apache.commons.cli.*;
+import org.json.JSONObject;
 import org.linkja.core.LinkjaException;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 public class Runner {
   public static void main(String[] args) {
     Options options = setUpCommandLine();
@@ -19,6 +30,42 @@ public class Runner {
       System.exit(0);
     }
 
+    // Checked first, so that nothing else (in particular, the native library) is loaded
+    if (cmd.hasOption("validateOnly")) {
+      runValidateOnly(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("serve")) {
+      runService(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("generateBatch")) {
+      runBatch(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("watchFolder")) {
+      runWatchFolder(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("verify")) {
+      runVerify(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("prepareShards")) {
+      runPrepareShards(cmd);
+      return;
+    }
+
+    if (cmd.hasOption("mergeShards")) {
+      runMergeShards(cmd);
+      return;
+    }
+
     long startTime = System.nanoTime();
 
     SaltEngine engine = new SaltEngine();
@@ -27,9 +74,27 @@ public class Runner {
       // Check to make sure the user specified appropriate command line parameters.
       boolean generateProject = cmd.hasOption("generateProject");
       boolean addSites = cmd.hasOption("addSites");
+      boolean rotateProject = cmd.hasOption("rotateProject");
+      boolean generateShard = cmd.hasOption("generateShard");
 
-      if ((generateProject && addSites) || (!generateProject && !addSites)) {
-        throw new LinkjaException("Please specify either --generateProject or --addSites");
+      int modeCount = (generateProject ? 1 : 0) + (addSites ? 1 : 0) + (rotateProject ? 1 : 0) + (generateShard ? 1 : 0);
+      if (modeCount != 1) {
+        throw new LinkjaException("Please specify one of --generateProject, --addSites, --rotateProject or --generateShard");
+      }
+
+      if (cmd.hasOption("threads")) {
+        engine.setThreadCount(parseIntegerOption(cmd, "threads"));
+      }
+      engine.setStreamSites(cmd.hasOption("streamSites"));
+      engine.setArchiveFile(cmd.getOptionValue("archiveFile"));
+      if (cmd.hasOption("tokenSource")) {
+        engine.setTokenSource(cmd.getOptionValue("tokenSource"));
+      }
+      if (cmd.hasOption("outputRoots")) {
+        engine.setOutputRoots(getOutputRoots(cmd));
+      }
+      if (cmd.hasOption("striping")) {
+        engine.setStriping(cmd.getOptionValue("striping"));
       }
 
       if (generateProject) {
@@ -37,9 +102,30 @@ public class Runner {
         engine.setSitesFile(cmd.getOptionValue("siteFile"));
         engine.generate();
       }
+      else if (generateShard) {
+        if (!cmd.hasOption("shardIndex") || !cmd.hasOption("shardCount")) {
+          throw new LinkjaException("Please specify the --shardIndex and --shardCount of the shard to generate");
+        }
+        engine.setShard(new Shard(parseIntegerOption(cmd, "shardIndex"), parseIntegerOption(cmd, "shardCount")));
+        engine.setSitesFile(cmd.getOptionValue("siteFile"));
+        engine.setSaltFile(cmd.getOptionValue("saltFile"));
+        engine.generateShard();
+      }
+      else if (rotateProject) {
+        if (!cmd.hasOption("projectDirectory")) {
+          throw new LinkjaException("Please specify the --projectDirectory that holds the salt files to rotate");
+        }
+        engine.setProjectName(cmd.getOptionValue("projectName"));
+        engine.setProjectDirectory(cmd.getOptionValue("projectDirectory"));
+        engine.setRotatePrivateSalts(cmd.hasOption("rotatePrivateSalts"));
+        engine.rotateProject();
+      }
       else {
         engine.setSitesFile(cmd.getOptionValue("siteFile"));
         engine.setSaltFile(cmd.getOptionValue("saltFile"));
+        if (cmd.hasOption("projectDirectory")) {
+          engine.setProjectDirectory(cmd.getOptionValue("projectDirectory"));
+        }
         engine.addSites();
       }
     }
@@ -47,15 +133,406 @@ public class Runner {
       displayUsage();
       System.out.println();
       System.out.println(exc.getMessage());
+      writeMetricsFile(cmd, engine.getMetrics());
+      System.exit(1);
+    }
+
+    long endTime = System.nanoTime();
+
+    displayMetrics(engine.getMetrics());
+    writeMetricsFile(cmd, engine.getMetrics());
+
+    double elapsedSeconds = (double)(endTime - startTime) / 1_000_000_000.0;
+    System.out.printf("Total execution time: %2f sec\n", elapsedSeconds);
+  }
+
+  /**
+   * Run the salt service until the program is stopped
+   * @param cmd The parsed command line
+   */
+  public static void runService(CommandLine cmd) {
+    try {
+      SaltService service = new SaltService(
+              getIntegerOption(cmd, "port", SaltService.DEFAULT_PORT),
+              getIntegerOption(cmd, "jobThreads", SaltService.DEFAULT_JOB_THREADS),
+              getIntegerOption(cmd, "queueSize", SaltService.DEFAULT_QUEUE_SIZE));
+      if (cmd.hasOption("accessTokenFile")) {
+        service.setAccessToken(new String(Files.readAllBytes(Paths.get(cmd.getOptionValue("accessTokenFile"))), StandardCharsets.UTF_8));
+      }
+      if (cmd.hasOption("baseDirectory")) {
+        service.setBaseDirectory(new File(cmd.getOptionValue("baseDirectory")));
+      }
+      service.setMaximumThreads(getIntegerOption(cmd, "maxThreads", SaltService.DEFAULT_MAXIMUM_THREADS));
+      service.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+      System.out.printf("Salt service listening on http://localhost:%d for files in %s\n", service.getPort(), service.getBaseDirectory());
+      if (!cmd.hasOption("accessTokenFile")) {
+        System.out.printf("Send this access token in the %s header of each request: %s\n", SaltService.ACCESS_TOKEN_HEADER, service.getAccessToken());
+      }
+      service.awaitStop();
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Watch a folder for new site files, and add their sites to an existing project until the program is stopped
+   * @param cmd The parsed command line
+   */
+  public static void runWatchFolder(CommandLine cmd) {
+    try {
+      if (!cmd.hasOption("saltFile")) {
+        throw new LinkjaException("Please specify the --saltFile for the project that new sites are added to");
+      }
+      SiteFolderWatcher watcher = new SiteFolderWatcher(new File(cmd.getOptionValue("watchFolder")),
+              new File(cmd.getOptionValue("saltFile")));
+      if (cmd.hasOption("projectDirectory")) {
+        watcher.setProjectDirectory(new File(cmd.getOptionValue("projectDirectory")));
+      }
+      if (cmd.hasOption("threads")) {
+        watcher.setThreadCount(parseIntegerOption(cmd, "threads"));
+      }
+      if (cmd.hasOption("tokenSource")) {
+        watcher.setTokenSource(TokenSource.create(cmd.getOptionValue("tokenSource")));
+      }
+      watcher.setQuietPeriodMillis(getIntegerOption(cmd, "quietPeriod", (int)SiteFolderWatcher.DEFAULT_QUIET_PERIOD_MILLIS));
+      watcher.setBatchListener(new SiteFolderWatcher.BatchListener() {
+        @Override
+        public void batchFinished(List<Path> doneFiles, Map<Path, String> failedFiles) {
+          for (Path file : doneFiles) {
+            System.out.printf("Added the sites in %s\n", file.getFileName());
+          }
+          for (Map.Entry<Path, String> failed : failedFiles.entrySet()) {
+            System.out.printf("Unable to add the sites in %s: %s\n", failed.getKey().getFileName(), failed.getValue());
+          }
+        }
+
+        @Override
+        public void moveFailed(Path file, String problem) {
+          System.out.printf("%s.  It will be skipped until it changes.\n", problem);
+        }
+
+        @Override
+        public void batchFailed(Exception problem) {
+          System.out.printf("Unable to process the waiting site files (%s).  They will be tried again with the next batch.\n", problem.toString());
+        }
+      });
+
+      watcher.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(watcher::stop));
+      System.out.printf("Watching %s for new site files\n", cmd.getOptionValue("watchFolder"));
+      watcher.awaitStop();
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Generate the salt files for every project listed in a batch file
+   * @param cmd The parsed command line
+   */
+  public static void runBatch(CommandLine cmd) {
+    long startTime = System.nanoTime();
+    BatchGenerator generator = new BatchGenerator();
+    try {
+      if (!cmd.hasOption("batchFile")) {
+        throw new LinkjaException("Please specify the --batchFile that lists the projects to create");
+      }
+      if (cmd.hasOption("threads")) {
+        generator.setThreadCount(parseIntegerOption(cmd, "threads"));
+      }
+      generator.setBatchFile(cmd.getOptionValue("batchFile"));
+      generator.generate();
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      writeBatchMetricsFile(cmd, generator.getMetrics());
       System.exit(1);
     }
 
     long endTime = System.nanoTime();
 
+    for (Map.Entry<String, RunMetrics> project : generator.getMetrics().entrySet()) {
+      RunMetrics metrics = project.getValue();
+      System.out.printf("Project '%s': %d sites, %d salt files written (%d already complete and skipped), %.3f sec\n",
+              project.getKey(), metrics.getSitesLoaded(), metrics.getSaltFilesWritten(), metrics.getSitesSkipped(),
+              metrics.getElapsedSeconds());
+    }
+    writeBatchMetricsFile(cmd, generator.getMetrics());
+
     double elapsedSeconds = (double)(endTime - startTime) / 1_000_000_000.0;
     System.out.printf("Total execution time: %2f sec\n", elapsedSeconds);
   }
 
+  /**
+   * Check the salt files of a project, printing the result for each file as it is checked
+   * @param cmd The parsed command line
+   */
+  public static void runVerify(CommandLine cmd) {
+    SaltFileVerifier.Summary summary = null;
+    try {
+      if (!cmd.hasOption("projectDirectory")) {
+        throw new LinkjaException("Please specify the --projectDirectory that holds the salt files to verify");
+      }
+      SaltFileVerifier verifier = new SaltFileVerifier();
+      if (cmd.hasOption("threads")) {
+        verifier.setThreadCount(parseIntegerOption(cmd, "threads"));
+      }
+      verifier.setProjectName(cmd.getOptionValue("projectName"));
+      verifier.setProjectDirectory(cmd.getOptionValue("projectDirectory"));
+      summary = verifier.verify((result) -> System.out.println(result.toString()));
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+
+    System.out.println();
+    System.out.println(summary.toString());
+    System.out.printf("Total execution time: %2f sec\n", summary.getElapsedSeconds());
+    if (cmd.hasOption("metricsFile")) {
+      try {
+        Files.write(Paths.get(cmd.getOptionValue("metricsFile")), summary.toJSON().toString(2).getBytes(StandardCharsets.UTF_8));
+      }
+      catch (IOException exc) {
+        System.out.printf("Unable to write the metrics file: %s\n", exc.getMessage());
+      }
+    }
+
+    if (!summary.isValid()) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Check a site file, and report every problem with it, without creating any salt files
+   * @param cmd The parsed command line
+   */
+  public static void runValidateOnly(CommandLine cmd) {
+    SiteFileValidator.Result result = null;
+    try {
+      if (!cmd.hasOption("siteFile")) {
+        throw new LinkjaException("Please specify the --siteFile to validate");
+      }
+      SiteFileValidator validator = new SiteFileValidator();
+      validator.setProjectName(cmd.getOptionValue("projectName"));
+      if (cmd.hasOption("archiveFile")) {
+        validator.setArchiveFile(new File(cmd.getOptionValue("archiveFile")));
+      }
+      if (cmd.hasOption("projectDirectory")) {
+        validator.setProjectDirectory(new File(cmd.getOptionValue("projectDirectory")));
+      }
+      if (cmd.hasOption("outputRoots")) {
+        validator.setOutputRoots(getOutputRoots(cmd));
+      }
+      result = validator.validate(new File(cmd.getOptionValue("siteFile")));
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+
+    System.out.println(result.toString());
+    System.out.printf("Total execution time: %2f sec\n", result.getElapsedSeconds());
+    if (cmd.hasOption("metricsFile")) {
+      try {
+        Files.write(Paths.get(cmd.getOptionValue("metricsFile")), result.toJSON().toString(2).getBytes(StandardCharsets.UTF_8));
+      }
+      catch (IOException exc) {
+        System.out.printf("Unable to write the metrics file: %s\n", exc.getMessage());
+      }
+    }
+
+    if (!result.isValid()) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Create the project token file that is shared by every shard of a project
+   * @param cmd The parsed command line
+   */
+  public static void runPrepareShards(CommandLine cmd) {
+    try {
+      if (!cmd.hasOption("saltFile")) {
+        throw new LinkjaException("Please specify the --saltFile to create for the project token");
+      }
+      SaltEngine engine = new SaltEngine();
+      if (cmd.hasOption("tokenSource")) {
+        engine.setTokenSource(cmd.getOptionValue("tokenSource"));
+      }
+      engine.setProjectName(cmd.getOptionValue("projectName"));
+      engine.createProjectTokenFile(Paths.get(cmd.getOptionValue("saltFile")).toFile());
+      System.out.printf("Created the project token file %s\n", cmd.getOptionValue("saltFile"));
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Check that every shard of a project is complete, and combine their manifests
+   * @param cmd The parsed command line
+   */
+  public static void runMergeShards(CommandLine cmd) {
+    long startTime = System.nanoTime();
+    ShardMerger merger = new ShardMerger();
+    try {
+      if (!cmd.hasOption("shardCount")) {
+        throw new LinkjaException("Please specify the --shardCount that the shards were generated with");
+      }
+      if (cmd.hasOption("threads")) {
+        merger.setThreadCount(parseIntegerOption(cmd, "threads"));
+      }
+      merger.setShardCount(parseIntegerOption(cmd, "shardCount"));
+      merger.setSitesFile(cmd.getOptionValue("siteFile"));
+      merger.setTokenFile(cmd.getOptionValue("saltFile"));
+      merger.merge();
+    }
+    catch (Exception exc) {
+      displayUsage();
+      System.out.println();
+      System.out.println(exc.getMessage());
+      System.exit(1);
+    }
+
+    long[] shardSiteCounts = merger.getShardSiteCounts();
+    for (int index = 0; index < shardSiteCounts.length; index++) {
+      System.out.printf("Shard %d: %d sites\n", index, shardSiteCounts[index]);
+    }
+    System.out.printf("Merged %d shards covering all %d sites\n", shardSiteCounts.length, merger.getSiteCount());
+
+    double elapsedSeconds = (double)(System.nanoTime() - startTime) / 1_000_000_000.0;
+    System.out.printf("Total execution time: %2f sec\n", elapsedSeconds);
+  }
+
+  /**
+   * Display the timings and counters collected during the run
+   * @param metrics
+   */
+  public static void displayMetrics(RunMetrics metrics) {
+    System.out.println("Phase timings (cumulative across threads):");
+    for (RunMetrics.Phase phase : RunMetrics.Phase.values()) {
+      System.out.printf("  %-20s %10.3f sec\n", phase.getLabel(), metrics.getPhaseSeconds(phase));
+    }
+    System.out.printf("Sites loaded: %d (%d already complete and skipped)\n", metrics.getSitesLoaded(), metrics.getSitesSkipped());
+    System.out.printf("Tokens generated: %d\n", metrics.getTokensGenerated());
+    System.out.printf("Salt files written: %d (%d bytes)\n", metrics.getSaltFilesWritten(), metrics.getBytesWritten());
+    System.out.printf("Per-site latency: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+            metrics.getSiteLatencyMillis(50.0), metrics.getSiteLatencyMillis(90.0),
+            metrics.getSiteLatencyMillis(99.0), metrics.getMaximumSiteLatencyMillis());
+    if (!metrics.getPipelineStages().isEmpty()) {
+      System.out.println("Pipeline stages:");
+      for (RunMetrics.StageStats stage : metrics.getPipelineStages()) {
+        System.out.printf("  %-8s %3d threads %10d files %10.1f files/sec %5.1f%% busy, max queue %d\n",
+                stage.getName(), stage.getThreadCount(), stage.getProcessed(), stage.getItemsPerSecond(),
+                stage.getUtilization() * 100.0, stage.getMaxQueueDepth());
+      }
+    }
+  }
+
+  /**
+   * If requested on the command line, write the metrics for the run to a JSON file
+   * @param cmd
+   * @param metrics
+   */
+  public static void writeMetricsFile(CommandLine cmd, RunMetrics metrics) {
+    if (!cmd.hasOption("metricsFile")) {
+      return;
+    }
+
+    try {
+      Files.write(Paths.get(cmd.getOptionValue("metricsFile")), metrics.toJSON().toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+    catch (IOException exc) {
+      System.out.printf("Unable to write the metrics file: %s\n", exc.getMessage());
+    }
+  }
+
+  /**
+   * If requested on the command line, write the metrics for each project in a batch to a JSON file
+   * @param cmd
+   * @param metrics The metrics, keyed by project name
+   */
+  public static void writeBatchMetricsFile(CommandLine cmd, Map<String, RunMetrics> metrics) {
+    if (!cmd.hasOption("metricsFile")) {
+      return;
+    }
+
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, RunMetrics> project : metrics.entrySet()) {
+      json.put(project.getKey(), project.getValue().toJSON());
+    }
+
+    try {
+      Files.write(Paths.get(cmd.getOptionValue("metricsFile")), json.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+    catch (IOException exc) {
+      System.out.printf("Unable to write the metrics file: %s\n", exc.getMessage());
+    }
+  }
+
+  /**
+   * Helper method to read a command line option that is expected to be a whole number
+   * @param cmd The parsed command line
+   * @param name The long name of the option
+   * @return The integer value of the option
+   * @throws LinkjaException If the value is not a valid integer
+   */
+  public static int parseIntegerOption(CommandLine cmd, String name) throws LinkjaException {
+    String value = cmd.getOptionValue(name);
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException exc) {
+      throw new LinkjaException(String.format("The value for --%s must be a whole number, but '%s' was specified.", name, value));
+    }
+  }
+
+  /**
+   * Helper method to read an optional whole number command line option
+   * @param cmd The parsed command line
+   * @param name The long name of the option
+   * @param defaultValue The value to use if the option was not specified
+   * @return The integer value of the option
+   * @throws LinkjaException If the value is not a valid integer
+   */
+  public static int getIntegerOption(CommandLine cmd, String name, int defaultValue) throws LinkjaException {
+    return (cmd.hasOption(name) ? parseIntegerOption(cmd, name) : defaultValue);
+  }
+
+  /**
+   * Helper method to read the comma-separated list of output directories
+   * @param cmd The parsed command line
+   * @return The output directories
+   */
+  public static List<File> getOutputRoots(CommandLine cmd) {
+    List<File> outputRoots = new ArrayList<File>();
+    for (String outputRoot : cmd.getOptionValue("outputRoots").split(",")) {
+      if (!outputRoot.trim().equals("")) {
+        outputRoots.add(new File(outputRoot.trim()));
+      }
+    }
+    return outputRoots;
+  }
+
   public static void displayVersion() {
     System.out.printf("linkja-salt-engine v%s\r\n", Runner.class.getPackage().getImplementationVersion());
     System.out.printf("linkja-crypto signature: %s\r\n", (new org.linkja.crypto.Library()).getLibrarySignature());
@@ -80,11 +557,75 @@ public class Runner {
     addSitesOpt.setRequired(false);
     options.addOption(addSitesOpt);
 
+    Option generateBatchOpt = new Option("batch", "generateBatch", false, "Create new sets of salt files for every project listed in a batch file");
+    generateBatchOpt.setRequired(false);
+    options.addOption(generateBatchOpt);
+
+    Option rotateProjectOpt = new Option("rotate", "rotateProject", false, "Replace the project token in every salt file of an existing project");
+    rotateProjectOpt.setRequired(false);
+    options.addOption(rotateProjectOpt);
+
+    Option verifyOpt = new Option("verify", "verify", false, "Check that every salt file of a project loads and belongs to the same run of the project");
+    verifyOpt.setRequired(false);
+    options.addOption(verifyOpt);
+
+    Option prepareShardsOpt = new Option("prep", "prepareShards", false, "Create the project token file shared by every shard of a new project");
+    prepareShardsOpt.setRequired(false);
+    options.addOption(prepareShardsOpt);
+
+    Option generateShardOpt = new Option("shard", "generateShard", false, "Create the salt files for one shard of a project");
+    generateShardOpt.setRequired(false);
+    options.addOption(generateShardOpt);
+
+    Option mergeShardsOpt = new Option("merge", "mergeShards", false, "Check that every shard of a project is complete, and combine their manifests");
+    mergeShardsOpt.setRequired(false);
+    options.addOption(mergeShardsOpt);
+
+    Option validateOnlyOpt = new Option("vo", "validateOnly", false, "Check a site file and report every problem with it, without creating any salt files");
+    validateOnlyOpt.setRequired(false);
+    options.addOption(validateOnlyOpt);
+
+    Option watchFolderOpt = new Option("watch", "watchFolder", true, "Watch this folder for new site files, and add their sites to an existing project");
+    watchFolderOpt.setRequired(false);
+    options.addOption(watchFolderOpt);
+
+    Option serveOpt = new Option("serve", "serve", false, "Run as a local service that accepts generateProject and addSites jobs over HTTP");
+    serveOpt.setRequired(false);
+    options.addOption(serveOpt);
+
     // Parameters for either mode
     Option siteFileOpt = new Option("sf", "siteFile", true, "Control file with the salts to load");
     siteFileOpt.setRequired(false);
     options.addOption(siteFileOpt);
 
+    Option threadsOpt = new Option("t", "threads", true, "The number of worker threads used to create salt files");
+    threadsOpt.setRequired(false);
+    options.addOption(threadsOpt);
+
+    Option streamSitesOpt = new Option("stream", "streamSites", false, "Validate and process sites as the site file is read, instead of loading it first");
+    streamSitesOpt.setRequired(false);
+    options.addOption(streamSitesOpt);
+
+    Option archiveFileOpt = new Option("zip", "archiveFile", true, "Write all of the salt files into this zip archive instead of separate files");
+    archiveFileOpt.setRequired(false);
+    options.addOption(archiveFileOpt);
+
+    Option tokenSourceOpt = new Option("ts", "tokenSource", true, "Where tokens come from: native, java or auto");
+    tokenSourceOpt.setRequired(false);
+    options.addOption(tokenSourceOpt);
+
+    Option outputRootsOpt = new Option("roots", "outputRoots", true, "Spread the salt files across these directories (separated by commas)");
+    outputRootsOpt.setRequired(false);
+    options.addOption(outputRootsOpt);
+
+    Option stripingOpt = new Option("stripe", "striping", true, "How salt files are assigned to the --outputRoots: roundRobin or hash");
+    stripingOpt.setRequired(false);
+    options.addOption(stripingOpt);
+
+    Option metricsFileOpt = new Option("mf", "metricsFile", true, "Write the timings and counters for the run to this JSON file");
+    metricsFileOpt.setRequired(false);
+    options.addOption(metricsFileOpt);
+
     // Parameters for --generateProject
     Option projectNameOpt = new Option("pn", "projectName", true, "The name of the project to create");
     projectNameOpt.setRequired(false);
@@ -95,6 +636,59 @@ public class Runner {
     saltFileOpt.setRequired(false);
     options.addOption(saltFileOpt);
 
+    // Parameters for --generateShard and --mergeShards
+    Option shardIndexOpt = new Option("si", "shardIndex", true, "The shard to generate, from 0 to the number of shards - 1");
+    shardIndexOpt.setRequired(false);
+    options.addOption(shardIndexOpt);
+
+    Option shardCountOpt = new Option("sc", "shardCount", true, "The total number of shards");
+    shardCountOpt.setRequired(false);
+    options.addOption(shardCountOpt);
+
+    // Parameters for --rotateProject and --verify
+    Option projectDirectoryOpt = new Option("pd", "projectDirectory", true, "The directory that holds the salt files of the project");
+    projectDirectoryOpt.setRequired(false);
+    options.addOption(projectDirectoryOpt);
+
+    Option rotatePrivateSaltsOpt = new Option("rps", "rotatePrivateSalts", false, "Also give every site a new private salt when rotating a project");
+    rotatePrivateSaltsOpt.setRequired(false);
+    options.addOption(rotatePrivateSaltsOpt);
+
+    // Parameters for --generateBatch
+    Option batchFileOpt = new Option("bf", "batchFile", true, "CSV file listing the project name and site file for each project to create");
+    batchFileOpt.setRequired(false);
+    options.addOption(batchFileOpt);
+
+    // Parameters for --watchFolder
+    Option quietPeriodOpt = new Option("quiet", "quietPeriod", true, "How long the watched folder must be quiet before a batch is processed, in milliseconds");
+    quietPeriodOpt.setRequired(false);
+    options.addOption(quietPeriodOpt);
+
+    // Parameters for --serve
+    Option portOpt = new Option("port", "port", true, "The port the service listens on");
+    portOpt.setRequired(false);
+    options.addOption(portOpt);
+
+    Option jobThreadsOpt = new Option("jobs", "jobThreads", true, "The number of jobs the service runs at the same time");
+    jobThreadsOpt.setRequired(false);
+    options.addOption(jobThreadsOpt);
+
+    Option queueSizeOpt = new Option("queue", "queueSize", true, "The number of jobs that may wait to run before new jobs are rejected");
+    queueSizeOpt.setRequired(false);
+    options.addOption(queueSizeOpt);
+
+    Option accessTokenFileOpt = new Option("atf", "accessTokenFile", true, "A file holding the access token that every request must carry");
+    accessTokenFileOpt.setRequired(false);
+    options.addOption(accessTokenFileOpt);
+
+    Option baseDirectoryOpt = new Option("base", "baseDirectory", true, "The directory that every file a job reads or writes must be in");
+    baseDirectoryOpt.setRequired(false);
+    options.addOption(baseDirectoryOpt);
+
+    Option maxThreadsOpt = new Option("maxt", "maxThreads", true, "The largest number of worker threads a single job may use");
+    maxThreadsOpt.setRequired(false);
+    options.addOption(maxThreadsOpt);
+
     return options;
   }
 
@@ -125,18 +719,108 @@ public class Runner {
    */
   public static void displayUsage() {
     System.out.println();
-    System.out.println("Usage: java -jar SaltEngine.jar [--generateProject | --addSites | --version]");
+    System.out.println("Usage: java -jar SaltEngine.jar [--generateProject | --addSites | --rotateProject | --verify |");
+    System.out.println("                               --prepareShards | --generateShard | --mergeShards | --generateBatch |");
+    System.out.println("                               --watchFolder <arg> | --validateOnly | --serve | --version]");
     System.out.println();
     System.out.println("GENERATE PROJECT");
     System.out.println("-------------");
     System.out.println("Required parameters:");
     System.out.println("  -sf,--siteFile <arg>              The path to a file containing the site definitions");
+    System.out.println("                                    (may be gzip compressed, or - for standard input)");
     System.out.println("  -pn,--projectName <arg>           The name of the project to create");
     System.out.println();
     System.out.println("ADD SITES");
     System.out.println("-------------");
     System.out.println("Required parameters:");
     System.out.println("  -sf,--siteFile <arg>              The path to a file containing the site definitions");
+    System.out.println("                                    (may be gzip compressed, or - for standard input)");
     System.out.println("  -salt,--saltFile <arg>            The path to your encrypted salt file for the existing project");
+    System.out.println("Optional parameters:");
+    System.out.println("  -pd,--projectDirectory <arg>      The directory that holds the manifest of the project (default: that of the salt file)");
+    System.out.println();
+    System.out.println("ROTATE PROJECT");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -pd,--projectDirectory <arg>      The directory that holds the salt files of the project");
+    System.out.println("  -pn,--projectName <arg>           The name of the project to rotate");
+    System.out.println("Optional parameters:");
+    System.out.println("  -rps,--rotatePrivateSalts         Also give every site a new private salt (by default they are kept)");
+    System.out.println();
+    System.out.println("PREPARE SHARDS");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -pn,--projectName <arg>           The name of the project to create");
+    System.out.println("  -salt,--saltFile <arg>            The project token file to create, which is shared by every shard");
+    System.out.println();
+    System.out.println("GENERATE SHARD");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -sf,--siteFile <arg>              The path to a file containing the site definitions (the same for every shard)");
+    System.out.println("  -salt,--saltFile <arg>            The project token file created by --prepareShards");
+    System.out.println("  -si,--shardIndex <arg>            The shard to generate, from 0 to the number of shards - 1");
+    System.out.println("  -sc,--shardCount <arg>            The total number of shards");
+    System.out.println();
+    System.out.println("MERGE SHARDS");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -sf,--siteFile <arg>              The path to a file containing the site definitions");
+    System.out.println("  -salt,--saltFile <arg>            The project token file created by --prepareShards");
+    System.out.println("  -sc,--shardCount <arg>            The total number of shards");
+    System.out.println();
+    System.out.println("VERIFY");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -pd,--projectDirectory <arg>      The directory that holds the salt files of the project");
+    System.out.println("  -pn,--projectName <arg>           The name of the project to verify");
+    System.out.println();
+    System.out.println("GENERATE BATCH");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -bf,--batchFile <arg>             The path to a CSV file with the project name and site file for each project");
+    System.out.println();
+    System.out.println("VALIDATE ONLY");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -sf,--siteFile <arg>              The path to a file containing the site definitions");
+    System.out.println("Optional parameters:");
+    System.out.println("  -pn,--projectName <arg>           Also report salt files for the project that already exist");
+    System.out.println("  -zip,--archiveFile <arg>          Also report if this archive already exists");
+    System.out.println();
+    System.out.println("WATCH FOLDER");
+    System.out.println("-------------");
+    System.out.println("Required parameters:");
+    System.out.println("  -watch,--watchFolder <arg>        The folder that new site files (*.csv or *.csv.gz) are dropped into");
+    System.out.println("  -salt,--saltFile <arg>            The path to your encrypted salt file for the existing project");
+    System.out.println("Optional parameters:");
+    System.out.println("  -pd,--projectDirectory <arg>      The directory the salt files are written to (default: that of the salt file)");
+    System.out.printf("  -quiet,--quietPeriod <arg>        How long the folder must be quiet before a batch is processed (default %d ms)\n",
+            SiteFolderWatcher.DEFAULT_QUIET_PERIOD_MILLIS);
+    System.out.println();
+    System.out.println("SERVE");
+    System.out.println("-------------");
+    System.out.println("Optional parameters:");
+    System.out.printf("  -port,--port <arg>                The port the service listens on (default %d)\n", SaltService.DEFAULT_PORT);
+    System.out.printf("  -jobs,--jobThreads <arg>          The number of jobs the service runs at the same time (default %d)\n", SaltService.DEFAULT_JOB_THREADS);
+    System.out.printf("  -queue,--queueSize <arg>          The number of jobs that may wait to run (default %d)\n", SaltService.DEFAULT_QUEUE_SIZE);
+    System.out.println("  -atf,--accessTokenFile <arg>      A file holding the access token that every request must carry (default: a");
+    System.out.println("                                    new token is created and displayed)");
+    System.out.println("  -base,--baseDirectory <arg>       The directory that every file a job reads or writes must be in (default: the");
+    System.out.println("                                    current directory)");
+    System.out.println("  -maxt,--maxThreads <arg>          The largest number of worker threads a single job may use (default: the");
+    System.out.println("                                    number of processors)");
+    System.out.println();
+    System.out.println("OPTIONAL PARAMETERS");
+    System.out.println("-------------");
+    System.out.println("  -t,--threads <arg>                The number of worker threads used to create salt files (default 1)");
+    System.out.println("  -stream,--streamSites             Validate and process sites as the site file is read, instead of loading it first");
+    System.out.println("  -zip,--archiveFile <arg>          Write all of the salt files into this zip archive instead of separate files");
+    System.out.println("  -ts,--tokenSource <arg>           Where tokens come from: native (the default), java, or auto (native if it");
+    System.out.println("                                    can be loaded, otherwise java)");
+    System.out.println("  -roots,--outputRoots <arg>        Spread the salt files across these directories (separated by commas), instead");
+    System.out.println("                                    of writing them next to the site file");
+    System.out.println("  -stripe,--striping <arg>          How salt files are assigned to the output directories: hash (the default,");
+    System.out.println("                                    by site ID) or roundRobin");
+    System.out.println("  -mf,--metricsFile <arg>           Write the timings and counters for the run to this JSON file");
   }
 }
@@ -1,16 +1,19 @@
 package org.linkja.saltengine;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.linkja.core.*;
-import org.linkja.crypto.Library;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Phaser;
+import java.util.function.Predicate;
 
 public class SaltEngine {
   public static final char SITE_FILE_DELIMITER = ',';
@@ -24,6 +27,21 @@ public class SaltEngine {
   public static final int SITE_ID_INDEX = 0;
   public static final int SITE_NAME_INDEX = 1;
 
+  public static final int DEFAULT_THREAD_COUNT = 1;
+
+  // How many sites may be waiting for each worker thread.  This bounds the number of sites in flight when sites are
+  // streamed from the site file faster than their salt files can be written.
+  public static final int MAX_QUEUED_SITES_PER_THREAD = 4;
+
+  // Only this many failed sites are listed when a run fails, although all of them are counted
+  public static final int MAXIMUM_REPORTED_FAILURES = 1000;
+
+  // Suffix used for salt files while they are being written, before they are moved to their final name
+  public static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  // The site ID in a project token file, which carries the project token to every shard of a project
+  public static final String PROJECT_TOKEN_SITE_ID = "__project_token__";
+
   // Used across all modes
   private File sitesFile;
 
@@ -33,6 +51,42 @@ public class SaltEngine {
   // Used for adding sites to an existing project
   private File saltFile;
 
+  // If set, only the sites in this shard are processed
+  private Shard shard;
+
+  // Used for rotating the project token of an existing project
+  private File projectDirectory;
+  private boolean rotatePrivateSalts = false;
+
+  // If set, all salt files are written into this zip archive instead of as separate files
+  private File archiveFile;
+
+  // If set, the salt files are spread across these directories instead of being written next to the site file
+  private List<File> outputRoots;
+  private StripedOutput.Striping striping = StripedOutput.Striping.HASH;
+
+  // Number of worker threads used to generate the per-site salt files
+  private int threadCount = DEFAULT_THREAD_COUNT;
+
+  // If true, sites are validated and processed as they are read from the site file instead of being loaded first
+  private boolean streamSites = false;
+
+  // Optional listener that is told about each salt file as it is committed
+  private SaltFileListener saltFileListener;
+
+  // Timings and counters for the most recent (or current) run
+  private volatile RunMetrics metrics = new RunMetrics();
+
+  // Where tokens come from (the native library, unless another source is chosen)
+  private TokenSource tokenSource = new NativeTokenSource();
+
+  // Sources of tokens for bulk generation, so we don't cross into the token source for every token.  Each thread has
+  // its own pool, so the save threads refill their pools at the same time instead of waiting for each other.
+  private ThreadLocal<TokenPool> tokenPools = createTokenPools(tokenSource);
+
+  // Reusable buffers for the private tokens, which are wiped once each salt file has been saved
+  private TokenBufferPool tokenBufferPool = new TokenBufferPool();
+
   private FileHelper fileHelper;
 
   public SaltEngine() {
@@ -63,8 +117,12 @@ public class SaltEngine {
     return sitesFile;
   }
 
+  /**
+   * @param sitesFile The site file, which may be gzip compressed, or "-" to read the sites from standard input
+   * @throws FileNotFoundException
+   */
   public void setSitesFile(File sitesFile) throws FileNotFoundException {
-    if (!fileHelper.exists(sitesFile)) {
+    if (!SiteFileReader.isStandardInput(sitesFile) && !fileHelper.exists(sitesFile)) {
       throw new FileNotFoundException(String.format("Unable to find site configuration file %s", sitesFile.toString()));
     }
     this.sitesFile = sitesFile;
@@ -91,43 +149,1297 @@ public class SaltEngine {
     setSaltFile(file);
   }
 
+  public Shard getShard() {
+    return shard;
+  }
+
+  /**
+   * Only create the salt files for the sites in one shard of the project.  All shards must use the same site file
+   * and the same project token file (see createProjectTokenFile).
+   * @param shard The shard, or null to process every site (the default)
+   */
+  public void setShard(Shard shard) {
+    this.shard = shard;
+  }
+
+  public File getProjectDirectory() {
+    return projectDirectory;
+  }
+
+  /**
+   * @param projectDirectory The directory that holds the salt files of the project to rotate, or the manifest and
+   *                         site index of the project that addSites adds to (by default, the directory of the salt
+   *                         file)
+   * @throws FileNotFoundException
+   */
+  public void setProjectDirectory(File projectDirectory) throws FileNotFoundException {
+    if (!fileHelper.exists(projectDirectory) || !projectDirectory.isDirectory()) {
+      throw new FileNotFoundException(String.format("Unable to find the project directory %s", projectDirectory.toString()));
+    }
+    this.projectDirectory = projectDirectory;
+  }
+
+  public void setProjectDirectory(String projectDirectory) throws FileNotFoundException {
+    setProjectDirectory(new File(projectDirectory));
+  }
+
+  public boolean isRotatePrivateSalts() {
+    return rotatePrivateSalts;
+  }
+
+  /**
+   * Controls whether rotateProject also gives every site a new private salt.  By default, each site keeps its
+   * private salt, and only the project token is replaced.
+   * @param rotatePrivateSalts
+   */
+  public void setRotatePrivateSalts(boolean rotatePrivateSalts) {
+    this.rotatePrivateSalts = rotatePrivateSalts;
+  }
+
+  public File getArchiveFile() {
+    return archiveFile;
+  }
+
+  /**
+   * Write all of the salt files into a single zip archive, instead of writing a separate file for each site next to
+   * the site file.  Each entry in the archive has the same name the salt file would otherwise have.  If the archive
+   * already exists, it is replaced.
+   * @param archiveFile The archive to create, or null to write separate salt files (the default)
+   */
+  public void setArchiveFile(File archiveFile) {
+    this.archiveFile = archiveFile;
+  }
+
+  public void setArchiveFile(String archiveFile) {
+    setArchiveFile(archiveFile == null ? null : new File(archiveFile));
+  }
+
+  public List<File> getOutputRoots() {
+    return outputRoots;
+  }
+
+  /**
+   * Spread the salt files across several directories (for example, on different disks), instead of writing them all
+   * next to the site file.  The manifest, site index and an index of where each salt file went are still kept next to
+   * the site file.
+   * @param outputRoots The directories, or null to write the salt files next to the site file (the default)
+   * @throws FileNotFoundException If one of the directories doesn't exist
+   */
+  public void setOutputRoots(List<File> outputRoots) throws FileNotFoundException {
+    if (outputRoots != null) {
+      for (File outputRoot : outputRoots) {
+        if (!fileHelper.exists(outputRoot) || !outputRoot.isDirectory()) {
+          throw new FileNotFoundException(String.format("Unable to find the output directory %s", outputRoot.toString()));
+        }
+      }
+    }
+    this.outputRoots = (outputRoots == null || outputRoots.isEmpty() ? null : new ArrayList<File>(outputRoots));
+  }
+
+  public StripedOutput.Striping getStriping() {
+    return striping;
+  }
+
+  /**
+   * @param striping How salt files are assigned to the output directories, when there are several
+   */
+  public void setStriping(StripedOutput.Striping striping) {
+    this.striping = striping;
+  }
+
+  /**
+   * @param striping "roundRobin" or "hash"
+   * @throws LinkjaException If the name is not recognized
+   */
+  public void setStriping(String striping) throws LinkjaException {
+    if ("roundRobin".equalsIgnoreCase(striping)) {
+      setStriping(StripedOutput.Striping.ROUND_ROBIN);
+    }
+    else if ("hash".equalsIgnoreCase(striping)) {
+      setStriping(StripedOutput.Striping.HASH);
+    }
+    else {
+      throw new LinkjaException(String.format("The striping must be either 'roundRobin' or 'hash', but '%s' was requested.", striping));
+    }
+  }
+
+  public SaltFileListener getSaltFileListener() {
+    return saltFileListener;
+  }
+
+  /**
+   * Register a listener that is told about each salt file as soon as it has been committed
+   * @param saltFileListener The listener, or null to remove it
+   */
+  public void setSaltFileListener(SaltFileListener saltFileListener) {
+    this.saltFileListener = saltFileListener;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) throws LinkjaException {
+    if (threadCount < 1) {
+      throw new LinkjaException(String.format("The number of threads must be at least 1, but %d was requested.", threadCount));
+    }
+
+    this.threadCount = threadCount;
+  }
+
+  public boolean isStreamSites() {
+    return streamSites;
+  }
+
+  /**
+   * Controls whether sites are streamed from the site file.  When streaming, each site is validated and handed off to
+   * be processed as soon as it is read, so the sites themselves are never all held in memory.  Memory use still grows
+   * with the number of sites, but much more slowly: a fingerprint of each site ID and name is kept, and so is the
+   * manifest's entry for each committed salt file.  The trade-off is that
+   * a problem found late in the site file (e.g., a duplicate site ID) is only reported after the salt files for the
+   * sites before it have been written.
+   * @param streamSites
+   */
+  public void setStreamSites(boolean streamSites) {
+    this.streamSites = streamSites;
+  }
+
+  public TokenSource getTokenSource() {
+    return tokenSource;
+  }
+
+  /**
+   * Choose where tokens come from.  Any tokens left in the pools from the previous source are discarded.
+   * @param tokenSource The token source
+   */
+  public void setTokenSource(TokenSource tokenSource) {
+    this.tokenSource = tokenSource;
+    this.tokenPools = createTokenPools(tokenSource);
+  }
+
+  private static ThreadLocal<TokenPool> createTokenPools(TokenSource tokenSource) {
+    return ThreadLocal.withInitial(() -> new TokenPool(tokenSource));
+  }
+
+  /**
+   * @param tokenSource The name of the token source (see {@link TokenSource#create(String)})
+   * @throws LinkjaException If the name is not recognized
+   */
+  public void setTokenSource(String tokenSource) throws LinkjaException {
+    setTokenSource(TokenSource.create(tokenSource));
+  }
+
+  /**
+   * Get the timings and counters for the most recent run of generate() or addSites().  If a run is in progress, the
+   * metrics collected so far are returned.
+   * @return
+   */
+  public RunMetrics getMetrics() {
+    return metrics;
+  }
+
   /**
    * Generate the salts for the configured sites
    */
   public void generate() throws Exception {
-    Path parentPath = getSiteFileParentPath();
-    List<Site> sites = loadSites(this.sitesFile);
-    validateSites(sites);
-    String projectToken = generateToken();
-    for (Site site : sites) {
-      generateSaltFile(site, generateToken(), projectToken, this.projectName, parentPath);
+    awaitResults(publishGenerate(Runnable::run));
+  }
+
+  /**
+   * Generate the salts for the configured sites, publishing the result for each site as its salt file is committed
+   * (or fails).  The run starts when the publisher is subscribed to, and is run by the executor.  Once every site
+   * has been processed, the subscriber receives onComplete, or onError with the failures, as generate() would
+   * have thrown.
+   * @param executor Runs the run once it is subscribed to (Runnable::run runs it in the subscribing thread)
+   * @return The publisher for the results, which can only be subscribed to once
+   */
+  public SaltFileFlow.Publisher<SaltFileResult> publishGenerate(Executor executor) {
+    return new SaltFileResultPublisher(executor, this::generate);
+  }
+
+  private void generate(SaltFileResultPublisher.Emitter results) throws Exception {
+    if (this.shard != null) {
+      throw new LinkjaException("Every shard of a project must share the same project token.  Create it with createProjectTokenFile, and then use generateShard.");
+    }
+
+    metrics = new RunMetrics();
+    try {
+      SiteSource sites = getSiteSource();
+      ProjectRun run = openProjectRun(this.projectName, null, getSiteFileParentPath());
+      run.results = results;
+      runToCompletion(sites, run);
+    }
+    finally {
+      metrics.finish();
     }
   }
 
   public void addSites() throws Exception {
-    Path parentPath = getSiteFileParentPath();
-    List<Site> sites = loadSites(this.sitesFile);
-    validateSites(sites);
+    awaitResults(publishAddSites(Runnable::run));
+  }
+
+  /**
+   * Add the configured sites to an existing project, publishing the result for each site as its salt file is
+   * committed (or fails).  See publishGenerate.
+   * @param executor Runs the run once it is subscribed to (Runnable::run runs it in the subscribing thread)
+   * @return The publisher for the results, which can only be subscribed to once
+   */
+  public SaltFileFlow.Publisher<SaltFileResult> publishAddSites(Executor executor) {
+    return new SaltFileResultPublisher(executor, this::addSites);
+  }
+
+  private void addSites(SaltFileResultPublisher.Emitter results) throws Exception {
+    metrics = new RunMetrics();
+    try {
+      addToProject(getSiteSource(), results);
+    }
+    finally {
+      metrics.finish();
+    }
+  }
+
+  /**
+   * Add sites that were already loaded to the existing project, instead of reading them from the site file
+   * @param sites The sites to add, which are validated together before any salt files are created
+   * @throws Exception
+   */
+  void addSites(List<Site> sites) throws Exception {
+    metrics = new RunMetrics();
+    try {
+      metrics.addSitesLoaded(sites.size());
+      long startTime = System.nanoTime();
+      validateSites(sites);
+      metrics.addPhaseTime(RunMetrics.Phase.VALIDATE_SITES, System.nanoTime() - startTime);
+      addToProject(listSource(sites), null);
+    }
+    finally {
+      metrics.finish();
+    }
+  }
 
+  private void addToProject(SiteSource sites, SaltFileResultPublisher.Emitter results) throws Exception {
     SaltFile existingFile = new SaltFile();
     existingFile.load(this.saltFile);
-    String projectToken = existingFile.getProjectSalt();
-    String projectName = existingFile.getProjectName();
+    ProjectRun run = openProjectRun(existingFile.getProjectName(), existingFile.getProjectSalt(), getExistingProjectPath());
+    run.results = results;
+    runToCompletion(checkNewSites(sites, run), run);
+  }
+
+  /**
+   * Subscribe to a run, taking every result as it comes, and wait for the run to finish
+   * @throws Exception If the run failed (anything other than an Exception or Error is wrapped in an ExecutionException)
+   */
+  private static void awaitResults(SaltFileFlow.Publisher<SaltFileResult> publisher) throws Exception {
+    Throwable[] error = { null };
+    CountDownLatch finished = new CountDownLatch(1);
+    publisher.subscribe(new SaltFileFlow.Subscriber<SaltFileResult>() {
+      @Override
+      public void onSubscribe(SaltFileFlow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(SaltFileResult result) {
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        error[0] = throwable;
+        finished.countDown();
+      }
 
-    for (Site site : sites) {
-      generateSaltFile(site, generateToken(), projectToken, projectName, parentPath);
+      @Override
+      public void onComplete() {
+        finished.countDown();
+      }
+    });
+
+    finished.await();
+    if (error[0] instanceof Exception) {
+      throw (Exception)error[0];
+    }
+    if (error[0] instanceof Error) {
+      throw (Error)error[0];
+    }
+    if (error[0] != null) {
+      throw new ExecutionException(error[0]);
+    }
+  }
+
+  /**
+   * Generate the salts for the configured shard of a project, using the project name and project token from the
+   * configured salt file (usually one created by createProjectTokenFile).  Several processes, each with a different
+   * shard, can write to the same directory at the same time.  Each shard keeps its own manifest, so an interrupted
+   * shard can be run again on its own.
+   * @throws Exception
+   */
+  public void generateShard() throws Exception {
+    if (this.shard == null) {
+      throw new LinkjaException("Please specify the shard to generate");
+    }
+    if (this.saltFile == null) {
+      throw new LinkjaException("Please specify the project token file that is shared by all of the shards");
     }
+
+    addSites();
   }
 
-  private void generateSaltFile(Site site, String privateToken, String projectToken, String projectName, Path parentPath) throws Exception {
+  /**
+   * Create a file that carries a new project token for the configured project to every shard.  It is an ordinary
+   * (encrypted) salt file, for a placeholder site that is never part of the project.
+   * @param tokenFile The file to create, which must not exist yet
+   * @throws Exception
+   */
+  public void createProjectTokenFile(File tokenFile) throws Exception {
+    if (this.projectName == null) {
+      throw new LinkjaException("Please specify the name of the project");
+    }
+    if (tokenFile.exists()) {
+      throw new LinkjaException(String.format("The project token file %s already exists.  Every shard must use the same project token, so it will not be replaced.",
+              tokenFile.toString()));
+    }
+
     SaltFile file = new SaltFile();
-    file.setSite(site);
-    file.setPrivateSalt(privateToken);
-    file.setProjectSalt(projectToken);
-    file.setProjectName(projectName);
+    file.setSite(new Site(PROJECT_TOKEN_SITE_ID, this.projectName));
+    file.setProjectName(this.projectName);
+    List<String> tokens = generateTokens(2, DEFAULT_TOKEN_LENGTH);
+    file.setProjectSalt(tokens.get(0));
+    file.setPrivateSalt(tokens.get(1));
+    file.save(tokenFile);
+  }
+
+  /**
+   * Replace the project token of an existing project.  Every salt file for the project in the project directory is
+   * loaded, and a new salt file is written for each site with a new project token (and, if requested, a new private
+   * salt).  The new salt files are written to a staging directory first, so if any of them fail the project is left
+   * as it was.  Once all of them are complete, they replace the previous salt files and manifest.
+   * @throws Exception
+   */
+  public void rotateProject() throws Exception {
+    metrics = new RunMetrics();
+    Path stagingDirectory = null;
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(this.projectDirectory.toPath(), this.projectName);
+    ProjectLock lock = ProjectLock.acquire(OutputManifest.getManifestPath(this.projectDirectory.toPath(), this.projectName));
+    try {
+      // The new salt files are swapped in from a staging directory next to the old ones, which only works when they
+      // are all in the project directory
+      if (projectFiles.isStriped()) {
+        throw new LinkjaException(String.format("The salt files for the project '%s' are spread across several output directories (see %s), so it can't be rotated in place",
+                this.projectName, OutputManifest.getLocationIndexPath(this.projectDirectory.toPath(), this.projectName).toString()));
+      }
+
+      long startTime = System.nanoTime();
+      List<Path> files = projectFiles.find();
+      List<SaltFile> existingFiles = projectFiles.load(files, this.threadCount);
+      metrics.addPhaseTime(RunMetrics.Phase.LOAD_SITES, System.nanoTime() - startTime);
+      metrics.addSitesLoaded(existingFiles.size());
+
+      List<Site> sites = new ArrayList<Site>(existingFiles.size());
+      Map<String, String> privateSalts = new HashMap<String, String>();
+      for (SaltFile existingFile : existingFiles) {
+        sites.add(existingFile.getSite());
+        privateSalts.put(existingFile.getSite().getSiteID(), existingFile.getPrivateSalt());
+      }
+
+      String previousToken = existingFiles.get(0).getProjectSalt();
+      String projectToken = generateTokens(1, DEFAULT_TOKEN_LENGTH).get(0);
+      while (projectToken.equals(previousToken)) {
+        projectToken = generateTokens(1, DEFAULT_TOKEN_LENGTH).get(0);
+      }
+
+      // The staged salt files are only announced to the listener once they have replaced the previous ones
+      stagingDirectory = projectFiles.createStagingDirectory();
+      ProjectRun run = new ProjectRun(this.projectName, projectToken, new DirectoryOutput(stagingDirectory),
+              OutputManifest.open(stagingDirectory, this.projectName), null);
+      run.keptPrivateSalts = (this.rotatePrivateSalts ? null : privateSalts);
+      runToCompletion(listSource(sites), run);
+
+      startTime = System.nanoTime();
+      List<String> fileNames = new ArrayList<String>(files.size() + 1);
+      for (Path file : files) {
+        fileNames.add(file.getFileName().toString());
+      }
+      // The manifest goes last, so it never lists salt files that have not been replaced yet
+      fileNames.add(run.manifest.getManifestFile().getFileName().toString());
+      projectFiles.replace(stagingDirectory, fileNames);
+      metrics.addPhaseTime(RunMetrics.Phase.COMMIT_FILES, System.nanoTime() - startTime);
+
+      if (saltFileListener != null) {
+        for (int index = 0; index < sites.size(); index++) {
+          saltFileListener.saltFileCommitted(sites.get(index), files.get(index).toString());
+        }
+      }
+    }
+    finally {
+      ProjectSaltFiles.deleteDirectory(stagingDirectory);
+      lock.close();
+      metrics.finish();
+    }
+  }
+
+  /**
+   * Start generating the salts for the configured project, from sites that were already loaded and validated.  The
+   * salt files are created by a pipeline that may be shared with other projects.  This returns as soon as every
+   * site has been handed off to the pipeline - use finishGenerate to wait for the salt files to be written.
+   * @param sites The sites to create salt files for
+   * @param pipeline The pipeline that creates the salt files
+   * @return The run, which must be passed to finishGenerate
+   * @throws Exception
+   */
+  ProjectRun startGenerate(List<Site> sites, SaltFilePipeline pipeline) throws Exception {
+    metrics = new RunMetrics();
+    metrics.addSitesLoaded(sites.size());
+    ProjectRun run = null;
+    try {
+      run = openProjectRun(this.projectName, null, getSiteFileParentPath());
+      submitSaltFiles(listSource(sites), run, pipeline);
+      return run;
+    }
+    catch (Exception e) {
+      if (run != null) {
+        completeRun(run, false);
+      }
+      metrics.finish();
+      throw e;
+    }
+  }
+
+  /**
+   * Wait for the salt files of a run started by startGenerate to be written, and close its output
+   * @param run The run returned by startGenerate
+   * @throws Exception If any of the salt files could not be created
+   */
+  void finishGenerate(ProjectRun run) throws Exception {
+    try {
+      completeRun(run, true);
+    }
+    finally {
+      metrics.finish();
+    }
+    run.throwIfFailed();
+  }
+
+  /**
+   * Create the salt files for a project using a pipeline that only exists for this run
+   */
+  private void runToCompletion(SiteSource sites, ProjectRun run) throws Exception {
+    boolean completed = false;
+    try {
+      try (SaltFilePipeline pipeline = new SaltFilePipeline(this.threadCount)) {
+        // Closing the pipeline waits for all of the sites that were handed off, whether or not all of them were read
+        submitSaltFiles(sites, run, pipeline);
+      }
+      completed = true;
+    }
+    finally {
+      run.close(completed);
+    }
+    run.throwIfFailed();
+  }
+
+  /**
+   * Wait for the pipeline to finish with a run, and then close its output
+   * @param run The run
+   * @param submitted true if every site was handed off to the pipeline
+   */
+  private void completeRun(ProjectRun run, boolean submitted) throws Exception {
+    boolean completed = false;
+    try {
+      run.awaitCompletion();
+      completed = submitted;
+    }
+    finally {
+      run.close(completed);
+    }
+  }
+
+  /**
+   * Check that the archive, output directories and shard settings can be used together, before anything is written
+   * @throws LinkjaException If they can't
+   */
+  private void checkOutputSettings() throws LinkjaException {
+    if (this.outputRoots != null && this.archiveFile != null) {
+      throw new LinkjaException("Salt files can either be written into an archive or spread across output directories, but not both");
+    }
+    if (this.outputRoots != null && this.shard != null) {
+      throw new LinkjaException("The salt files for each shard are written next to the site file, so output directories can't be used with shards");
+    }
+    if (this.archiveFile != null && this.shard != null) {
+      throw new LinkjaException("The salt files for each shard are written as separate files, so an archive can't be used with shards");
+    }
+  }
+
+  /**
+   * Create the destination for the salt files - either the archive, if one was requested, or the project directory.
+   * @param projectPath The project directory
+   * @return
+   * @throws Exception
+   */
+  private SaltFileOutput createOutput(Path projectPath) throws Exception {
+    if (this.outputRoots != null) {
+      List<Path> roots = new ArrayList<Path>(this.outputRoots.size());
+      for (File outputRoot : this.outputRoots) {
+        roots.add(outputRoot.toPath());
+      }
+      return new StripedOutput(roots, this.striping);
+    }
+    if (this.archiveFile != null) {
+      return new ZipArchiveOutput(this.archiveFile.toPath());
+    }
+
+    return new DirectoryOutput(projectPath);
+  }
+
+  /**
+   * Open the output and manifest for a project
+   * @param projectName The name of the project
+   * @param projectToken The project token, or null to reuse the one from an earlier run that was interrupted (or,
+   *                     if there was none, generate a new one)
+   * @param projectPath The directory that holds the manifest and site index (and, by default, the salt files)
+   * @return
+   * @throws Exception
+   */
+  private ProjectRun openProjectRun(String projectName, String projectToken, Path projectPath) throws Exception {
+    checkOutputSettings();
+    // The lock is held until the run is closed, so no other run can use the same manifest or archive in the meantime
+    ProjectLock lock = ProjectLock.acquire(this.archiveFile != null ? this.archiveFile.toPath() : getManifestPath(projectName, projectPath));
+    SaltFileOutput output = null;
+    OutputManifest manifest = null;
+    SiteIndex siteIndex = null;
+    try {
+      output = createOutput(projectPath);
+      manifest = openManifest(projectName, projectPath);
+      if (projectToken == null) {
+        // If an earlier run for this project already created some of the salt files, we need to keep using the same
+        // project token.
+        projectToken = getResumedProjectToken(manifest, output, projectName);
+      }
+      if (projectToken == null) {
+        projectToken = generateTokens(1, DEFAULT_TOKEN_LENGTH).get(0);
+      }
+      // Shards run in separate processes, so they can't share an index.  It is built from the salt files the first
+      // time sites are added to the merged project.
+      if (manifest != null && this.shard == null) {
+        siteIndex = openSiteIndex(manifest, output, projectName);
+      }
+      ProjectRun run = new ProjectRun(projectName, projectToken, output, manifest, saltFileListener);
+      run.lock = lock;
+      run.siteIndex = siteIndex;
+      if (manifest != null && this.outputRoots != null) {
+        run.locationIndexFile = OutputManifest.getLocationIndexPath(projectPath, projectName);
+      }
+      return run;
+    }
+    catch (Exception e) {
+      try {
+        if (siteIndex != null) {
+          siteIndex.close();
+        }
+        if (manifest != null) {
+          manifest.close();
+        }
+      }
+      finally {
+        try {
+          if (output != null) {
+            output.abort();
+          }
+        }
+        finally {
+          lock.close();
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Open the index of the sites in a project.  If there is no index yet (e.g., for a project created before indexes
+   * were kept), or it is missing sites that the manifest shows were committed, it is rebuilt from the salt files.
+   * @param manifest The manifest for the project
+   * @param output Where the salt files are
+   * @param projectName The name of the project
+   * @return The index
+   * @throws Exception
+   */
+  private SiteIndex openSiteIndex(OutputManifest manifest, SaltFileOutput output, String projectName) throws Exception {
+    Path directory = manifest.getManifestFile().toAbsolutePath().getParent();
+    SiteIndex siteIndex = null;
+    try {
+      siteIndex = SiteIndex.open(directory, projectName);
+      if (siteIndex.size() >= manifest.getCommittedCount()) {
+        return siteIndex;
+      }
+      siteIndex.close();
+    }
+    catch (IOException e) {
+      // An index that can't be read is simply rebuilt
+      if (siteIndex != null) {
+        siteIndex.close();
+      }
+    }
+
+    Files.deleteIfExists(SiteIndex.getIndexPath(directory, projectName));
+    siteIndex = SiteIndex.open(directory, projectName);
+    try {
+      List<Path> files = new ArrayList<Path>();
+      for (String fileName : manifest.getCommittedFileNames()) {
+        Path committedFile = output.findCommitted(fileName);
+        files.add(committedFile != null ? committedFile : directory.resolve(fileName));
+      }
+      if (files.size() > 0) {
+        for (SaltFile existingFile : new ProjectSaltFiles(directory, projectName).load(files, this.threadCount)) {
+          siteIndex.add(existingFile.getSite());
+        }
+      }
+      return siteIndex;
+    }
+    catch (Exception e) {
+      siteIndex.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Wrap the new sites for addSites, so that each one is checked against the sites that are already in the project.
+   * Unless we are streaming, every site is checked before any salt files are created.
+   * @param sites The new sites
+   * @param run The project the sites are being added to
+   * @return The checked sites
+   */
+  private SiteSource checkNewSites(SiteSource sites, ProjectRun run) {
+    if (run.siteIndex == null) {
+      return sites;
+    }
+
+    return (handler) -> {
+      if (!this.streamSites) {
+        long startTime = System.nanoTime();
+        sites.forEach((site, rowNumber) -> checkNotInProject(site, run));
+        metrics.addPhaseTime(RunMetrics.Phase.VALIDATE_SITES, System.nanoTime() - startTime);
+        return sites.forEach(handler);
+      }
+
+      return sites.forEach((site, rowNumber) -> {
+        checkNotInProject(site, run);
+        handler.handleSite(site, rowNumber);
+      });
+    };
+  }
+
+  /**
+   * Check that a new site doesn't use the ID or name of a different site that is already in the project.  The index
+   * rules out almost every site straight away; a possible match is confirmed by loading the matching salt file.
+   * Adding a site that is already in the project with the same ID and name is allowed, so addSites can be run again.
+   * @param site The new site
+   * @param run The project the site is being added to
+   * @throws LinkjaException If the site collides with an existing site
+   */
+  private void checkNotInProject(Site site, ProjectRun run) throws LinkjaException {
+    if (run.siteIndex.mayContainID(site.getSiteID())) {
+      String existingName = findProjectSiteName(run, site.getSiteID());
+      if (existingName != null) {
+        if (existingName.equals(site.getSiteName())) {
+          return;
+        }
+        throw new LinkjaException(String.format("The site ID '%s' is already used in the project, for the site '%s'.",
+                site.getSiteID(), existingName));
+      }
+    }
+
+    if (run.siteIndex.mayContainName(site.getSiteName())) {
+      String existingID = findProjectSiteID(run, site.getSiteName());
+      if (existingID != null) {
+        throw new LinkjaException(String.format("The site name '%s' is already used in the project, by the site '%s'.",
+                site.getSiteName(), existingID));
+      }
+    }
+  }
+
+  /**
+   * @return The name of the site in the project with this ID, or null if there is none
+   */
+  private static String findProjectSiteName(ProjectRun run, String siteID) throws LinkjaException {
+    SaltFile existingFile = new SaltFile();
+    Path file = run.output.findCommitted(existingFile.getSaltFileName(run.projectName, siteID));
+    if (file == null) {
+      return null;
+    }
+
+    try {
+      existingFile.load(file.toFile());
+    }
+    catch (Exception e) {
+      throw new LinkjaException(String.format("The site ID '%s' may already be in the project, but its salt file %s could not be loaded (%s).",
+              siteID, file.toString(), e.getMessage()));
+    }
+    return siteID.equals(existingFile.getSite().getSiteID()) ? existingFile.getSite().getSiteName() : null;
+  }
+
+  /**
+   * Find the site in the project with this name.  The index holds the ID of the site with each name, so this usually
+   * only has to load one salt file.
+   * @return The ID of the site in the project with this name, or null if there is none
+   */
+  private static String findProjectSiteID(ProjectRun run, String siteName) {
+    for (String siteID : run.siteIndex.findSiteIDs(siteName, run.manifest.getCommittedSiteIDs())) {
+      SaltFile existingFile = new SaltFile();
+      Path file = run.output.findCommitted(run.manifest.getCommittedFileName(siteID));
+      if (file == null) {
+        continue;
+      }
+      try {
+        existingFile.load(file.toFile());
+      }
+      catch (Exception e) {
+        continue;
+      }
+      if (siteName.equals(existingFile.getSite().getSiteName())) {
+        return existingFile.getSite().getSiteID();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Provides the sites to process, one at a time, to a handler
+   */
+  private interface SiteSource {
+    /**
+     * @return The number of sites that were provided
+     */
+    long forEach(SiteHandler handler) throws Exception;
+  }
+
+  /**
+   * Get the source of sites from the configured site file, limited to the configured shard if there is one
+   * @return
+   * @throws Exception
+   */
+  private SiteSource getSiteSource() throws Exception {
+    SiteSource sites = getSiteFileSource();
+    if (this.shard == null) {
+      return sites;
+    }
+
+    // Every shard reads and validates the whole site file, so they all agree on whether it is valid
+    Shard shard = this.shard;
+    return (handler) -> {
+      long[] shardSiteCount = { 0 };
+      sites.forEach((site, rowNumber) -> {
+        if (shard.contains(site.getSiteID())) {
+          shardSiteCount[0]++;
+          handler.handleSite(site, rowNumber);
+        }
+      });
+      return shardSiteCount[0];
+    };
+  }
+
+  /**
+   * Get the source of sites from the configured site file.  If we are not streaming, the whole site file is loaded
+   * and validated before this returns.
+   * @return
+   * @throws Exception
+   */
+  private SiteSource getSiteFileSource() throws Exception {
+    if (this.streamSites) {
+      // When streaming, loading and validation happen together and are interleaved with handing sites off to the
+      // pipeline, so all of it is counted as loading time.
+      return (handler) -> {
+        long[] handlerNanos = { 0 };
+        long startTime = System.nanoTime();
+        try {
+          return streamSites(this.sitesFile, (site, rowNumber) -> {
+            metrics.addSitesLoaded(1);
+            long handlerStartTime = System.nanoTime();
+            handler.handleSite(site, rowNumber);
+            handlerNanos[0] += System.nanoTime() - handlerStartTime;
+          });
+        }
+        finally {
+          metrics.addPhaseTime(RunMetrics.Phase.LOAD_SITES, System.nanoTime() - startTime - handlerNanos[0]);
+        }
+      };
+    }
+
+    long startTime = System.nanoTime();
+    List<Site> sites = loadSites(this.sitesFile);
+    metrics.addPhaseTime(RunMetrics.Phase.LOAD_SITES, System.nanoTime() - startTime);
+    metrics.addSitesLoaded(sites.size());
+
+    startTime = System.nanoTime();
+    validateSites(sites);
+    metrics.addPhaseTime(RunMetrics.Phase.VALIDATE_SITES, System.nanoTime() - startTime);
+    return listSource(sites);
+  }
+
+  /**
+   * Get a source for sites that are already in memory
+   */
+  private static SiteSource listSource(List<Site> sites) {
+    return (handler) -> {
+      long rowNumber = 0;
+      for (Site site : sites) {
+        handler.handleSite(site, ++rowNumber);
+      }
+      return rowNumber;
+    };
+  }
+
+  /**
+   * Open the manifest for the project in the output directory.  Manifests are only kept when writing separate salt
+   * files - an archive is replaced on every run, so there is nothing to resume.
+   * @param projectName
+   * @param projectPath The project directory
+   * @return The manifest, or null if no manifest is kept
+   * @throws Exception
+   */
+  private OutputManifest openManifest(String projectName, Path projectPath) throws Exception {
+    if (this.archiveFile != null) {
+      return null;
+    }
+
+    return OutputManifest.open(getManifestPath(projectName, projectPath));
+  }
+
+  /**
+   * Get the location of the manifest for the project (or, when running a shard, for the shard)
+   */
+  private Path getManifestPath(String projectName, Path projectPath) {
+    if (this.shard != null) {
+      return this.shard.getManifestPath(projectPath, projectName);
+    }
+    return OutputManifest.getManifestPath(projectPath, projectName);
+  }
+
+  /**
+   * If the manifest shows that salt files were already created for the project, load one of them to get the project
+   * token that they share.
+   * @param manifest The manifest for the project (may be null)
+   * @param output Where the salt files are
+   * @param projectName The name of the project
+   * @return The project token, or null if no intact salt files have been created yet
+   * @throws LinkjaException
+   */
+  private String getResumedProjectToken(OutputManifest manifest, SaltFileOutput output, String projectName) throws LinkjaException {
+    if (manifest == null) {
+      return null;
+    }
+
+    // Only a salt file that is still intact can be trusted for the token.  If none are, every site is created again.
+    Path committedFile = null;
+    for (String siteID : manifest.getCommittedSiteIDs()) {
+      committedFile = findVerifiedFile(manifest, output, siteID);
+      if (committedFile != null) {
+        break;
+      }
+    }
+    if (committedFile == null) {
+      return null;
+    }
+
+    File existingFile = committedFile.toFile();
+    SaltFile existingSaltFile = new SaltFile();
+    try {
+      existingSaltFile.load(existingFile);
+    }
+    catch (Exception e) {
+      throw new LinkjaException(String.format("The manifest %s shows that salt files were already created for this project, but %s could not be loaded (%s).  Remove the manifest to create the project from the beginning.",
+              manifest.getManifestFile().toString(), existingFile.toString(), e.getMessage()));
+    }
+
+    if (!projectName.equals(existingSaltFile.getProjectName())) {
+      throw new LinkjaException(String.format("The manifest %s refers to salt files for the project '%s', not '%s'.",
+              manifest.getManifestFile().toString(), existingSaltFile.getProjectName(), projectName));
+    }
+
+    return existingSaltFile.getProjectSalt();
+  }
+
+  /**
+   * Find the committed salt file for a site, as long as it is still exactly what was committed.  A salt file that was
+   * damaged afterwards (e.g., cut short when a disk filled up) doesn't count, so it is created again.
+   * @param manifest The manifest for the project
+   * @param output Where the salt files are
+   * @param siteID The site ID
+   * @return The salt file, or null if there is none or it doesn't match the checksum in the manifest
+   */
+  static Path findVerifiedFile(OutputManifest manifest, SaltFileOutput output, String siteID) {
+    String fileName = manifest.getCommittedFileName(siteID);
+    Path file = (fileName == null ? null : output.findCommitted(fileName));
+    if (file == null) {
+      return null;
+    }
+
+    try {
+      return (OutputManifest.checksum(file).equals(manifest.getCommittedChecksum(siteID)) ? file : null);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Everything the pipeline needs to know about the project they are creating salt files for, and the progress of the
+   * salt files that have been handed off to them
+   */
+  static class ProjectRun implements AutoCloseable {
+    final String projectName;
+    // The project token shared by all sites
+    final String projectToken;
+    final SaltFileOutput output;
+    // May be null, if no manifest is being kept
+    final OutputManifest manifest;
+    // May be null, if no listener should be told about the salt files
+    final SaltFileListener listener;
+    // Site ID -> private salt, for sites that keep their existing private salt instead of getting a new one (null
+    // if every site gets a new one)
+    Map<String, String> keptPrivateSalts = null;
+    // The index of the sites in the project, which is updated as each salt file is committed (may be null)
+    SiteIndex siteIndex = null;
+    // Receives the result for each site, if the run is being published (may be null)
+    SaltFileResultPublisher.Emitter results = null;
+    // Where to write the index of salt file locations when the run is closed, if the salt files are not all next to
+    // the manifest (may be null)
+    Path locationIndexFile = null;
+    // Keeps other runs away from the project until this run is closed (may be null)
+    ProjectLock lock = null;
+
+    // Failures are keyed by row number, so they are reported in the same order as the site file.  Only the first
+    // MAXIMUM_REPORTED_FAILURES rows are kept, so a run where every site fails doesn't hold a message for each one.
+    private final TreeMap<Long, String> failures = new TreeMap<Long, String>();
+    private long failureCount = 0;
+    // Each salt file that has been handed off to the pipeline is registered until it is finished
+    private final Phaser pending = new Phaser(1);
+    private volatile long siteCount = 0;
+
+    ProjectRun(String projectName, String projectToken, SaltFileOutput output, OutputManifest manifest,
+               SaltFileListener listener) {
+      this.projectName = projectName;
+      this.projectToken = projectToken;
+      this.output = output;
+      this.manifest = manifest;
+      this.listener = listener;
+    }
+
+    /**
+     * @return true if the manifest shows that the salt file for the site was already committed, and it still matches
+     * the checksum it was committed with
+     */
+    boolean isCommitted(Site site) {
+      if (manifest == null || !manifest.isCommitted(site.getSiteID())) {
+        return false;
+      }
+
+      return findVerifiedFile(manifest, output, site.getSiteID()) != null;
+    }
+
+    /**
+     * Wait until every salt file that was handed off to the pipeline is finished
+     * @throws LinkjaException If we were interrupted while waiting
+     */
+    void awaitCompletion() throws LinkjaException {
+      try {
+        pending.awaitAdvanceInterruptibly(pending.arrive());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new LinkjaException("Salt file generation was interrupted before all sites were processed");
+      }
+    }
+
+    /**
+     * Report all of the sites whose salt files could not be created in a single exception
+     * @throws LinkjaException
+     */
+    synchronized void throwIfFailed() throws LinkjaException {
+      if (failureCount > 0) {
+        String details = String.join(System.lineSeparator(), failures.values());
+        if (failureCount > failures.size()) {
+          details += System.lineSeparator() + String.format("  ... and %d more", failureCount - failures.size());
+        }
+        throw new LinkjaException(String.format("Unable to create the salt files for %d of %d sites:%n%s",
+                failureCount, siteCount, details));
+      }
+    }
+
+    /**
+     * Record a site whose salt file could not be created
+     * @param rowNumber The row of the site in the site file
+     * @param failure The description of the problem
+     */
+    synchronized void addFailure(long rowNumber, String failure) {
+      failureCount++;
+      failures.put(rowNumber, failure);
+      if (failures.size() > MAXIMUM_REPORTED_FAILURES) {
+        failures.pollLastEntry();
+      }
+    }
+
+    synchronized boolean hasFailures() {
+      return failureCount > 0;
+    }
+
+    @Override
+    public void close() throws Exception {
+      close(true);
+    }
+
+    /**
+     * Close the run.  The output is only completed if every site was processed and none of them failed - otherwise
+     * it is aborted, so an archive from an earlier run is not replaced by a partial one.
+     * @param completed true if every site was processed
+     * @throws Exception
+     */
+    void close(boolean completed) throws Exception {
+      try {
+        if (siteIndex != null) {
+          siteIndex.close();
+        }
+        if (manifest != null) {
+          try {
+            if (locationIndexFile != null) {
+              manifest.writeLocationIndex(locationIndexFile, output);
+            }
+          }
+          finally {
+            manifest.close();
+          }
+        }
+      }
+      finally {
+        try {
+          if (completed && !hasFailures()) {
+            output.close();
+          }
+          else {
+            output.abort();
+          }
+        }
+        finally {
+          if (lock != null) {
+            lock.close();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Hand off the creation of the salt file for each site to the pipeline.  Every site gets its own private token,
+   * and all of them share the same project token.  Sites that the manifest shows are already complete are skipped.
+   *
+   * A failure for one site does not stop the others from being processed.  Failures are collected in the run, so
+   * that once all sites have been attempted they can be reported together.
+   * @param sites The sites to create salt files for
+   * @param run The project the salt files are for, and where they are written
+   * @param pipeline The pipeline that creates the salt files
+   * @throws Exception
+   */
+  private void submitSaltFiles(SiteSource sites, ProjectRun run, SaltFilePipeline pipeline) throws Exception {
+    metrics.setPipeline(pipeline);
+    run.siteCount = sites.forEach((site, rowNumber) -> {
+      if (run.results != null && run.results.isCancelled()) {
+        throw new CancellationException("The run was cancelled");
+      }
+      if (run.isCommitted(site)) {
+        metrics.addSitesSkipped(1);
+        if (run.results != null) {
+          run.results.emit(SaltFileResult.skipped(site, rowNumber,
+                  run.output.getLocation(run.manifest.getCommittedFileName(site.getSiteID()))));
+        }
+        return;
+      }
+
+      run.pending.register();
+      try {
+        pipeline.submit(new SaltFileJob(site, rowNumber, run));
+      } catch (InterruptedException | RuntimeException e) {
+        run.pending.arriveAndDeregister();
+        throw e;
+      }
+    });
+  }
+
+  /**
+   * Creates the salt file for a single site, one pipeline stage at a time.  The file is saved to a staging location
+   * and only committed to the output once it is complete, so a failure never leaves a partially written salt file
+   * behind.  Once it has been committed, it is recorded in the manifest.
+   */
+  private class SaltFileJob implements SaltFilePipeline.Job {
+    private final Site site;
+    private final long rowNumber;
+    private final ProjectRun run;
+
+    private long startTime;
+    private TokenBuffer privateToken;
+    private String keptPrivateSalt;
+    private SaltFile file;
+    private String fileName;
+    private Path stagedFile;
+    private String checksum;
+    private long fileSize;
+
+    SaltFileJob(Site site, long rowNumber, ProjectRun run) {
+      this.site = site;
+      this.rowNumber = rowNumber;
+      this.run = run;
+    }
+
+    @Override
+    public void prepare() throws Exception {
+      startTime = System.nanoTime();
+      keptPrivateSalt = (run.keptPrivateSalts == null ? null : run.keptPrivateSalts.get(site.getSiteID()));
+      file = new SaltFile();
+      file.setSite(site);
+      file.setProjectSalt(run.projectToken);
+      file.setProjectName(run.projectName);
+      fileName = file.getSaltFileName(file.getProjectName(), site.getSiteID());
+      stagedFile = run.output.getStagingPath(fileName);
+    }
+
+    @Override
+    public void save() throws Exception {
+      // The private token is generated here, rather than in prepare, so that every save thread generates tokens at
+      // the same time
+      if (keptPrivateSalt == null) {
+        privateToken = generateTokenBuffer(DEFAULT_TOKEN_LENGTH);
+      }
+
+      long saveStartTime = System.nanoTime();
+      // SaltFile only accepts the private token as a String, so it is only copied into one right before it is
+      // encrypted.  Once the file is saved, neither copy is kept, and the buffer is wiped.
+      file.setPrivateSalt(keptPrivateSalt != null ? keptPrivateSalt : privateToken.toSaltString());
+      try {
+        file.save(stagedFile.toFile());
+      }
+      finally {
+        file = null;
+        keptPrivateSalt = null;
+        releasePrivateToken();
+      }
+      metrics.addPhaseTime(RunMetrics.Phase.ENCRYPT_AND_WRITE, System.nanoTime() - saveStartTime);
+
+      // The checksum reads the file back, so it is done here where several threads share the I/O
+      if (run.manifest != null) {
+        long checksumStartTime = System.nanoTime();
+        checksum = OutputManifest.checksum(stagedFile);
+        metrics.addPhaseTime(RunMetrics.Phase.COMMIT_FILES, System.nanoTime() - checksumStartTime);
+      }
+    }
+
+    @Override
+    public void commit() throws Exception {
+      long commitStartTime = System.nanoTime();
+      fileSize = run.output.commit(stagedFile, fileName);
+      if (run.manifest != null) {
+        run.manifest.appendCommitted(site, fileName, checksum);
+      }
+      if (run.siteIndex != null) {
+        run.siteIndex.add(site);
+      }
+      metrics.addPhaseTime(RunMetrics.Phase.COMMIT_FILES, System.nanoTime() - commitStartTime);
+    }
 
-    File encryptedSaltFile = Paths.get(parentPath.toString(), file.getSaltFileName(file.getProjectName(), site.getSiteID())).toFile();
-    file.save(encryptedSaltFile);
+    @Override
+    public OutputManifest getManifest() {
+      return run.manifest;
+    }
+
+    @Override
+    public void complete() {
+      long elapsedNanos = System.nanoTime() - startTime;
+      metrics.addSaltFileWritten(fileSize);
+      metrics.recordSiteLatency(elapsedNanos);
+      if (run.listener != null) {
+        run.listener.saltFileCommitted(site, run.output.getLocation(fileName));
+      }
+      if (run.results != null) {
+        run.results.emit(SaltFileResult.committed(site, rowNumber, run.output.getLocation(fileName), elapsedNanos));
+      }
+    }
+
+    @Override
+    public void fail(Exception e) {
+      file = null;
+      keptPrivateSalt = null;
+      releasePrivateToken();
+      run.addFailure(rowNumber, String.format("  Site '%s': %s", site.getSiteID(), e.getMessage()));
+      recordFailure(run, site);
+      if (run.results != null) {
+        run.results.emit(SaltFileResult.failed(site, rowNumber, (startTime == 0 ? 0 : System.nanoTime() - startTime), e));
+      }
+    }
+
+    /**
+     * Wipe the private token and return its buffer to the pool.  Once the buffer is back in the pool another job may
+     * be using it, so the job lets go of it straight away and never closes it again.
+     */
+    private void releasePrivateToken() {
+      if (privateToken != null) {
+        TokenBuffer buffer = privateToken;
+        privateToken = null;
+        buffer.close();
+      }
+    }
+
+    @Override
+    public void finish() {
+      try {
+        if (stagedFile != null) {
+          Files.deleteIfExists(stagedFile);
+        }
+      }
+      catch (IOException e) {
+        // A leftover staged file never has the final salt file name, so it can't be mistaken for a salt file
+      }
+      finally {
+        run.pending.arriveAndDeregister();
+      }
+    }
+  }
+
+  /**
+   * Note in the manifest (if there is one) that a site failed, so the failure is visible in the manifest as well.
+   * A problem writing to the manifest is not reported, because the site failure itself is already being reported.
+   */
+  private void recordFailure(ProjectRun run, Site site) {
+    if (run.manifest == null) {
+      return;
+    }
+
+    try {
+      run.manifest.recordFailed(site);
+    }
+    catch (IOException e) {
+      // The site will not be marked as committed, so it is processed again on the next run either way
+    }
+  }
+
+  /**
+   * Get the directory of the project that addSites adds to.  Its manifest and site index (and, unless output
+   * directories are used, its salt files) are in the directory of the existing salt file, wherever the new site file
+   * is.  Shards are the exception - each shard is kept next to the site file that all of them share.
+   * @return
+   * @throws LinkjaException If output directories are used and no project directory was given, since the salt file
+   *                         is then in one of the output directories rather than with the manifest
+   */
+  private Path getExistingProjectPath() throws LinkjaException {
+    if (this.shard != null) {
+      return getSiteFileParentPath();
+    }
+    if (this.projectDirectory != null) {
+      return this.projectDirectory.getAbsoluteFile().toPath();
+    }
+    if (this.outputRoots != null) {
+      throw new LinkjaException("Please specify the project directory that holds the manifest.  With output directories, the salt file is not kept with it.");
+    }
+
+    File parent = this.saltFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory()) {
+      throw new LinkjaException("Unexpected error with the directory containing the salt file");
+    }
+    return parent.toPath();
   }
 
   /**
@@ -162,12 +1474,57 @@ public class SaltEngine {
    * @throws LinkjaException
    */
   public String generateToken(int tokenLength) throws LinkjaException {
+    validateTokenLength(tokenLength);
+    long startTime = System.nanoTime();
+    String token = tokenSource.generateToken(tokenLength);
+    metrics.addPhaseTime(RunMetrics.Phase.GENERATE_TOKENS, System.nanoTime() - startTime);
+    metrics.addTokensGenerated(1);
+    return token;
+  }
+
+  /**
+   * Creates multiple random token strings of the specified length.  The tokens are sliced from a pool that is filled
+   * from the token source in large chunks, so this is much cheaper per token than calling generateToken repeatedly.
+   * @param count The number of tokens to create
+   * @param tokenLength
+   * @return
+   * @throws LinkjaException
+   */
+  public List<String> generateTokens(int count, int tokenLength) throws LinkjaException {
+    validateTokenLength(tokenLength);
+    if (count < 0) {
+      throw new LinkjaException(String.format("The number of tokens cannot be negative, but %d were requested.", count));
+    }
+
+    long startTime = System.nanoTime();
+    List<String> tokens = tokenPools.get().nextTokens(count, tokenLength);
+    metrics.addPhaseTime(RunMetrics.Phase.GENERATE_TOKENS, System.nanoTime() - startTime);
+    metrics.addTokensGenerated(count);
+    return tokens;
+  }
+
+  /**
+   * Creates a random token of the specified length in a reusable buffer, instead of a String.  The token can be wiped
+   * from memory as soon as it is no longer needed by closing the buffer, which also returns it to be reused.
+   * @param tokenLength
+   * @return The buffer holding the token, which the caller must close
+   * @throws LinkjaException
+   */
+  public TokenBuffer generateTokenBuffer(int tokenLength) throws LinkjaException {
+    validateTokenLength(tokenLength);
+    long startTime = System.nanoTime();
+    TokenBuffer buffer = tokenBufferPool.acquire(tokenLength * 2);
+    tokenPools.get().nextToken(tokenLength, buffer);
+    metrics.addPhaseTime(RunMetrics.Phase.GENERATE_TOKENS, System.nanoTime() - startTime);
+    metrics.addTokensGenerated(1);
+    return buffer;
+  }
+
+  private void validateTokenLength(int tokenLength) throws LinkjaException {
     if (tokenLength < MINIMUM_TOKEN_LENGTH || tokenLength > MAXIMUM_TOKEN_LENGTH) {
       throw new LinkjaException(String.format("The token must be between %d and %d characters, but %d were requested.",
               MINIMUM_TOKEN_LENGTH, MAXIMUM_TOKEN_LENGTH, tokenLength));
     }
-
-    return Library.generateToken(tokenLength);
   }
 
   /**
@@ -179,34 +1536,132 @@ public class SaltEngine {
    */
   public List<Site> loadSites(File siteFile) throws LinkjaException, FileNotFoundException {
     List<Site> sites = new ArrayList<Site>();
-    if (!fileHelper.exists(siteFile)) {
+    readSites(siteFile, (site, rowNumber) -> sites.add(site));
+    return sites;
+  }
+
+  /**
+   * Read the sites from the provided file (assumed to be a CSV), validating each row and checking for duplicate site
+   * IDs and names as it is read.  Each valid site is passed to the handler as soon as it has been read, so the site
+   * file never needs to be held in memory.
+   *
+   * Duplicates are found using compact fingerprints of the site IDs and names.  When a fingerprint has been seen
+   * before, the site file is re-read up to the current row to confirm that it really is a duplicate.
+   * @param siteFile
+   * @param handler Receives each site after it has been validated
+   * @return The number of sites that were read
+   * @throws Exception
+   */
+  public long streamSites(File siteFile, SiteHandler handler) throws Exception {
+    if (SiteFileReader.isStandardInput(siteFile)) {
+      throw new LinkjaException("Sites can't be streamed from standard input, because possible duplicates are confirmed by reading the site file again.  Please load the sites instead.");
+    }
+
+    FingerprintSet ids = new FingerprintSet();
+    FingerprintSet names = new FingerprintSet();
+    long siteCount = forEachSite(siteFile, (site, rowNumber) -> {
+      if (!ids.add(FingerprintSet.fingerprint(site.getSiteID()))
+              && isEarlierSite(siteFile, rowNumber, (earlier) -> earlier.getSiteID().equals(site.getSiteID()))) {
+        throw new LinkjaException(String.format("Site IDs must be unique, but '%s' was found more than once.", site.getSiteID()));
+      }
+
+      if (!names.add(FingerprintSet.fingerprint(site.getSiteName()))
+              && isEarlierSite(siteFile, rowNumber, (earlier) -> earlier.getSiteName().equals(site.getSiteName()))) {
+        throw new LinkjaException(String.format("Site names must be unique, but '%s' was found more than once.", site.getSiteName()));
+      }
+
+      handler.handleSite(site, rowNumber);
+      return true;
+    });
+
+    if (siteCount == 0) {
+      throw new LinkjaException("You must specify at least one site");
+    }
+
+    return siteCount;
+  }
+
+  /**
+   * Determine if any site before the specified row of the site file matches a condition
+   */
+  private boolean isEarlierSite(File siteFile, long rowNumber, Predicate<Site> condition) throws Exception {
+    boolean[] found = { false };
+    forEachSite(siteFile, (site, earlierRowNumber) -> {
+      if (earlierRowNumber >= rowNumber) {
+        return false;
+      }
+      found[0] = condition.test(site);
+      return !found[0];
+    });
+    return found[0];
+  }
+
+  /**
+   * Receives each site that is read by forEachSite
+   */
+  private interface SiteVisitor {
+    /**
+     * @return true to keep reading, false to stop
+     */
+    boolean visit(Site site, long rowNumber) throws Exception;
+  }
+
+  /**
+   * Wrapper for forEachSite when the caller will read every row and only expects loading errors
+   */
+  private void readSites(File siteFile, SiteHandler handler) throws LinkjaException, FileNotFoundException {
+    try {
+      forEachSite(siteFile, (site, rowNumber) -> {
+        handler.handleSite(site, rowNumber);
+        return true;
+      });
+    } catch (LinkjaException | FileNotFoundException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new LinkjaException(e.getMessage());
+    }
+  }
+
+  /**
+   * Read the site file one row at a time, checking that each row is a valid site before passing it to the visitor.
+   * @param siteFile
+   * @param visitor
+   * @return The number of sites that were visited
+   * @throws Exception
+   */
+  private long forEachSite(File siteFile, SiteVisitor visitor) throws Exception {
+    if (!SiteFileReader.isStandardInput(siteFile) && !fileHelper.exists(siteFile)) {
       throw new FileNotFoundException(String.format("Unable to find the site control file %s", siteFile.toString()));
     }
 
-    try (BufferedReader csvReader = new BufferedReader(new FileReader(siteFile))) {
-      CSVParser parser = CSVParser.parse(csvReader, CSVFormat.DEFAULT.withDelimiter(SITE_FILE_DELIMITER));
-      for (CSVRecord csvRecord : parser) {
-        if (csvRecord.size() != SITE_FILE_COLUMN_COUNT) {
+    long siteCount = 0;
+    try (SiteFileReader reader = SiteFileReader.open(siteFile)) {
+      while (reader.next()) {
+        if (reader.getFieldCount() != SITE_FILE_COLUMN_COUNT) {
           throw new LinkjaException(String.format("Row %d has %d columns.  The site control file must have exactly %d columns on each row: Site ID, Site Name",
-                  csvRecord.getRecordNumber(), csvRecord.size(), SITE_FILE_COLUMN_COUNT));
+                  reader.getRecordNumber(), reader.getFieldCount(), SITE_FILE_COLUMN_COUNT));
         }
 
-        Site site = new Site(csvRecord.get(SITE_ID_INDEX), csvRecord.get(SITE_NAME_INDEX));
+        Site site = new Site(reader.get(SITE_ID_INDEX), reader.get(SITE_NAME_INDEX));
         if (site.getSiteID().equals("")) {
           throw new LinkjaException(String.format("Row %d a blank site ID, which is not allowed.",
-            csvRecord.getRecordNumber()));
+            reader.getRecordNumber()));
         }
         if (site.getSiteName().equals("")) {
           throw new LinkjaException(String.format("Row %d a blank site name, which is not allowed.",
-            csvRecord.getRecordNumber()));
+            reader.getRecordNumber()));
+        }
+
+        siteCount++;
+        if (!visitor.visit(site, reader.getRecordNumber())) {
+          break;
         }
-        sites.add(site);
       }
     } catch (IOException e) {
       throw new LinkjaException("There was an error loading the sites configuration file.  Please make sure the file exists, and that it is a valid CSV file.");
     }
 
-    return sites;
+    return siteCount;
   }
 
   /**
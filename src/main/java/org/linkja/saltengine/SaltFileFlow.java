@@ -0,0 +1,48 @@
+package org.linkja.saltengine;
+
+/**
+ * Interfaces for publishing a stream of results with backpressure and cancellation.  These have the same shape as
+ * java.util.concurrent.Flow (and Reactive Streams), which is not available on Java 8, so a caller on a newer JVM can
+ * adapt them with a thin wrapper.
+ *
+ * A subscriber receives onSubscribe first, then onNext at most as many times as it has requested through its
+ * subscription, and finally either onComplete or onError - unless it cancels, after which nothing more is signalled.
+ * Signals to a subscriber are never made concurrently, although they may come from different threads.
+ */
+public final class SaltFileFlow {
+  private SaltFileFlow() {
+  }
+
+  public interface Publisher<T> {
+    /**
+     * @param subscriber The subscriber that will receive the items
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  public interface Subscriber<T> {
+    /**
+     * Called before any other signal.  Nothing is sent until items are requested from the subscription.
+     */
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+  }
+
+  public interface Subscription {
+    /**
+     * Allow up to n more items to be sent.  Long.MAX_VALUE means there is no limit.
+     * @param n The number of items, which must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stop sending items.  Some items may still arrive if they were already being sent.
+     */
+    void cancel();
+  }
+}
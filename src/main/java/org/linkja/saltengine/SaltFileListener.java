@@ -0,0 +1,15 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.Site;
+
+/**
+ * Notified by SaltEngine each time the salt file for a site has been committed to the output.  This may be called
+ * from multiple worker threads at the same time.
+ */
+public interface SaltFileListener {
+  /**
+   * @param site The site the salt file was created for
+   * @param location Where the salt file was written
+   */
+  void saltFileCommitted(Site site, String location);
+}
@@ -0,0 +1,63 @@
+package org.linkja.saltengine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The destination for the salt files created by SaltEngine.  Each salt file is first saved to a staging location
+ * provided by the output, and then committed under its final name once it is complete.
+ *
+ * Implementations must allow getStagingPath and commit to be called from multiple threads at the same time.
+ */
+public interface SaltFileOutput extends Closeable {
+  /**
+   * Get the location where a salt file should be saved before it is committed
+   * @param fileName The final name of the salt file
+   * @return The staging location
+   * @throws IOException
+   */
+  Path getStagingPath(String fileName) throws IOException;
+
+  /**
+   * Commit a salt file that has been saved to its staging location.  After this returns, the staged file may no
+   * longer exist.
+   * @param stagedFile The staging location the salt file was saved to
+   * @param fileName The final name of the salt file
+   * @return The number of bytes that were written
+   * @throws IOException
+   */
+  long commit(Path stagedFile, String fileName) throws IOException;
+
+  /**
+   * Describe where a committed salt file can be found
+   * @param fileName The final name of the salt file
+   * @return The location of the salt file, such as its path
+   */
+  String getLocation(String fileName);
+
+  /**
+   * Find a salt file that has already been committed to the output, by this run or an earlier one
+   * @param fileName The final name of the salt file
+   * @return The path of the salt file, or null if there is none (or the salt files are not kept as separate files)
+   */
+  default Path findCommitted(String fileName) {
+    return null;
+  }
+
+  /**
+   * Complete the output once all salt files have been committed
+   * @throws IOException
+   */
+  @Override
+  void close() throws IOException;
+
+  /**
+   * Close the output after a run that did not succeed.  Separate salt files are kept, since the manifest records each
+   * one as it is committed, but an output that is only complete as a whole (such as an archive) is discarded.
+   * @throws IOException
+   */
+  default void abort() throws IOException {
+    close();
+  }
+}
@@ -0,0 +1,345 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates salt files in three stages, connected by bounded queues:
+ *
+ *   prepare - builds the salt file and chooses its staging location (one thread)
+ *   save    - generates the private token, then encrypts and writes the salt file to its staging location (the
+ *             configured number of threads)
+ *   commit  - commits the staged files and records them in the manifest, in batches (one thread)
+ *
+ * The expensive work - token generation and encryption - is all in the save stage, so it runs on every save thread.
+ * Because each stage has its own threads, token generation and encryption for some sites overlap with the commits
+ * for others.  When a stage falls behind, the queue in front of it fills up and the stages before it wait,
+ * which bounds the number of sites in flight when sites are read faster than their salt files can be written.  (What
+ * a run keeps about the sites that are already finished, such as the manifest, is up to the run.)
+ *
+ * A single pipeline can be shared by several projects, so the threads stay busy from one project to the next.
+ */
+class SaltFilePipeline implements AutoCloseable {
+  // The most salt files that are committed together.  The manifest is only flushed once per batch.
+  public static final int COMMIT_BATCH_SIZE = 64;
+
+  /**
+   * The work to create a single salt file.  The methods are called in order, each from a different stage.  If any of
+   * prepare, save, commit or complete throws, fail is called instead of the remaining steps (an Error, such as a
+   * missing native library, is passed to fail wrapped in an ExecutionException).  finish is always called last.
+   */
+  interface Job {
+    void prepare() throws Exception;
+    void save() throws Exception;
+    void commit() throws Exception;
+
+    /**
+     * @return The manifest the job is recorded in by commit, which is flushed before complete is called (may be null)
+     */
+    OutputManifest getManifest();
+
+    /**
+     * Called once the commit has been flushed to the manifest
+     */
+    void complete() throws Exception;
+
+    void fail(Exception e);
+    void finish();
+  }
+
+  // Passed through the queues to tell each stage to stop
+  private static final Job END_OF_JOBS = new Job() {
+    public void prepare() {}
+    public void save() {}
+    public void commit() {}
+    public OutputManifest getManifest() { return null; }
+    public void complete() {}
+    public void fail(Exception e) {}
+    public void finish() {}
+  };
+
+  /**
+   * A stage of the pipeline, and the queue of jobs waiting for it
+   */
+  private static class Stage {
+    final String name;
+    final int threadCount;
+    final BlockingQueue<Job> queue;
+    final AtomicLong processed = new AtomicLong();
+    final AtomicLong busyNanos = new AtomicLong();
+    final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    Stage(String name, int threadCount, int queueSize) {
+      this.name = name;
+      this.threadCount = threadCount;
+      this.queue = new ArrayBlockingQueue<Job>(queueSize);
+    }
+
+    void put(Job job) throws InterruptedException {
+      queue.put(job);
+      maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    void recordProcessed(long count, long nanoseconds) {
+      processed.addAndGet(count);
+      busyNanos.addAndGet(nanoseconds);
+    }
+  }
+
+  private final int threadCount;
+  private final long startNanos;
+  private volatile long endNanos = 0;
+  private final Stage prepareStage;
+  private final Stage saveStage;
+  private final Stage commitStage;
+  private final AtomicInteger runningSaveThreads;
+  private final ExecutorService executor;
+  private boolean closed = false;
+
+  /**
+   * @param threadCount The number of threads that encrypt and write salt files
+   */
+  SaltFilePipeline(int threadCount) {
+    this.threadCount = threadCount;
+    int queueSize = threadCount * SaltEngine.MAX_QUEUED_SITES_PER_THREAD;
+    prepareStage = new Stage("prepare", 1, queueSize);
+    saveStage = new Stage("save", threadCount, queueSize);
+    commitStage = new Stage("commit", 1, Math.max(queueSize, COMMIT_BATCH_SIZE));
+    runningSaveThreads = new AtomicInteger(threadCount);
+
+    startNanos = System.nanoTime();
+    executor = Executors.newFixedThreadPool(threadCount + 2);
+    executor.execute(this::runPrepareStage);
+    for (int index = 0; index < threadCount; index++) {
+      executor.execute(this::runSaveStage);
+    }
+    executor.execute(this::runCommitStage);
+  }
+
+  int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Hand off a job to the pipeline, waiting first if the pipeline is full
+   * @param job The job
+   * @throws InterruptedException
+   */
+  synchronized void submit(Job job) throws InterruptedException {
+    // This is synchronized with close, so a job can never be queued behind the end marker
+    if (closed) {
+      throw new IllegalStateException("Unable to submit a salt file after the pipeline has been closed");
+    }
+    prepareStage.put(job);
+  }
+
+  /**
+   * Get the current state of each stage
+   * @return The stages, in the order jobs pass through them
+   */
+  List<RunMetrics.StageStats> getStageStats() {
+    long end = (endNanos == 0 ? System.nanoTime() : endNanos);
+    double elapsedSeconds = (double)(end - startNanos) / 1_000_000_000.0;
+    List<RunMetrics.StageStats> stats = new ArrayList<RunMetrics.StageStats>();
+    for (Stage stage : Arrays.asList(prepareStage, saveStage, commitStage)) {
+      stats.add(new RunMetrics.StageStats(stage.name, stage.threadCount, stage.queue.size(), stage.maxQueueDepth.get(),
+              stage.processed.get(), (double)stage.busyNanos.get() / 1_000_000_000.0, elapsedSeconds));
+    }
+    return stats;
+  }
+
+  /**
+   * Wait for every job that was handed off to finish, and then stop the pipeline threads
+   * @throws LinkjaException If we were interrupted while waiting
+   */
+  @Override
+  public void close() throws LinkjaException {
+    try {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        prepareStage.put(END_OF_JOBS);
+      }
+
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        // Keep waiting for the outstanding salt files
+      }
+      endNanos = System.nanoTime();
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new LinkjaException("Salt file generation was interrupted before all sites were processed");
+    }
+  }
+
+  private void runPrepareStage() {
+    try {
+      while (true) {
+        Job job = prepareStage.queue.take();
+        if (job == END_OF_JOBS) {
+          return;
+        }
+
+        long startTime = System.nanoTime();
+        boolean prepared = runStep(job, Job::prepare);
+        prepareStage.recordProcessed(1, System.nanoTime() - startTime);
+        if (prepared) {
+          saveStage.put(job);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // However this stage stops, the save threads are told that no more jobs are coming, so the pipeline can close
+      putEndOfJobs(saveStage, threadCount);
+    }
+  }
+
+  private void runSaveStage() {
+    try {
+      while (true) {
+        Job job = saveStage.queue.take();
+        if (job == END_OF_JOBS) {
+          return;
+        }
+
+        long startTime = System.nanoTime();
+        boolean saved = runStep(job, Job::save);
+        saveStage.recordProcessed(1, System.nanoTime() - startTime);
+        if (saved) {
+          commitStage.put(job);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // The last save thread to stop lets the commit stage know that no more jobs are coming
+      if (runningSaveThreads.decrementAndGet() == 0) {
+        putEndOfJobs(commitStage, 1);
+      }
+    }
+  }
+
+  /**
+   * Tell the next stage that no more jobs are coming
+   * @param stage The next stage
+   * @param count The number of end markers to send (one for each of its threads)
+   */
+  private static void putEndOfJobs(Stage stage, int count) {
+    try {
+      for (int index = 0; index < count; index++) {
+        stage.put(END_OF_JOBS);
+      }
+    } catch (InterruptedException e) {
+      // Only close interrupts the stages, once it has given up waiting for them
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void runCommitStage() {
+    List<Job> batch = new ArrayList<Job>(COMMIT_BATCH_SIZE);
+    try {
+      boolean endOfJobs = false;
+      while (!endOfJobs) {
+        batch.clear();
+        batch.add(commitStage.queue.take());
+        commitStage.queue.drainTo(batch, COMMIT_BATCH_SIZE - 1);
+        if (batch.remove(END_OF_JOBS)) {
+          // Nothing can be queued after the end marker, so this is the last batch
+          endOfJobs = true;
+        }
+
+        long startTime = System.nanoTime();
+        commitBatch(batch);
+        commitStage.recordProcessed(batch.size(), System.nanoTime() - startTime);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Commit a batch of salt files, flush each manifest they were recorded in once, and then complete the jobs
+   */
+  private void commitBatch(List<Job> batch) {
+    List<Job> committed = new ArrayList<Job>(batch.size());
+    Set<OutputManifest> manifests = Collections.newSetFromMap(new IdentityHashMap<OutputManifest, Boolean>());
+    for (Job job : batch) {
+      try {
+        job.commit();
+        committed.add(job);
+        if (job.getManifest() != null) {
+          manifests.add(job.getManifest());
+        }
+      } catch (Throwable e) {
+        failAndFinish(job, e);
+      }
+    }
+
+    Map<OutputManifest, Throwable> flushFailures = new IdentityHashMap<OutputManifest, Throwable>();
+    for (OutputManifest manifest : manifests) {
+      try {
+        manifest.flush();
+      } catch (Throwable e) {
+        flushFailures.put(manifest, e);
+      }
+    }
+
+    for (Job job : committed) {
+      Throwable flushFailure = (job.getManifest() == null ? null : flushFailures.get(job.getManifest()));
+      if (flushFailure != null) {
+        failAndFinish(job, flushFailure);
+        continue;
+      }
+      try {
+        job.complete();
+      } catch (Throwable e) {
+        failAndFinish(job, e);
+        continue;
+      }
+      job.finish();
+    }
+  }
+
+  private interface Step {
+    void run(Job job) throws Exception;
+  }
+
+  /**
+   * Run one step of a job.  If it fails, the job is failed and finished.
+   * @return true if the step succeeded, and the job should continue to the next stage
+   */
+  private static boolean runStep(Job job, Step step) {
+    try {
+      step.run(job);
+      return true;
+    } catch (Throwable e) {
+      failAndFinish(job, e);
+      return false;
+    }
+  }
+
+  /**
+   * Fail a job and finish it.  An Error fails the job like any other problem, so the stage keeps running and every
+   * job is still finished.
+   */
+  private static void failAndFinish(Job job, Throwable throwable) {
+    try {
+      job.fail(throwable instanceof Exception ? (Exception)throwable : new ExecutionException(throwable));
+    } finally {
+      job.finish();
+    }
+  }
+}
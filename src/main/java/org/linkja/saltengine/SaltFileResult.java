@@ -0,0 +1,95 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.Site;
+
+/**
+ * What happened to one site during a run of SaltEngine: its salt file was committed, it was skipped because an earlier
+ * run already created its salt file, or it failed.
+ */
+public class SaltFileResult {
+  public enum Status {
+    COMMITTED,
+    SKIPPED,
+    FAILED
+  }
+
+  private final Site site;
+  private final long rowNumber;
+  private final Status status;
+  private final String location;
+  private final long elapsedNanos;
+  private final Exception error;
+
+  private SaltFileResult(Site site, long rowNumber, Status status, String location, long elapsedNanos, Exception error) {
+    this.site = site;
+    this.rowNumber = rowNumber;
+    this.status = status;
+    this.location = location;
+    this.elapsedNanos = elapsedNanos;
+    this.error = error;
+  }
+
+  static SaltFileResult committed(Site site, long rowNumber, String location, long elapsedNanos) {
+    return new SaltFileResult(site, rowNumber, Status.COMMITTED, location, elapsedNanos, null);
+  }
+
+  static SaltFileResult skipped(Site site, long rowNumber, String location) {
+    return new SaltFileResult(site, rowNumber, Status.SKIPPED, location, 0, null);
+  }
+
+  static SaltFileResult failed(Site site, long rowNumber, long elapsedNanos, Exception error) {
+    return new SaltFileResult(site, rowNumber, Status.FAILED, null, elapsedNanos, error);
+  }
+
+  public Site getSite() {
+    return site;
+  }
+
+  public String getSiteID() {
+    return site.getSiteID();
+  }
+
+  /**
+   * @return The row of the site file the site was read from
+   */
+  public long getRowNumber() {
+    return rowNumber;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isSuccessful() {
+    return status != Status.FAILED;
+  }
+
+  /**
+   * @return Where the salt file is (null if it failed)
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return How long the salt file took to create, from its token being generated to it being committed
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * @return Why the salt file could not be created (null unless it failed)
+   */
+  public Exception getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    if (status == Status.FAILED) {
+      return String.format("FAILED     %s: %s", site.getSiteID(), error.getMessage());
+    }
+    return String.format("%-10s %s -> %s", status.toString(), site.getSiteID(), location);
+  }
+}
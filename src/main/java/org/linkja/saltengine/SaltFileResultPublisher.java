@@ -0,0 +1,159 @@
+package org.linkja.saltengine;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the result for each site of a single SaltEngine run.  The run starts when a subscriber subscribes (only
+ * one subscriber is allowed), and is run by the executor - with a direct executor such as Runnable::run, subscribe
+ * only returns once the run is over.
+ *
+ * Results are sent from the pipeline threads as each salt file is committed.  When the subscriber has no outstanding
+ * demand, the thread sending a result waits for it, which in turn holds back the rest of the pipeline, so a slow
+ * subscriber slows the run down instead of results piling up in memory.  Cancelling stops any more sites from being
+ * handed off; salt files that were already in progress are still finished and recorded in the manifest.
+ */
+class SaltFileResultPublisher implements SaltFileFlow.Publisher<SaltFileResult> {
+  /**
+   * A run that publishes its results through an emitter
+   */
+  interface Run {
+    void run(Emitter results) throws Exception;
+  }
+
+  private final Executor executor;
+  private final Run run;
+  private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+  SaltFileResultPublisher(Executor executor, Run run) {
+    this.executor = executor;
+    this.run = run;
+  }
+
+  @Override
+  public void subscribe(SaltFileFlow.Subscriber<? super SaltFileResult> subscriber) {
+    Emitter emitter = new Emitter(subscriber);
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(emitter);
+      emitter.error(new IllegalStateException("Each run can only have one subscriber"));
+      return;
+    }
+
+    subscriber.onSubscribe(emitter);
+    executor.execute(() -> {
+      try {
+        run.run(emitter);
+        emitter.complete();
+      }
+      catch (Throwable e) {
+        // Errors are passed on too, since the subscriber (e.g., SaltEngine.awaitResults) waits for a terminal signal
+        emitter.error(e);
+      }
+    });
+  }
+
+  /**
+   * The subscription for a run, which also sends its results to the subscriber
+   */
+  static class Emitter implements SaltFileFlow.Subscription {
+    private final SaltFileFlow.Subscriber<? super SaltFileResult> subscriber;
+    private final Object demandLock = new Object();
+    private long demand = 0;
+    private volatile boolean cancelled = false;
+    private boolean terminated = false;
+    // Set if the subscriber made an invalid request, which ends the run with an error
+    private volatile IllegalArgumentException invalidRequest;
+
+    Emitter(SaltFileFlow.Subscriber<? super SaltFileResult> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException(String.format("At least 1 result must be requested, but %d was requested.", n));
+        cancel();
+        return;
+      }
+
+      synchronized (demandLock) {
+        demand = (demand + n < 0 ? Long.MAX_VALUE : demand + n);
+        demandLock.notifyAll();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      synchronized (demandLock) {
+        demandLock.notifyAll();
+      }
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * Send a result to the subscriber, waiting until it has been requested.  If the subscription is cancelled (or
+     * the thread is interrupted) first, the result is dropped.
+     */
+    void emit(SaltFileResult result) {
+      // Wait without holding the emitter's monitor, so a waiting thread doesn't hold up complete or error, or other
+      // threads that already have demand
+      synchronized (demandLock) {
+        try {
+          while (demand == 0 && !cancelled) {
+            demandLock.wait();
+          }
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (cancelled) {
+          return;
+        }
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+      }
+
+      // The subscriber is still only called by one thread at a time
+      synchronized (this) {
+        if (terminated) {
+          return;
+        }
+        try {
+          subscriber.onNext(result);
+        }
+        catch (RuntimeException e) {
+          // A subscriber that throws has broken its contract, so it gets nothing more
+          cancel();
+        }
+      }
+    }
+
+    synchronized void complete() {
+      if (invalidRequest != null) {
+        signalError(invalidRequest);
+      }
+      else if (!cancelled && !terminated) {
+        terminated = true;
+        subscriber.onComplete();
+      }
+    }
+
+    synchronized void error(Throwable throwable) {
+      signalError(invalidRequest != null ? invalidRequest : throwable);
+    }
+
+    private void signalError(Throwable throwable) {
+      if (terminated || (cancelled && throwable != invalidRequest)) {
+        return;
+      }
+      terminated = true;
+      subscriber.onError(throwable);
+    }
+  }
+}
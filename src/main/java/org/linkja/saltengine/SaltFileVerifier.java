@@ -0,0 +1,317 @@
+package org.linkja.saltengine;
+
+import org.json.JSONObject;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the salt files of a project in an output directory are ready to distribute: every file loads, belongs
+ * to the project, is named for its own site, and shares the same project token, and no site ID appears in more than
+ * one file.  For a project that was spread across several output directories, the files are found through the index
+ * of their locations next to the manifest.
+ *
+ * Files are loaded by several threads, but the results are reported one at a time, in file name order, as soon as
+ * they are ready.  Only a fingerprint of each file's project token and site ID is kept, so memory use does not grow
+ * with the size of the salt files.
+ */
+public class SaltFileVerifier {
+  // The number of characters of the project token fingerprint that are shown in the summary
+  public static final int FINGERPRINT_DISPLAY_LENGTH = 16;
+
+  /**
+   * The result of checking a single salt file
+   */
+  public static class FileResult {
+    private final String fileName;
+    private final String siteID;
+    private final String problem;
+
+    FileResult(String fileName, String siteID, String problem) {
+      this.fileName = fileName;
+      this.siteID = siteID;
+      this.problem = problem;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    /**
+     * @return The site ID in the file, or null if the file could not be loaded
+     */
+    public String getSiteID() {
+      return siteID;
+    }
+
+    /**
+     * @return A description of what is wrong with the file, or null if it is valid
+     */
+    public String getProblem() {
+      return problem;
+    }
+
+    public boolean isValid() {
+      return problem == null;
+    }
+
+    @Override
+    public String toString() {
+      return isValid() ? String.format("OK      %s (site '%s')", fileName, siteID)
+              : String.format("FAILED  %s %s", fileName, problem);
+    }
+  }
+
+  /**
+   * Receives the result for each salt file as soon as it has been checked
+   */
+  public interface ResultHandler {
+    void handleResult(FileResult result) throws Exception;
+  }
+
+  /**
+   * The totals for a verification run
+   */
+  public static class Summary {
+    private long filesChecked = 0;
+    private long filesFailed = 0;
+    private String projectTokenFingerprint;
+    private double elapsedSeconds;
+
+    public long getFilesChecked() {
+      return filesChecked;
+    }
+
+    public long getFilesFailed() {
+      return filesFailed;
+    }
+
+    public boolean isValid() {
+      return filesFailed == 0;
+    }
+
+    /**
+     * @return The start of the SHA-256 hash of the project token shared by the files, which can be compared across
+     * directories without revealing the token (null if no file could be loaded)
+     */
+    public String getProjectTokenFingerprint() {
+      return projectTokenFingerprint;
+    }
+
+    public double getElapsedSeconds() {
+      return elapsedSeconds;
+    }
+
+    public JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("filesChecked", filesChecked);
+      json.put("filesFailed", filesFailed);
+      json.put("valid", isValid());
+      if (projectTokenFingerprint != null) {
+        json.put("projectTokenFingerprint", projectTokenFingerprint);
+      }
+      json.put("elapsedSeconds", elapsedSeconds);
+      return json;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Checked %d salt files: %d valid, %d failed.  Project token fingerprint: %s",
+              filesChecked, filesChecked - filesFailed, filesFailed,
+              projectTokenFingerprint == null ? "(none)" : projectTokenFingerprint);
+    }
+  }
+
+  /**
+   * What a loader thread hands back for each file - everything needed for the checks, without the tokens
+   */
+  private static class LoadedFile {
+    String siteID;
+    byte[] projectTokenHash;
+    String problem;
+  }
+
+  private File projectDirectory;
+  private String projectName;
+  private int threadCount = SaltEngine.DEFAULT_THREAD_COUNT;
+
+  public File getProjectDirectory() {
+    return projectDirectory;
+  }
+
+  public void setProjectDirectory(File projectDirectory) throws FileNotFoundException {
+    if (!projectDirectory.isDirectory()) {
+      throw new FileNotFoundException(String.format("Unable to find the project directory %s", projectDirectory.toString()));
+    }
+    this.projectDirectory = projectDirectory;
+  }
+
+  public void setProjectDirectory(String projectDirectory) throws FileNotFoundException {
+    setProjectDirectory(new File(projectDirectory));
+  }
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  public void setProjectName(String projectName) throws LinkjaException {
+    if (projectName == null || projectName.trim().equals("")) {
+      throw new LinkjaException("The project name cannot be empty");
+    }
+    this.projectName = projectName.trim();
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) throws LinkjaException {
+    if (threadCount < 1) {
+      throw new LinkjaException(String.format("The number of threads must be at least 1, but %d was requested.", threadCount));
+    }
+
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Check every salt file for the project
+   * @param handler Receives the result for each file, in file name order
+   * @return The totals
+   * @throws LinkjaException If no salt files were found for the project
+   * @throws Exception If the handler throws
+   */
+  public Summary verify(ResultHandler handler) throws Exception {
+    long startTime = System.nanoTime();
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(this.projectDirectory.toPath(), this.projectName);
+    List<Path> files = projectFiles.find();
+
+    Summary summary = new Summary();
+    byte[] projectTokenHash = null;
+    String projectTokenFile = null;
+    FingerprintSet siteIDs = new FingerprintSet();
+
+    // Only a limited number of files are loaded ahead of the one being reported, so only a few are in memory at once
+    int window = this.threadCount * SaltEngine.MAX_QUEUED_SITES_PER_THREAD;
+    Deque<Future<LoadedFile>> pending = new ArrayDeque<Future<LoadedFile>>(window);
+    ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+    try {
+      int nextToLoad = 0;
+      for (int index = 0; index < files.size(); index++) {
+        while (nextToLoad < files.size() && pending.size() < window) {
+          Path file = files.get(nextToLoad++);
+          pending.add(executor.submit(() -> loadFile(projectFiles, file)));
+        }
+
+        String fileName = files.get(index).getFileName().toString();
+        LoadedFile loaded = getLoadedFile(pending.remove());
+        String problem = loaded.problem;
+        if (problem == null) {
+          if (projectTokenHash == null) {
+            projectTokenHash = loaded.projectTokenHash;
+            projectTokenFile = fileName;
+          }
+          else if (!Arrays.equals(projectTokenHash, loaded.projectTokenHash)) {
+            problem = String.format("has a different project token from %s", projectTokenFile);
+          }
+        }
+        if (problem == null && !siteIDs.add(FingerprintSet.fingerprint(loaded.siteID))) {
+          String earlierFile = findEarlierSite(files.subList(0, index), loaded.siteID);
+          if (earlierFile != null) {
+            problem = String.format("repeats the site ID '%s' from %s", loaded.siteID, earlierFile);
+          }
+        }
+
+        summary.filesChecked++;
+        if (problem != null) {
+          summary.filesFailed++;
+        }
+        handler.handleResult(new FileResult(fileName, loaded.siteID, problem));
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    if (projectTokenHash != null) {
+      summary.projectTokenFingerprint = toHex(projectTokenHash).substring(0, FINGERPRINT_DISPLAY_LENGTH);
+    }
+    summary.elapsedSeconds = (double)(System.nanoTime() - startTime) / 1_000_000_000.0;
+    return summary;
+  }
+
+  private static LoadedFile getLoadedFile(Future<LoadedFile> future) throws LinkjaException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LinkjaException("Verification was interrupted before all of the salt files were checked");
+    } catch (ExecutionException e) {
+      // loadFile reports its own problems, so this only happens for unexpected errors
+      throw new LinkjaException(String.format("Unable to check the salt files: %s", e.getCause().getMessage()));
+    }
+  }
+
+  /**
+   * Load a salt file and check it on its own.  The checks that compare it with other files are done as the results
+   * are reported.
+   */
+  private static LoadedFile loadFile(ProjectSaltFiles projectFiles, Path file) throws Exception {
+    LoadedFile loaded = new LoadedFile();
+    SaltFile saltFile = new SaltFile();
+    try {
+      saltFile.load(file.toFile());
+    }
+    catch (Exception e) {
+      loaded.problem = String.format("could not be loaded (%s)", e.getMessage());
+      return loaded;
+    }
+
+    loaded.siteID = saltFile.getSite().getSiteID();
+    loaded.problem = projectFiles.checkSaltFile(file.getFileName().toString(), saltFile);
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    loaded.projectTokenHash = digest.digest(saltFile.getProjectSalt().getBytes(StandardCharsets.UTF_8));
+    return loaded;
+  }
+
+  /**
+   * Confirm a possible duplicate site ID by loading the earlier files again.  Fingerprints rarely collide, so this
+   * only happens when there really is a duplicate.
+   * @return The name of the earlier file with the same site ID, or null if there is none
+   */
+  private static String findEarlierSite(List<Path> earlierFiles, String siteID) {
+    for (Path file : earlierFiles) {
+      SaltFile saltFile = new SaltFile();
+      try {
+        saltFile.load(file.toFile());
+      }
+      catch (Exception e) {
+        continue;
+      }
+      if (siteID.equals(saltFile.getSite().getSiteID())) {
+        return file.getFileName().toString();
+      }
+    }
+    return null;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte value : bytes) {
+      hex.append(String.format("%02x", value));
+    }
+    return hex.toString();
+  }
+}
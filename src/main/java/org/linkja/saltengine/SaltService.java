@@ -0,0 +1,447 @@
+package org.linkja.saltengine;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.linkja.core.LinkjaException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-running service that accepts generateProject and addSites jobs over HTTP.  Keeping the service running
+ * avoids starting a new JVM and loading the native library for every request.
+ *
+ * The service only listens on the loopback interface.  Jobs are run by a fixed number of job threads, and a bounded
+ * number of jobs may wait for a free thread - once that queue is full, new jobs are rejected until there is room.
+ * Each request waits for its job to finish, and receives the generated file locations and timings in the response.
+ *
+ * Listening on loopback only keeps other machines out, not other programs on this one - including web pages open in
+ * the operator's browser.  So every request must carry the service's access token in the ACCESS_TOKEN_HEADER header,
+ * jobs must be sent as application/json (which a page can't send to another origin without the browser asking first),
+ * and requests from a browser page or for a host name other than the loopback address are rejected.  The files a job
+ * reads and writes must all be inside the base directory, and the number of threads a job may use is capped.
+ */
+public class SaltService {
+  public static final int DEFAULT_PORT = 8765;
+  public static final int DEFAULT_JOB_THREADS = 2;
+  public static final int DEFAULT_QUEUE_SIZE = 16;
+
+  public static final String GENERATE_PROJECT_PATH = "/generateProject";
+  public static final String ADD_SITES_PATH = "/addSites";
+  public static final String STATUS_PATH = "/status";
+
+  public static final String ACCESS_TOKEN_HEADER = "X-Linkja-Access-Token";
+  public static final int ACCESS_TOKEN_LENGTH = 32;
+  public static final int DEFAULT_MAXIMUM_THREADS = Runtime.getRuntime().availableProcessors();
+  // A job is a handful of file names and settings, so a larger body is a mistake (or an attack) and is never read
+  public static final int MAXIMUM_BODY_SIZE = 1024 * 1024;
+
+  private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+  private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final List<String> LOOPBACK_HOSTS = Arrays.asList("localhost", "127.0.0.1", "[::1]");
+
+  private final int port;
+  private final int jobThreads;
+  private final int queueSize;
+  private String accessToken = new SecureRandomTokenSource().generateToken(ACCESS_TOKEN_LENGTH);
+  private Path baseDirectory;
+  private int maximumThreads = DEFAULT_MAXIMUM_THREADS;
+
+  private HttpServer server;
+  private ThreadPoolExecutor jobExecutor;
+  private ExecutorService requestExecutor;
+  private final AtomicLong nextJobId = new AtomicLong(1);
+  private final AtomicLong completedJobs = new AtomicLong();
+  private final AtomicLong failedJobs = new AtomicLong();
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /**
+   * @param port The port to listen on (0 to pick any free port)
+   * @param jobThreads The number of jobs that may run at the same time
+   * @param queueSize The number of jobs that may wait to run
+   * @throws LinkjaException
+   */
+  public SaltService(int port, int jobThreads, int queueSize) throws LinkjaException {
+    if (port < 0 || port > 65535) {
+      throw new LinkjaException(String.format("The port must be between 0 and 65535, but %d was requested.", port));
+    }
+    if (jobThreads < 1) {
+      throw new LinkjaException(String.format("The number of job threads must be at least 1, but %d was requested.", jobThreads));
+    }
+    if (queueSize < 1) {
+      throw new LinkjaException(String.format("The job queue size must be at least 1, but %d was requested.", queueSize));
+    }
+
+    this.port = port;
+    this.jobThreads = jobThreads;
+    this.queueSize = queueSize;
+    try {
+      this.baseDirectory = new File("").getAbsoluteFile().toPath().toRealPath();
+    }
+    catch (IOException exc) {
+      throw new LinkjaException(String.format("Unable to find the current directory: %s", exc.getMessage()));
+    }
+  }
+
+  /**
+   * @return The token that every request must carry in the ACCESS_TOKEN_HEADER header.  Unless one is set, a new
+   * random token is created for each service.
+   */
+  public String getAccessToken() {
+    return accessToken;
+  }
+
+  public void setAccessToken(String accessToken) throws LinkjaException {
+    if (accessToken == null || accessToken.trim().length() < SaltEngine.MINIMUM_TOKEN_LENGTH) {
+      throw new LinkjaException(String.format("The access token must be at least %d characters long.", SaltEngine.MINIMUM_TOKEN_LENGTH));
+    }
+    this.accessToken = accessToken.trim();
+  }
+
+  public Path getBaseDirectory() {
+    return baseDirectory;
+  }
+
+  /**
+   * @param baseDirectory The directory that every file a job reads or writes must be in (by default, the current
+   *                      directory).  Relative paths in a job are resolved against it.
+   * @throws FileNotFoundException If the directory doesn't exist
+   */
+  public void setBaseDirectory(File baseDirectory) throws FileNotFoundException {
+    if (!baseDirectory.isDirectory()) {
+      throw new FileNotFoundException(String.format("Unable to find the base directory %s", baseDirectory.toString()));
+    }
+    try {
+      this.baseDirectory = baseDirectory.getAbsoluteFile().toPath().toRealPath();
+    }
+    catch (IOException exc) {
+      throw new FileNotFoundException(String.format("Unable to find the base directory %s", baseDirectory.toString()));
+    }
+  }
+
+  public int getMaximumThreads() {
+    return maximumThreads;
+  }
+
+  /**
+   * @param maximumThreads The largest number of worker threads a single job may ask for
+   */
+  public void setMaximumThreads(int maximumThreads) throws LinkjaException {
+    if (maximumThreads < 1) {
+      throw new LinkjaException(String.format("The maximum number of threads must be at least 1, but %d was requested.", maximumThreads));
+    }
+    this.maximumThreads = maximumThreads;
+  }
+
+  /**
+   * Start listening for jobs
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    jobExecutor = new ThreadPoolExecutor(jobThreads, jobThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize));
+    // Each request waits for its job, so we need a request thread for every running and queued job, plus some to
+    // quickly turn away requests when the queue is full.
+    requestExecutor = Executors.newFixedThreadPool(jobThreads + queueSize + 2);
+
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(GENERATE_PROJECT_PATH, exchange -> {
+      if (checkRequest(exchange)) {
+        handleJob(exchange, true);
+      }
+    });
+    server.createContext(ADD_SITES_PATH, exchange -> {
+      if (checkRequest(exchange)) {
+        handleJob(exchange, false);
+      }
+    });
+    server.createContext(STATUS_PATH, exchange -> {
+      if (checkRequest(exchange)) {
+        handleStatus(exchange);
+      }
+    });
+    server.setExecutor(requestExecutor);
+    server.start();
+  }
+
+  /**
+   * Stop accepting jobs, and wait briefly for running jobs to finish
+   */
+  public void stop() {
+    if (server != null) {
+      server.stop(1);
+    }
+    if (jobExecutor != null) {
+      jobExecutor.shutdown();
+      try {
+        jobExecutor.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (requestExecutor != null) {
+      requestExecutor.shutdownNow();
+    }
+    stopped.countDown();
+  }
+
+  /**
+   * Block until the service has been stopped
+   * @throws InterruptedException
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  /**
+   * @return The port the service is listening on
+   */
+  public int getPort() {
+    return (server == null ? port : server.getAddress().getPort());
+  }
+
+  /**
+   * Reject requests that don't carry the access token, come from a web page, or were sent to a host name other than
+   * the loopback address (as happens when a page's own host name is pointed at 127.0.0.1)
+   * @return true if the request may be handled
+   */
+  private boolean checkRequest(HttpExchange exchange) throws IOException {
+    String host = exchange.getRequestHeaders().getFirst("Host");
+    if (host == null || !isLoopbackHost(host, "")) {
+      sendError(exchange, HttpURLConnection.HTTP_FORBIDDEN, "Requests must be sent to the loopback address");
+      return false;
+    }
+    String origin = exchange.getRequestHeaders().getFirst("Origin");
+    if (origin != null && !isLoopbackHost(origin, "http://")) {
+      sendError(exchange, HttpURLConnection.HTTP_FORBIDDEN, "Requests from web pages are not accepted");
+      return false;
+    }
+
+    String token = exchange.getRequestHeaders().getFirst(ACCESS_TOKEN_HEADER);
+    if (token == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), accessToken.getBytes(StandardCharsets.UTF_8))) {
+      sendError(exchange, HttpURLConnection.HTTP_UNAUTHORIZED, String.format("The request must include the service's access token in the %s header", ACCESS_TOKEN_HEADER));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the value is one of the loopback host names, with the port the service listens on
+   */
+  private boolean isLoopbackHost(String value, String prefix) {
+    for (String host : LOOPBACK_HOSTS) {
+      if (value.equalsIgnoreCase(String.format("%s%s:%d", prefix, host, getPort()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void handleJob(HttpExchange exchange, boolean generateProject) throws IOException {
+    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+      sendError(exchange, HttpURLConnection.HTTP_BAD_METHOD, "Jobs must be submitted with a POST request");
+      return;
+    }
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType == null || !contentType.split(";")[0].trim().toLowerCase(Locale.ROOT).equals("application/json")) {
+      sendError(exchange, HTTP_UNSUPPORTED_MEDIA_TYPE, "Jobs must be submitted as application/json");
+      return;
+    }
+
+    String body = readBody(exchange);
+    if (body == null) {
+      sendError(exchange, HttpURLConnection.HTTP_ENTITY_TOO_LARGE, String.format("The request can't be larger than %d bytes", MAXIMUM_BODY_SIZE));
+      return;
+    }
+
+    long jobId = nextJobId.getAndIncrement();
+    long submittedTime = System.nanoTime();
+    Future<JSONObject> job;
+    try {
+      JSONObject request = new JSONObject(body);
+      job = jobExecutor.submit(() -> runJob(jobId, request, generateProject, submittedTime));
+    }
+    catch (JSONException exc) {
+      sendError(exchange, HttpURLConnection.HTTP_BAD_REQUEST, String.format("The request is not valid JSON: %s", exc.getMessage()));
+      return;
+    }
+    catch (RejectedExecutionException exc) {
+      sendError(exchange, HTTP_TOO_MANY_REQUESTS, "The job queue is full.  Please try again later.");
+      return;
+    }
+
+    try {
+      JSONObject result = job.get();
+      sendResponse(exchange, (result.getString("status").equals("completed") ? HttpURLConnection.HTTP_OK : HTTP_UNPROCESSABLE_ENTITY), result);
+    }
+    catch (ExecutionException exc) {
+      // runJob reports problems with the job itself in its result, so this is unexpected
+      sendError(exchange, HttpURLConnection.HTTP_INTERNAL_ERROR, exc.getCause().getMessage());
+    }
+    catch (InterruptedException exc) {
+      job.cancel(true);
+      Thread.currentThread().interrupt();
+      sendError(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "The service is shutting down");
+    }
+  }
+
+  /**
+   * Run a single job, and build the result that is sent back to the client
+   */
+  private JSONObject runJob(long jobId, JSONObject request, boolean generateProject, long submittedTime) {
+    long startTime = System.nanoTime();
+    List<String> files = Collections.synchronizedList(new ArrayList<String>());
+    SaltEngine engine = new SaltEngine();
+    engine.setSaltFileListener((site, location) -> files.add(location));
+
+    JSONObject result = new JSONObject();
+    result.put("jobId", jobId);
+    try {
+      engine.setSitesFile(resolveFile(getRequiredString(request, "siteFile"), "siteFile"));
+      if (generateProject) {
+        engine.setProjectName(getRequiredString(request, "projectName"));
+      }
+      else {
+        engine.setSaltFile(resolveFile(getRequiredString(request, "saltFile"), "saltFile"));
+      }
+      int threads = request.optInt("threads", SaltEngine.DEFAULT_THREAD_COUNT);
+      if (threads > maximumThreads) {
+        throw new LinkjaException(String.format("A job may use at most %d threads, but %d were requested.", maximumThreads, threads));
+      }
+      engine.setThreadCount(threads);
+      engine.setStreamSites(request.optBoolean("streamSites", false));
+      String archiveFile = request.optString("archiveFile", null);
+      engine.setArchiveFile(archiveFile == null ? null : resolveFile(archiveFile, "archiveFile"));
+
+      if (generateProject) {
+        engine.generate();
+      }
+      else {
+        engine.addSites();
+      }
+      result.put("status", "completed");
+      completedJobs.incrementAndGet();
+    }
+    catch (Exception exc) {
+      result.put("status", "failed");
+      result.put("error", exc.getMessage());
+      failedJobs.incrementAndGet();
+    }
+
+    long endTime = System.nanoTime();
+    synchronized (files) {
+      result.put("files", new JSONArray(files));
+    }
+    result.put("queuedSeconds", (double)(startTime - submittedTime) / 1_000_000_000.0);
+    result.put("runSeconds", (double)(endTime - startTime) / 1_000_000_000.0);
+    result.put("metrics", engine.getMetrics().toJSON());
+    return result;
+  }
+
+  private void handleStatus(HttpExchange exchange) throws IOException {
+    JSONObject status = new JSONObject();
+    status.put("runningJobs", jobExecutor.getActiveCount());
+    status.put("queuedJobs", jobExecutor.getQueue().size());
+    status.put("queueSize", queueSize);
+    status.put("completedJobs", completedJobs.get());
+    status.put("failedJobs", failedJobs.get());
+    sendResponse(exchange, HttpURLConnection.HTTP_OK, status);
+  }
+
+  /**
+   * Resolve a path from a job against the base directory, and make sure it doesn't lead out of it (including through
+   * a symbolic link)
+   * @param path The path from the job
+   * @param name The name of the field, for the error message
+   * @return The file
+   * @throws LinkjaException If the file is outside the base directory
+   */
+  private File resolveFile(String path, String name) throws LinkjaException, IOException {
+    Path file = baseDirectory.resolve(path).normalize();
+    // The file itself may not exist yet (e.g., an archive), so links are followed for the part of the path that does
+    Path existing = file;
+    while (existing != null && !Files.exists(existing)) {
+      existing = existing.getParent();
+    }
+    Path realFile = (existing == null ? file : existing.toRealPath().resolve(existing.relativize(file)));
+    if (!realFile.startsWith(baseDirectory)) {
+      throw new LinkjaException(String.format("The %s must be inside the service's base directory %s", name, baseDirectory.toString()));
+    }
+    return realFile.toFile();
+  }
+
+  private static String getRequiredString(JSONObject request, String name) throws LinkjaException {
+    String value = request.optString(name, null);
+    if (value == null) {
+      throw new LinkjaException(String.format("The request must include '%s'", name));
+    }
+    return value;
+  }
+
+  /**
+   * Read the body of a request, stopping as soon as it is known to be larger than MAXIMUM_BODY_SIZE
+   * @return The body, or null if it is too large
+   */
+  private static String readBody(HttpExchange exchange) throws IOException {
+    String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+    try {
+      if (contentLength != null && Long.parseLong(contentLength.trim()) > MAXIMUM_BODY_SIZE) {
+        return null;
+      }
+    }
+    catch (NumberFormatException e) {
+      // The body is still capped as it is read
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream stream = exchange.getRequestBody()) {
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = stream.read(buffer)) != -1) {
+        if (body.size() + length > MAXIMUM_BODY_SIZE) {
+          return null;
+        }
+        body.write(buffer, 0, length);
+      }
+    }
+    return new String(body.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static void sendError(HttpExchange exchange, int statusCode, String message) throws IOException {
+    JSONObject error = new JSONObject();
+    error.put("status", "rejected");
+    error.put("error", message);
+    sendResponse(exchange, statusCode, error);
+  }
+
+  private static void sendResponse(HttpExchange exchange, int statusCode, JSONObject body) throws IOException {
+    byte[] response = body.toString(2).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(statusCode, response.length);
+    try (OutputStream stream = exchange.getResponseBody()) {
+      stream.write(response);
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package org.linkja.saltengine;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Creates tokens in pure Java, so no native library is needed.  Each thread has its own DRBG, seeded separately from
+ * the operating system, so threads never wait on each other (or on a shared lock) to create a token.
+ *
+ * The NIST DRBG is used where the JVM provides it (Java 9 and later).  On older JVMs each thread gets its own SHA1PRNG
+ * instead - the default SecureRandom on Linux reads through a single shared, synchronized source, which is exactly the
+ * contention this class avoids.
+ */
+public class SecureRandomTokenSource implements TokenSource {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandomTokenSource::createRandom);
+
+  @Override
+  public String getName() {
+    return JAVA;
+  }
+
+  @Override
+  public String generateToken(int tokenLength) {
+    char[] token = new char[tokenLength * 2];
+    try {
+      generateToken(tokenLength, token, 0);
+      return new String(token);
+    }
+    finally {
+      Arrays.fill(token, '\0');
+    }
+  }
+
+  @Override
+  public void generateToken(int tokenLength, char[] destination, int offset) {
+    byte[] bytes = new byte[tokenLength];
+    try {
+      random.get().nextBytes(bytes);
+      for (int index = 0; index < tokenLength; index++) {
+        destination[offset + index * 2] = HEX_DIGITS[(bytes[index] >> 4) & 0xf];
+        destination[offset + index * 2 + 1] = HEX_DIGITS[bytes[index] & 0xf];
+      }
+    }
+    finally {
+      Arrays.fill(bytes, (byte)0);
+    }
+  }
+
+  private static SecureRandom createRandom() {
+    for (String algorithm : new String[] { "DRBG", "SHA1PRNG" }) {
+      try {
+        return SecureRandom.getInstance(algorithm);
+      }
+      catch (NoSuchAlgorithmException e) {
+        // Try the next one
+      }
+    }
+    return new SecureRandom();
+  }
+}
@@ -0,0 +1,75 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+
+import java.nio.file.Path;
+
+/**
+ * One part of a project whose salt files are created by several processes.  Every process reads the same site file,
+ * and each site belongs to exactly one shard, chosen from a hash of its site ID.  The hash only depends on the site
+ * ID, so every process agrees on the partition no matter where or in what order the sites are read.
+ */
+public class Shard {
+  private final int index;
+  private final int count;
+
+  /**
+   * @param index The shard, from 0 to count - 1
+   * @param count The total number of shards
+   * @throws LinkjaException If the index or count is out of range
+   */
+  public Shard(int index, int count) throws LinkjaException {
+    if (count < 1) {
+      throw new LinkjaException(String.format("The number of shards must be at least 1, but %d was requested.", count));
+    }
+    if (index < 0 || index >= count) {
+      throw new LinkjaException(String.format("The shard index must be between 0 and %d, but %d was requested.", count - 1, index));
+    }
+
+    this.index = index;
+    this.count = count;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @param siteID The site ID
+   * @param count The total number of shards
+   * @return The shard that the site belongs to
+   */
+  public static int getShardIndex(String siteID, int count) {
+    return (int)Long.remainderUnsigned(FingerprintSet.fingerprint(siteID), count);
+  }
+
+  /**
+   * @param siteID The site ID
+   * @return true if the site belongs to this shard
+   */
+  public boolean contains(String siteID) {
+    return getShardIndex(siteID, count) == index;
+  }
+
+  /**
+   * Get the location of the manifest for this shard.  Each shard keeps its own manifest, so several processes can
+   * write to the same directory at the same time.
+   * @param directory The output directory
+   * @param projectName The name of the project
+   * @return The path of the manifest file
+   */
+  public Path getManifestPath(Path directory, String projectName) {
+    String projectManifest = OutputManifest.getManifestPath(directory, projectName).getFileName().toString();
+    String baseName = projectManifest.substring(0, projectManifest.length() - OutputManifest.MANIFEST_FILE_SUFFIX.length());
+    return directory.resolve(String.format("%s.shard-%d-of-%d%s", baseName, index, count, OutputManifest.MANIFEST_FILE_SUFFIX));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("shard %d (of %d)", index, count);
+  }
+}
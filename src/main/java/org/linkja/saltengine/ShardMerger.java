@@ -0,0 +1,212 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+import org.linkja.core.Site;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Checks the output of every shard of a project once they have all finished, and combines their manifests into the
+ * manifest for the whole project.  The shards must not overlap: each site must have been committed by the shard it
+ * belongs to, and by no other shard.  They must also be complete: every site in the site file must have a salt file,
+ * and all of the salt files must share the project token from the project token file.
+ *
+ * Once the shards have been merged, the project looks exactly as if it had been created by a single process, so it
+ * can be verified, extended or rotated like any other project.
+ */
+public class ShardMerger {
+  private File sitesFile;
+  private File tokenFile;
+  private int shardCount = 1;
+  private int threadCount = SaltEngine.DEFAULT_THREAD_COUNT;
+
+  // Results of the most recent merge
+  private long siteCount = 0;
+  private long[] shardSiteCounts = new long[0];
+
+  public File getSitesFile() {
+    return sitesFile;
+  }
+
+  public void setSitesFile(File sitesFile) throws FileNotFoundException {
+    if (!sitesFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find site configuration file %s", sitesFile.toString()));
+    }
+    this.sitesFile = sitesFile;
+  }
+
+  public void setSitesFile(String sitesFile) throws FileNotFoundException {
+    setSitesFile(new File(sitesFile));
+  }
+
+  public File getTokenFile() {
+    return tokenFile;
+  }
+
+  /**
+   * @param tokenFile The project token file that was shared by all of the shards
+   * @throws FileNotFoundException
+   */
+  public void setTokenFile(File tokenFile) throws FileNotFoundException {
+    if (!tokenFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find your salt file %s", tokenFile.toString()));
+    }
+    this.tokenFile = tokenFile;
+  }
+
+  public void setTokenFile(String tokenFile) throws FileNotFoundException {
+    setTokenFile(new File(tokenFile));
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  public void setShardCount(int shardCount) throws LinkjaException {
+    if (shardCount < 1) {
+      throw new LinkjaException(String.format("The number of shards must be at least 1, but %d was requested.", shardCount));
+    }
+    this.shardCount = shardCount;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) throws LinkjaException {
+    if (threadCount < 1) {
+      throw new LinkjaException(String.format("The number of threads must be at least 1, but %d was requested.", threadCount));
+    }
+
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * @return The number of sites in the project, after the most recent merge
+   */
+  public long getSiteCount() {
+    return siteCount;
+  }
+
+  /**
+   * @return The number of sites each shard created salt files for, after the most recent merge
+   */
+  public long[] getShardSiteCounts() {
+    return shardSiteCounts.clone();
+  }
+
+  /**
+   * Check the output of every shard, and if it is complete, write the manifest for the whole project
+   * @throws LinkjaException If the shards overlap, or are not complete
+   * @throws Exception
+   */
+  public void merge() throws Exception {
+    SaltFile tokenSaltFile = new SaltFile();
+    tokenSaltFile.load(this.tokenFile);
+    String projectName = tokenSaltFile.getProjectName();
+    Path directory = this.sitesFile.getAbsoluteFile().getParentFile().toPath();
+
+    SaltEngine engine = new SaltEngine();
+    List<Site> sites = engine.loadSites(this.sitesFile);
+    engine.validateSites(sites);
+
+    List<String> problems = new ArrayList<String>();
+    Map<String, Integer> committedShards = new HashMap<String, Integer>();
+    Map<String, String> fileNames = new HashMap<String, String>();
+    Map<String, String> checksums = new HashMap<String, String>();
+    long[] counts = new long[this.shardCount];
+    for (int index = 0; index < this.shardCount; index++) {
+      Shard shard = new Shard(index, this.shardCount);
+      Path manifestFile = shard.getManifestPath(directory, projectName);
+      if (!Files.exists(manifestFile)) {
+        problems.add(String.format("  There is no manifest for %s (%s), so it has not been run.", shard.toString(), manifestFile.getFileName()));
+        continue;
+      }
+
+      try (OutputManifest manifest = OutputManifest.open(manifestFile)) {
+        for (String siteID : manifest.getCommittedSiteIDs()) {
+          Integer earlierShard = committedShards.put(siteID, index);
+          if (earlierShard != null) {
+            problems.add(String.format("  The site '%s' was committed by both shard %d and shard %d.", siteID, earlierShard, index));
+          }
+          else if (!shard.contains(siteID)) {
+            problems.add(String.format("  The site '%s' was committed by shard %d, but it belongs to shard %d.",
+                    siteID, index, Shard.getShardIndex(siteID, this.shardCount)));
+          }
+          fileNames.put(siteID, manifest.getCommittedFileName(siteID));
+          checksums.put(siteID, manifest.getCommittedChecksum(siteID));
+          counts[index]++;
+        }
+      }
+    }
+
+    Set<String> siteIDs = new HashSet<String>();
+    List<Path> saltFiles = new ArrayList<Path>(sites.size());
+    for (Site site : sites) {
+      siteIDs.add(site.getSiteID());
+      String fileName = fileNames.get(site.getSiteID());
+      if (fileName == null) {
+        problems.add(String.format("  The site '%s' has no salt file (it belongs to shard %d).",
+                site.getSiteID(), Shard.getShardIndex(site.getSiteID(), this.shardCount)));
+      }
+      else if (!Files.exists(directory.resolve(fileName))) {
+        problems.add(String.format("  The salt file %s for the site '%s' is missing.", fileName, site.getSiteID()));
+      }
+      else {
+        saltFiles.add(directory.resolve(fileName));
+      }
+    }
+    for (String siteID : committedShards.keySet()) {
+      if (!siteIDs.contains(siteID)) {
+        problems.add(String.format("  The site '%s' was committed by shard %d, but it is not in the site file.",
+                siteID, committedShards.get(siteID)));
+      }
+    }
+
+    if (problems.size() > 0) {
+      throw new LinkjaException(String.format("The %d shards can't be merged, because of %d problems:%n%s",
+              this.shardCount, problems.size(), String.join(System.lineSeparator(), problems)));
+    }
+
+    List<SaltFile> loaded = new ProjectSaltFiles(directory, projectName).load(saltFiles, this.threadCount);
+    if (!loaded.get(0).getProjectSalt().equals(tokenSaltFile.getProjectSalt())) {
+      throw new LinkjaException(String.format("The salt files were not created with the project token in %s.",
+              this.tokenFile.toString()));
+    }
+
+    writeProjectManifest(directory, projectName, sites, fileNames, checksums);
+    this.siteCount = sites.size();
+    this.shardSiteCounts = counts;
+  }
+
+  /**
+   * Write the manifest for the whole project, in the order of the site file.  It is written under a temporary name
+   * first, so an existing manifest is only ever replaced by a complete one, and the project is locked while it is.
+   */
+  private static void writeProjectManifest(Path directory, String projectName, List<Site> sites,
+                                           Map<String, String> fileNames, Map<String, String> checksums) throws Exception {
+    Path manifestFile = OutputManifest.getManifestPath(directory, projectName);
+    Path stagedFile = manifestFile.resolveSibling(manifestFile.getFileName().toString() + SaltEngine.TEMP_FILE_SUFFIX);
+    try (ProjectLock lock = ProjectLock.acquire(manifestFile)) {
+      Files.deleteIfExists(stagedFile);
+      try {
+        try (OutputManifest manifest = OutputManifest.open(stagedFile)) {
+          for (Site site : sites) {
+            manifest.appendCommitted(site, fileNames.get(site.getSiteID()), checksums.get(site.getSiteID()));
+          }
+          manifest.flush();
+        }
+        Files.move(stagedFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally {
+        Files.deleteIfExists(stagedFile);
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package org.linkja.saltengine;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the rows of a site file directly from its bytes, without going through a Reader and a general purpose CSV
+ * parser.  Only the first two fields of each row are turned into strings; any others are just counted, so that the
+ * caller can report the same column count error as before.
+ *
+ * The parsing rules are the same as CSVFormat.DEFAULT with a comma delimiter:
+ *
+ *   - a field that starts with a double quote may contain commas and line breaks, and "" inside it is a single quote
+ *   - only whitespace may follow the closing quote of a field
+ *   - rows end with CR, LF or CRLF
+ *   - empty lines are skipped, and are not counted as rows
+ *
+ * The file is read through a channel.  A gzip compressed file (recognised by its first two bytes, not its name) is
+ * decompressed as it is read.  The name "-" reads the site file from standard input instead.
+ *
+ * Field values are decoded with the platform default character set, as FileReader did.  The delimiter, quote and
+ * line break characters are the same single bytes in every ASCII compatible character set, including UTF-8.
+ */
+class SiteFileReader implements Closeable {
+  public static final String STANDARD_INPUT = "-";
+  public static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int END_OF_FILE = -1;
+  private static final int GZIP_MAGIC_1 = 0x1f;
+  private static final int GZIP_MAGIC_2 = 0x8b;
+
+  private final ReadableByteChannel channel;
+  private final boolean closeChannel;
+  private final Charset charset;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+  private final byte[] bytes = buffer.array();
+  private int position = 0;
+  private int limit = 0;
+
+  // The bytes of the field that is being read
+  private byte[] field = new byte[256];
+  private int fieldLength = 0;
+
+  // The current row
+  private final String[] values = new String[SaltEngine.SITE_FILE_COLUMN_COUNT];
+  private int fieldCount = 0;
+  private long recordNumber = 0;
+
+  SiteFileReader(ReadableByteChannel channel, boolean closeChannel, Charset charset) {
+    this.channel = channel;
+    this.closeChannel = closeChannel;
+    this.charset = charset;
+  }
+
+  /**
+   * Open a site file for reading
+   * @param siteFile The site file, which may be gzip compressed, or "-" for standard input
+   * @return The reader
+   * @throws IOException
+   */
+  static SiteFileReader open(File siteFile) throws IOException {
+    if (isStandardInput(siteFile)) {
+      // Standard input belongs to the process, so it is left open when we are done
+      return new SiteFileReader(openStream(new BufferedInputStream(System.in, BUFFER_SIZE)), false, Charset.defaultCharset());
+    }
+
+    FileChannel channel = FileChannel.open(siteFile.toPath(), StandardOpenOption.READ);
+    try {
+      if (isCompressed(channel)) {
+        return new SiteFileReader(Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE)),
+                true, Charset.defaultCharset());
+      }
+      return new SiteFileReader(channel, true, Charset.defaultCharset());
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the file refers to standard input instead of a file on disk
+   */
+  static boolean isStandardInput(File siteFile) {
+    return siteFile.getPath().equals(STANDARD_INPUT);
+  }
+
+  private static boolean isCompressed(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(2);
+    while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+      // Keep reading until we have both bytes, or reach the end of a very short file
+    }
+    return header.position() == 2 && (header.get(0) & 0xff) == GZIP_MAGIC_1 && (header.get(1) & 0xff) == GZIP_MAGIC_2;
+  }
+
+  private static ReadableByteChannel openStream(BufferedInputStream stream) throws IOException {
+    stream.mark(2);
+    int first = stream.read();
+    int second = stream.read();
+    stream.reset();
+    if (first == GZIP_MAGIC_1 && second == GZIP_MAGIC_2) {
+      return Channels.newChannel(new GZIPInputStream(stream, BUFFER_SIZE));
+    }
+    return Channels.newChannel(stream);
+  }
+
+  /**
+   * Move to the next row of the site file
+   * @return true if there was another row, false at the end of the file
+   * @throws IOException If the file can't be read, or a quoted field is not valid
+   */
+  boolean next() throws IOException {
+    int current = read();
+    while (current == '\r' || current == '\n') {
+      // Empty lines are skipped
+      current = read();
+    }
+    if (current == END_OF_FILE) {
+      return false;
+    }
+
+    fieldCount = 0;
+    values[0] = null;
+    values[1] = null;
+    recordNumber++;
+    while (true) {
+      fieldLength = 0;
+      if (current == '"') {
+        current = readQuotedField();
+      }
+      else {
+        while (current != ',' && current != '\r' && current != '\n' && current != END_OF_FILE) {
+          append(current);
+          current = read();
+        }
+      }
+
+      if (fieldCount < values.length) {
+        values[fieldCount] = new String(field, 0, fieldLength, charset);
+      }
+      fieldCount++;
+
+      if (current == ',') {
+        current = read();
+      }
+      else {
+        if (current == '\r' && peek() == '\n') {
+          position++;
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Read a quoted field, starting just after the opening quote
+   * @return The byte that ended the field (a delimiter, line break or the end of the file)
+   */
+  private int readQuotedField() throws IOException {
+    while (true) {
+      int current = read();
+      if (current == END_OF_FILE) {
+        throw new IOException(String.format("Row %d: the end of the file was reached inside a quoted field", recordNumber));
+      }
+      if (current == '"') {
+        if (peek() != '"') {
+          break;
+        }
+        position++;
+      }
+      append(current);
+    }
+
+    int current = read();
+    while (current != ',' && current != '\r' && current != '\n' && current != END_OF_FILE) {
+      if (!Character.isWhitespace(current)) {
+        throw new IOException(String.format("Row %d: invalid character between a quoted field and the delimiter", recordNumber));
+      }
+      current = read();
+    }
+    return current;
+  }
+
+  /**
+   * @return The number of fields in the current row
+   */
+  int getFieldCount() {
+    return fieldCount;
+  }
+
+  /**
+   * @param index The field, which must be less than SaltEngine.SITE_FILE_COLUMN_COUNT
+   * @return The value of a field in the current row, or null if the row doesn't have it
+   */
+  String get(int index) {
+    return values[index];
+  }
+
+  /**
+   * @return The number of the current row, counting from 1 and not counting empty lines
+   */
+  long getRecordNumber() {
+    return recordNumber;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closeChannel) {
+      channel.close();
+    }
+  }
+
+  private void append(int value) {
+    if (fieldLength == field.length) {
+      byte[] larger = new byte[field.length * 2];
+      System.arraycopy(field, 0, larger, 0, fieldLength);
+      field = larger;
+    }
+    field[fieldLength++] = (byte)value;
+  }
+
+  private int read() throws IOException {
+    if (position == limit && !fill()) {
+      return END_OF_FILE;
+    }
+    return bytes[position++] & 0xff;
+  }
+
+  private int peek() throws IOException {
+    if (position == limit && !fill()) {
+      return END_OF_FILE;
+    }
+    return bytes[position] & 0xff;
+  }
+
+  /**
+   * Refill the buffer once everything in it has been read
+   * @return false at the end of the file
+   */
+  private boolean fill() throws IOException {
+    buffer.clear();
+    int count;
+    do {
+      count = channel.read(buffer);
+    } while (count == 0);
+    position = 0;
+    limit = Math.max(count, 0);
+    return count > 0;
+  }
+}
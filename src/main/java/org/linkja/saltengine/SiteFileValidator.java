@@ -0,0 +1,247 @@
+package org.linkja.saltengine;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.linkja.core.SaltFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks a site file without creating any salt files.  Unlike loadSites and validateSites, which stop at the first
+ * problem, every row is checked and every problem is collected, so they can all be fixed in one go.
+ *
+ * Nothing here needs the native crypto library, so it is never loaded, and a large site file can be checked in well
+ * under a second.
+ */
+public class SiteFileValidator {
+  // Only this many problems are kept for the report, although all of them are counted
+  public static final int MAXIMUM_REPORTED_PROBLEMS = 1000;
+
+  /**
+   * The outcome of checking a site file
+   */
+  public static class Result {
+    private long siteCount = 0;
+    private long problemCount = 0;
+    private final List<String> problems = new ArrayList<String>();
+    private double elapsedSeconds;
+
+    /**
+     * @return The number of rows that were read
+     */
+    public long getSiteCount() {
+      return siteCount;
+    }
+
+    public long getProblemCount() {
+      return problemCount;
+    }
+
+    /**
+     * @return A description of each problem, in the order they were found (at most MAXIMUM_REPORTED_PROBLEMS)
+     */
+    public List<String> getProblems() {
+      return problems;
+    }
+
+    public boolean isValid() {
+      return problemCount == 0;
+    }
+
+    public double getElapsedSeconds() {
+      return elapsedSeconds;
+    }
+
+    private void addProblem(String problem) {
+      problemCount++;
+      if (problems.size() < MAXIMUM_REPORTED_PROBLEMS) {
+        problems.add(problem);
+      }
+    }
+
+    public JSONObject toJSON() {
+      JSONObject json = new JSONObject();
+      json.put("siteCount", siteCount);
+      json.put("problemCount", problemCount);
+      json.put("valid", isValid());
+      json.put("problems", new JSONArray(problems));
+      json.put("elapsedSeconds", elapsedSeconds);
+      return json;
+    }
+
+    @Override
+    public String toString() {
+      if (isValid()) {
+        return String.format("Checked %d sites: no problems were found.", siteCount);
+      }
+
+      StringBuilder report = new StringBuilder(String.format("Checked %d sites: %d problems were found.", siteCount, problemCount));
+      for (String problem : problems) {
+        report.append(System.lineSeparator()).append("  ").append(problem);
+      }
+      if (problemCount > problems.size()) {
+        report.append(System.lineSeparator()).append(String.format("  ... and %d more", problemCount - problems.size()));
+      }
+      return report.toString();
+    }
+  }
+
+  private String projectName;
+  private File archiveFile;
+  private File projectDirectory;
+  private List<File> outputRoots;
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  /**
+   * @param projectName The name of the project the site file is for.  If it is set, the check also reports salt
+   *                    files for the sites that already exist where they would be written (and would be replaced).
+   */
+  public void setProjectName(String projectName) {
+    this.projectName = projectName;
+  }
+
+  public File getArchiveFile() {
+    return archiveFile;
+  }
+
+  /**
+   * @param archiveFile The zip archive the salt files would be written to, if any.  If it already exists, that is
+   *                    reported, since it would be replaced.
+   */
+  public void setArchiveFile(File archiveFile) {
+    this.archiveFile = archiveFile;
+  }
+
+  public File getProjectDirectory() {
+    return projectDirectory;
+  }
+
+  /**
+   * @param projectDirectory The directory the salt files would be written to, as for addSites (by default, the
+   *                         directory of the site file)
+   */
+  public void setProjectDirectory(File projectDirectory) {
+    this.projectDirectory = projectDirectory;
+  }
+
+  public List<File> getOutputRoots() {
+    return outputRoots;
+  }
+
+  /**
+   * @param outputRoots The directories the salt files would be spread across, if any.  A salt file could be in any of
+   *                    them, so each one is checked.
+   */
+  public void setOutputRoots(List<File> outputRoots) {
+    this.outputRoots = outputRoots;
+  }
+
+  /**
+   * Check every row of a site file
+   * @param siteFile The site file (may be gzip compressed, or - for standard input)
+   * @return The problems that were found
+   * @throws FileNotFoundException If the site file doesn't exist
+   */
+  public Result validate(File siteFile) throws FileNotFoundException {
+    long startTime = System.nanoTime();
+    boolean standardInput = SiteFileReader.isStandardInput(siteFile);
+    if (!standardInput && !siteFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find the site control file %s", siteFile.toString()));
+    }
+
+    Result result = new Result();
+    // Site ID or name -> the first row it was found on
+    Map<String, Long> idRows = new HashMap<String, Long>();
+    Map<String, Long> nameRows = new HashMap<String, Long>();
+    List<Path> outputDirectories = getOutputDirectories(siteFile, standardInput);
+    SaltFile saltFile = new SaltFile();
+
+    try (SiteFileReader reader = SiteFileReader.open(siteFile)) {
+      while (reader.next()) {
+        long row = reader.getRecordNumber();
+        result.siteCount++;
+        if (reader.getFieldCount() != SaltEngine.SITE_FILE_COLUMN_COUNT) {
+          result.addProblem(String.format("Row %d has %d columns.  Each row must have exactly %d columns: Site ID, Site Name",
+                  row, reader.getFieldCount(), SaltEngine.SITE_FILE_COLUMN_COUNT));
+          continue;
+        }
+
+        String siteID = reader.get(SaltEngine.SITE_ID_INDEX);
+        String siteName = reader.get(SaltEngine.SITE_NAME_INDEX);
+        if (siteID.equals("")) {
+          result.addProblem(String.format("Row %d has a blank site ID, which is not allowed.", row));
+        }
+        else {
+          Long firstRow = idRows.putIfAbsent(siteID, row);
+          if (firstRow != null) {
+            result.addProblem(String.format("Row %d has the site ID '%s', which was already used on row %d.", row, siteID, firstRow));
+          }
+          else if (projectName != null && archiveFile == null) {
+            String fileName = saltFile.getSaltFileName(projectName, siteID);
+            for (Path outputDirectory : outputDirectories) {
+              Path existingFile = outputDirectory.resolve(fileName);
+              if (existingFile.toFile().exists()) {
+                result.addProblem(String.format("Row %d is for the site '%s', whose salt file %s already exists.", row, siteID, existingFile.toString()));
+                break;
+              }
+            }
+          }
+        }
+
+        if (siteName.equals("")) {
+          result.addProblem(String.format("Row %d has a blank site name, which is not allowed.", row));
+        }
+        else {
+          Long firstRow = nameRows.putIfAbsent(siteName, row);
+          if (firstRow != null) {
+            result.addProblem(String.format("Row %d has the site name '%s', which was already used on row %d.", row, siteName, firstRow));
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      // The rest of the file can't be read reliably after a CSV format error, so this is the last problem
+      result.addProblem(String.format("The site file could not be read past row %d: %s", result.siteCount, e.getMessage()));
+    }
+
+    if (result.siteCount == 0 && result.problemCount == 0) {
+      result.addProblem("The site file has no sites.  You must specify at least one site.");
+    }
+    if (archiveFile != null && archiveFile.exists()) {
+      result.addProblem(String.format("The archive file %s already exists, and would be replaced.", archiveFile.toString()));
+    }
+
+    result.elapsedSeconds = (double)(System.nanoTime() - startTime) / 1_000_000_000.0;
+    return result;
+  }
+
+  /**
+   * Get the directories the salt files would be written to: the output roots, if there are any, or else the project
+   * directory, or else the directory of the site file (or the current directory, for standard input)
+   */
+  private List<Path> getOutputDirectories(File siteFile, boolean standardInput) {
+    List<Path> directories = new ArrayList<Path>();
+    if (outputRoots != null && outputRoots.size() > 0) {
+      for (File outputRoot : outputRoots) {
+        directories.add(outputRoot.getAbsoluteFile().toPath());
+      }
+    }
+    else if (projectDirectory != null) {
+      directories.add(projectDirectory.getAbsoluteFile().toPath());
+    }
+    else {
+      directories.add((standardInput ? new File("").getAbsoluteFile() : siteFile.getAbsoluteFile().getParentFile()).toPath());
+    }
+    return directories;
+  }
+}
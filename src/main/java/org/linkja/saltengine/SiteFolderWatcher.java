@@ -0,0 +1,445 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+import org.linkja.core.Site;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches a folder for new site files, and adds their sites to an existing project as they arrive.  Keeping the
+ * watcher running means each new site file is picked up within seconds, without starting a new JVM for each one.
+ *
+ * Only files named *.csv or *.csv.gz are picked up, so a file can be written under another name and renamed once it
+ * is complete.  Files that arrive close together are coalesced: after each change to the folder, the watcher waits
+ * for the folder to be quiet for the quiet period, and then adds the sites from every waiting file in one addSites
+ * run.  Each file is then moved into the done folder, or if it could not be processed, into the failed folder along
+ * with a note of the problem.  A file that is not valid on its own is failed without holding back the others, and if
+ * the combined run fails, each file is tried again on its own.  A file that can't be moved is reported to the
+ * listener, and is left where it is, but isn't picked up again unless it changes.  Anything else that goes wrong with
+ * a batch is reported to the listener too, and the watcher carries on with the next batch.
+ *
+ * The salt files are written to the project directory, which holds the project's manifest and site index, so new
+ * sites are checked against the whole project.  The project directory can't be the watched folder, since the
+ * project's own CSV files would be picked up.
+ */
+public class SiteFolderWatcher {
+  public static final long DEFAULT_QUIET_PERIOD_MILLIS = 2000;
+  public static final String DONE_FOLDER = "done";
+  public static final String FAILED_FOLDER = "failed";
+  public static final String ERROR_FILE_SUFFIX = ".error.txt";
+
+  // Stop waiting for the folder to be quiet after this many quiet periods, so a steady trickle of files can't hold
+  // back a batch forever
+  private static final int MAXIMUM_QUIET_PERIODS = 10;
+
+  /**
+   * Is told about each batch of site files once it has been processed
+   */
+  public interface BatchListener {
+    /**
+     * @param doneFiles The files whose sites were added to the project (now in the done folder)
+     * @param failedFiles The files that could not be processed (now in the failed folder), and the problem with each
+     */
+    void batchFinished(List<Path> doneFiles, Map<Path, String> failedFiles);
+
+    /**
+     * Called before batchFinished for each file that could not be moved into the done or failed folder.  The file is
+     * left in the watched folder, and is not processed again unless it changes.
+     * @param file The file
+     * @param problem Why it could not be moved
+     */
+    default void moveFailed(Path file, String problem) {
+    }
+
+    /**
+     * Called when a batch stops because of an unexpected problem.  The watcher keeps running, and any files that are
+     * still in the watched folder are picked up again with the next batch.
+     * @param problem What went wrong
+     */
+    default void batchFailed(Exception problem) {
+    }
+  }
+
+  private final Path watchFolder;
+  private final File saltFile;
+  private final Path doneFolder;
+  private final Path failedFolder;
+  private Path projectDirectory;
+  private long quietPeriodMillis = DEFAULT_QUIET_PERIOD_MILLIS;
+  private int threadCount = SaltEngine.DEFAULT_THREAD_COUNT;
+  private TokenSource tokenSource;
+  private BatchListener batchListener;
+
+  // Files that could not be moved out of the watched folder, and when each was last modified.  Only the watch thread
+  // uses this.
+  private final Map<Path, FileTime> unmovableFiles = new HashMap<Path, FileTime>();
+
+  private WatchService watchService;
+  private Thread watchThread;
+  private volatile boolean running = false;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private long batchCount = 0;
+
+  /**
+   * @param watchFolder The folder that new site files are dropped into
+   * @param saltFile The encrypted salt file for the existing project
+   * @throws FileNotFoundException If the folder or salt file doesn't exist
+   * @throws LinkjaException If the salt file is in the watched folder (see setProjectDirectory)
+   */
+  public SiteFolderWatcher(File watchFolder, File saltFile) throws FileNotFoundException, LinkjaException {
+    if (!watchFolder.isDirectory()) {
+      throw new FileNotFoundException(String.format("Unable to find the folder to watch %s", watchFolder.toString()));
+    }
+    if (!saltFile.exists()) {
+      throw new FileNotFoundException(String.format("Unable to find your salt file %s", saltFile.toString()));
+    }
+
+    this.watchFolder = watchFolder.getAbsoluteFile().toPath();
+    this.saltFile = saltFile.getAbsoluteFile();
+    this.doneFolder = this.watchFolder.resolve(DONE_FOLDER);
+    this.failedFolder = this.watchFolder.resolve(FAILED_FOLDER);
+    this.projectDirectory = checkNotWatchFolder(this.saltFile.getParentFile().toPath());
+  }
+
+  public Path getProjectDirectory() {
+    return projectDirectory;
+  }
+
+  /**
+   * @param projectDirectory The directory the salt files are written to (by default, the directory of the salt file)
+   * @throws FileNotFoundException
+   * @throws LinkjaException If the project directory is the watched folder
+   */
+  public void setProjectDirectory(File projectDirectory) throws FileNotFoundException, LinkjaException {
+    if (!projectDirectory.isDirectory()) {
+      throw new FileNotFoundException(String.format("Unable to find the project directory %s", projectDirectory.toString()));
+    }
+    this.projectDirectory = checkNotWatchFolder(projectDirectory.getAbsoluteFile().toPath());
+  }
+
+  private Path checkNotWatchFolder(Path projectDirectory) throws LinkjaException {
+    if (projectDirectory.normalize().equals(watchFolder.normalize())) {
+      throw new LinkjaException(String.format("The project directory %s can't be the folder that is watched for site files",
+              projectDirectory.toString()));
+    }
+    return projectDirectory;
+  }
+
+  public long getQuietPeriodMillis() {
+    return quietPeriodMillis;
+  }
+
+  public void setQuietPeriodMillis(long quietPeriodMillis) throws LinkjaException {
+    if (quietPeriodMillis < 0) {
+      throw new LinkjaException(String.format("The quiet period cannot be negative, but %d was requested.", quietPeriodMillis));
+    }
+    this.quietPeriodMillis = quietPeriodMillis;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public void setThreadCount(int threadCount) throws LinkjaException {
+    if (threadCount < 1) {
+      throw new LinkjaException(String.format("The number of threads must be at least 1, but %d was requested.", threadCount));
+    }
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * @param tokenSource Where tokens come from (null for the engine's default)
+   */
+  public void setTokenSource(TokenSource tokenSource) {
+    this.tokenSource = tokenSource;
+  }
+
+  public void setBatchListener(BatchListener batchListener) {
+    this.batchListener = batchListener;
+  }
+
+  /**
+   * @return The number of batches that have been processed
+   */
+  public synchronized long getBatchCount() {
+    return batchCount;
+  }
+
+  /**
+   * Start watching the folder.  Any site files that are already waiting are processed straight away.
+   * @throws IOException
+   */
+  public void start() throws IOException {
+    Files.createDirectories(doneFolder);
+    Files.createDirectories(failedFolder);
+    watchService = watchFolder.getFileSystem().newWatchService();
+    watchFolder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    running = true;
+    watchThread = new Thread(this::watch, "site-folder-watcher");
+    watchThread.start();
+  }
+
+  /**
+   * Stop watching the folder, and wait for the batch in progress (if any) to finish
+   */
+  public void stop() {
+    running = false;
+    try {
+      if (watchService != null) {
+        watchService.close();
+      }
+      if (watchThread != null && watchThread != Thread.currentThread()) {
+        watchThread.join();
+      }
+    }
+    catch (IOException e) {
+      // We are stopping anyway
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    stopped.countDown();
+  }
+
+  /**
+   * Block until the watcher has been stopped
+   * @throws InterruptedException
+   */
+  public void awaitStop() throws InterruptedException {
+    stopped.await();
+  }
+
+  private void watch() {
+    try {
+      processBatchSafely();
+      while (running) {
+        WatchKey key = watchService.take();
+        key.pollEvents();
+        key.reset();
+        awaitQuiet();
+        processBatchSafely();
+      }
+    }
+    catch (ClosedWatchServiceException e) {
+      // The watcher was stopped
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      // However the thread ends, nobody should be left waiting for it in awaitStop
+      running = false;
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Process the waiting files, reporting an unexpected failure to the listener instead of letting it end the watch
+   * thread
+   */
+  private void processBatchSafely() {
+    try {
+      processWaitingFiles();
+    }
+    catch (RuntimeException e) {
+      if (batchListener != null) {
+        try {
+          batchListener.batchFailed(e);
+        }
+        catch (RuntimeException listenerException) {
+          // There is nobody else to tell, so carry on with the next batch
+        }
+      }
+    }
+  }
+
+  /**
+   * Wait until nothing in the folder has changed for the quiet period, so that a burst of files (and files that are
+   * still being written) end up in the same batch
+   */
+  private void awaitQuiet() throws InterruptedException {
+    for (int period = 0; period < MAXIMUM_QUIET_PERIODS; period++) {
+      WatchKey key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS);
+      if (key == null) {
+        return;
+      }
+      key.pollEvents();
+      key.reset();
+    }
+  }
+
+  /**
+   * Process every site file that is waiting in the folder as one batch
+   */
+  void processWaitingFiles() {
+    List<Path> files;
+    try (Stream<Path> paths = Files.list(watchFolder)) {
+      files = paths.filter(SiteFolderWatcher::isSiteFile).filter(this::isMovable).sorted().collect(Collectors.toList());
+    }
+    catch (IOException e) {
+      return;
+    }
+
+    if (files.size() > 0) {
+      processBatch(files);
+    }
+  }
+
+  private static boolean isSiteFile(Path path) {
+    String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+    return Files.isRegularFile(path) && !name.startsWith(".") && (name.endsWith(".csv") || name.endsWith(".csv.gz"))
+            && !name.endsWith(OutputManifest.MANIFEST_FILE_SUFFIX) && !name.endsWith(OutputManifest.LOCATION_INDEX_FILE_SUFFIX);
+  }
+
+  /**
+   * @return false if the file could not be moved out of the folder before, and hasn't changed since
+   */
+  private boolean isMovable(Path path) {
+    FileTime lastModified = unmovableFiles.get(path);
+    if (lastModified == null) {
+      return true;
+    }
+    try {
+      if (lastModified.equals(Files.getLastModifiedTime(path))) {
+        return false;
+      }
+    }
+    catch (IOException e) {
+      return false;
+    }
+    unmovableFiles.remove(path);
+    return true;
+  }
+
+  private void processBatch(List<Path> files) {
+    SaltEngine engine = new SaltEngine();
+    List<Path> doneFiles = new ArrayList<Path>();
+    Map<Path, String> failedFiles = new LinkedHashMap<Path, String>();
+
+    // Check each file on its own first, so one bad file doesn't fail the whole batch
+    Map<Path, List<Site>> validFiles = new LinkedHashMap<Path, List<Site>>();
+    for (Path file : files) {
+      try {
+        List<Site> sites = engine.loadSites(file.toFile());
+        engine.validateSites(sites);
+        validFiles.put(file, sites);
+      }
+      catch (Exception e) {
+        failedFiles.put(file, e.getMessage());
+      }
+    }
+
+    if (validFiles.size() > 0) {
+      List<Site> allSites = new ArrayList<Site>();
+      for (List<Site> sites : validFiles.values()) {
+        allSites.addAll(sites);
+      }
+
+      try {
+        addSites(allSites);
+        doneFiles.addAll(validFiles.keySet());
+      }
+      catch (Exception e) {
+        if (validFiles.size() == 1) {
+          failedFiles.put(validFiles.keySet().iterator().next(), e.getMessage());
+        }
+        else {
+          // The files may conflict with each other, or only some of them may have a problem.  Sites that were already
+          // added are skipped when their file is tried again.
+          for (Map.Entry<Path, List<Site>> entry : validFiles.entrySet()) {
+            try {
+              addSites(entry.getValue());
+              doneFiles.add(entry.getKey());
+            }
+            catch (Exception fileException) {
+              failedFiles.put(entry.getKey(), fileException.getMessage());
+            }
+          }
+        }
+      }
+    }
+
+    List<Path> movedDoneFiles = new ArrayList<Path>();
+    for (Path file : doneFiles) {
+      movedDoneFiles.add(moveFile(file, doneFolder));
+    }
+    Map<Path, String> movedFailedFiles = new LinkedHashMap<Path, String>();
+    for (Map.Entry<Path, String> entry : failedFiles.entrySet()) {
+      Path moved = moveFile(entry.getKey(), failedFolder);
+      writeErrorFile(moved, entry.getValue());
+      movedFailedFiles.put(moved, entry.getValue());
+    }
+
+    synchronized (this) {
+      batchCount++;
+    }
+    if (batchListener != null) {
+      batchListener.batchFinished(movedDoneFiles, movedFailedFiles);
+    }
+  }
+
+  /**
+   * Add sites to the project in one addSites run.  The sites that were already loaded are handed straight to the
+   * engine, which writes the salt files to the project directory.
+   */
+  private void addSites(List<Site> sites) throws Exception {
+    SaltEngine engine = new SaltEngine();
+    if (tokenSource != null) {
+      engine.setTokenSource(tokenSource);
+    }
+    engine.setThreadCount(threadCount);
+    engine.setSaltFile(saltFile);
+    engine.setProjectDirectory(projectDirectory.toFile());
+    engine.addSites(sites);
+  }
+
+  /**
+   * Move a file into a folder, adding a number to its name if a file with that name is already there.  If it can't
+   * be moved, the listener is told, and the file is skipped from now on unless it changes.
+   * @return The new location of the file, or the old one if it could not be moved
+   */
+  private Path moveFile(Path file, Path folder) {
+    String name = file.getFileName().toString();
+    Path target = folder.resolve(name);
+    for (int attempt = 1; Files.exists(target); attempt++) {
+      target = folder.resolve(String.format("%s.%d", name, attempt));
+    }
+
+    try {
+      return Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (IOException e) {
+      try {
+        unmovableFiles.put(file, Files.getLastModifiedTime(file));
+      }
+      catch (IOException lastModifiedException) {
+        // The file is gone, so it won't be picked up again anyway
+      }
+      if (batchListener != null) {
+        batchListener.moveFailed(file, String.format("Unable to move %s into %s (%s)", file.toString(), folder.toString(), e.toString()));
+      }
+      return file;
+    }
+  }
+
+  private static void writeErrorFile(Path file, String message) {
+    Path errorFile = file.resolveSibling(file.getFileName().toString() + ERROR_FILE_SUFFIX);
+    try {
+      Files.write(errorFile, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+    }
+    catch (IOException e) {
+      // The problem is still reported to the listener
+    }
+  }
+}
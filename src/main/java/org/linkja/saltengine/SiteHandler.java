@@ -0,0 +1,16 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.Site;
+
+/**
+ * Receives sites one at a time as they are read from a site file
+ */
+public interface SiteHandler {
+  /**
+   * Process a single site
+   * @param site The site that was read
+   * @param rowNumber The row number of the site in the site file (starting at 1)
+   * @throws Exception
+   */
+  void handleSite(Site site, long rowNumber) throws Exception;
+}
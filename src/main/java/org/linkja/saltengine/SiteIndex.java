@@ -0,0 +1,312 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.Site;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compact on-disk index of the site IDs and site names in a project, kept next to the project's manifest.  It lets
+ * addSites check whether a new site collides with one that is already in the project without loading any salt files.
+ *
+ * The file holds two open-addressing hash tables of 64-bit fingerprints (see FingerprintSet), one for site IDs and one
+ * for site names, and is memory-mapped, so a lookup or an addition only touches a few slots.  Each entry in the name
+ * table also holds the fingerprint of the site's ID, so the site with a name can be found without loading every salt
+ * file.  As with FingerprintSet, a match only means that the ID or name <i>may</i> already be in the project - callers
+ * must confirm it by loading the matching salt file.
+ *
+ * Layout (big-endian):
+ *   0  long  magic number
+ *   8  int   number of slots in each table (a power of 2)
+ *   12 int   number of sites in the index, or -1 while the tables are being resized
+ *   16 ...   the site ID table (one long per slot), then the site name table (the name and ID fingerprints, two
+ *            longs per slot), with 0 for an empty slot
+ */
+class SiteIndex implements Closeable {
+  public static final String INDEX_FILE_SUFFIX = ".site-index";
+
+  private static final long MAGIC = 0x4c4e4b4a53495832L;
+  private static final int SLOT_COUNT_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int HEADER_SIZE = 16;
+  private static final int INITIAL_SLOT_COUNT = 1024;
+  private static final int RESIZING = -1;
+  private static final int ID_ENTRY_LONGS = 1;
+  private static final int NAME_ENTRY_LONGS = 2;
+
+  // Slots equal to EMPTY are unused, so a fingerprint that happens to be EMPTY is stored as REPLACEMENT instead.  This
+  // only adds a (harmless) chance of a false match, which callers already have to allow for.
+  private static final long EMPTY = 0L;
+  private static final long REPLACEMENT = 1L;
+
+  private final Path indexFile;
+  private final FileChannel channel;
+  private MappedByteBuffer buffer;
+  private int slotCount;
+  private int size;
+
+  private SiteIndex(Path indexFile, FileChannel channel) {
+    this.indexFile = indexFile;
+    this.channel = channel;
+  }
+
+  /**
+   * Open the index for a project in an output directory, creating an empty one if it doesn't exist yet
+   * @param directory The output directory
+   * @param projectName The name of the project
+   * @return The index
+   * @throws IOException If the index can't be opened, or is not a valid index file
+   */
+  public static SiteIndex open(Path directory, String projectName) throws IOException {
+    Path indexFile = getIndexPath(directory, projectName);
+    boolean exists = Files.exists(indexFile);
+    FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    SiteIndex index = new SiteIndex(indexFile, channel);
+    try {
+      if (exists && channel.size() > 0) {
+        index.load();
+      }
+      else {
+        index.map(INITIAL_SLOT_COUNT);
+        index.setSize(0);
+      }
+      return index;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Get the location of the index for a project in an output directory
+   * @param directory The output directory
+   * @param projectName The name of the project
+   * @return The path of the index file
+   */
+  public static Path getIndexPath(Path directory, String projectName) {
+    return directory.resolve(projectName.replaceAll("[^A-Za-z0-9_\\-]", "_") + INDEX_FILE_SUFFIX);
+  }
+
+  public Path getIndexFile() {
+    return indexFile;
+  }
+
+  /**
+   * @return The number of sites in the index
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return true if a site with this ID may already be in the index
+   */
+  public synchronized boolean mayContainID(String siteID) {
+    long idFingerprint = fingerprint(siteID);
+    return getSlot(getIDSlot(findIDSlot(idFingerprint))) == idFingerprint;
+  }
+
+  /**
+   * @return true if a site with this name may already be in the index
+   */
+  public synchronized boolean mayContainName(String siteName) {
+    return !findNameIDs(fingerprint(siteName)).isEmpty();
+  }
+
+  /**
+   * Find the sites that may have a name, out of a list of site IDs (such as those in the manifest)
+   * @param siteName The site name
+   * @param siteIDs The site IDs to choose from
+   * @return The site IDs that may belong to a site with this name - almost always none or one
+   */
+  public List<String> findSiteIDs(String siteName, Collection<String> siteIDs) {
+    List<Long> idFingerprints;
+    synchronized (this) {
+      idFingerprints = findNameIDs(fingerprint(siteName));
+    }
+
+    List<String> matches = new ArrayList<String>();
+    if (idFingerprints.isEmpty()) {
+      return matches;
+    }
+    for (String siteID : siteIDs) {
+      if (idFingerprints.contains(fingerprint(siteID))) {
+        matches.add(siteID);
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Add a site to the index.  A site whose ID is already in the index is not added again.
+   * @param site The site
+   * @throws IOException If the index needed to grow, and could not
+   */
+  public synchronized void add(Site site) throws IOException {
+    long idFingerprint = fingerprint(site.getSiteID());
+    int idSlot = findIDSlot(idFingerprint);
+    if (getSlot(getIDSlot(idSlot)) == idFingerprint) {
+      return;
+    }
+
+    setSlot(getIDSlot(idSlot), idFingerprint);
+    addName(fingerprint(site.getSiteName()), idFingerprint);
+    setSize(size + 1);
+
+    // Keep the tables at most half full so that probe sequences stay short
+    if (size * 2 > slotCount) {
+      resize();
+    }
+  }
+
+  /**
+   * Write any changes to the index through to the disk
+   */
+  public synchronized void flush() {
+    buffer.force();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      flush();
+    }
+    finally {
+      channel.close();
+    }
+  }
+
+  private static long fingerprint(String value) {
+    long fingerprint = FingerprintSet.fingerprint(value);
+    return (fingerprint == EMPTY ? REPLACEMENT : fingerprint);
+  }
+
+  private void load() throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      throw new IOException(String.format("%s is not a valid site index", indexFile.toString()));
+    }
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    slotCount = buffer.getInt(SLOT_COUNT_OFFSET);
+    size = buffer.getInt(SIZE_OFFSET);
+    if (buffer.getLong(0) != MAGIC || slotCount <= 0 || Integer.bitCount(slotCount) != 1
+            || channel.size() != getFileSize(slotCount) || size < 0) {
+      throw new IOException(String.format("%s is not a valid site index", indexFile.toString()));
+    }
+  }
+
+  private void map(int newSlotCount) throws IOException {
+    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(newSlotCount));
+    buffer.putLong(0, MAGIC);
+    buffer.putInt(SLOT_COUNT_OFFSET, newSlotCount);
+    slotCount = newSlotCount;
+  }
+
+  private static long getFileSize(int slotCount) {
+    return HEADER_SIZE + (long)(ID_ENTRY_LONGS + NAME_ENTRY_LONGS) * slotCount * Long.BYTES;
+  }
+
+  private void setSize(int newSize) {
+    size = newSize;
+    buffer.putInt(SIZE_OFFSET, newSize);
+  }
+
+  private void resize() throws IOException {
+    int oldSlotCount = slotCount;
+    long[] ids = new long[oldSlotCount];
+    long[] names = new long[oldSlotCount * NAME_ENTRY_LONGS];
+    for (int slot = 0; slot < oldSlotCount; slot++) {
+      ids[slot] = getSlot(getIDSlot(slot));
+      names[slot * NAME_ENTRY_LONGS] = getSlot(getNameSlot(slot));
+      names[slot * NAME_ENTRY_LONGS + 1] = getSlot(getNameSlot(slot) + 1);
+    }
+
+    // If we stop partway through, the index is marked as incomplete, so it is rebuilt the next time it is opened
+    int currentSize = size;
+    buffer.putInt(SIZE_OFFSET, RESIZING);
+    buffer.force();
+    map(oldSlotCount * 2);
+    for (int slot = 0; slot < (ID_ENTRY_LONGS + NAME_ENTRY_LONGS) * slotCount; slot++) {
+      setSlot(slot, EMPTY);
+    }
+    for (int slot = 0; slot < oldSlotCount; slot++) {
+      if (ids[slot] != EMPTY) {
+        setSlot(getIDSlot(findIDSlot(ids[slot])), ids[slot]);
+      }
+      if (names[slot * NAME_ENTRY_LONGS] != EMPTY) {
+        addName(names[slot * NAME_ENTRY_LONGS], names[slot * NAME_ENTRY_LONGS + 1]);
+      }
+    }
+    setSize(currentSize);
+    buffer.force();
+  }
+
+  private int findIDSlot(long idFingerprint) {
+    int mask = slotCount - 1;
+    int slot = (int)idFingerprint & mask;
+    long current = getSlot(getIDSlot(slot));
+    while (current != EMPTY && current != idFingerprint) {
+      slot = (slot + 1) & mask;
+      current = getSlot(getIDSlot(slot));
+    }
+    return slot;
+  }
+
+  /**
+   * Add a name to the name table.  Different sites can have names with the same fingerprint, so each one gets its own
+   * entry, and a lookup follows the probe sequence all the way to an empty slot.
+   */
+  private void addName(long nameFingerprint, long idFingerprint) {
+    int mask = slotCount - 1;
+    int slot = (int)nameFingerprint & mask;
+    while (getSlot(getNameSlot(slot)) != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    setSlot(getNameSlot(slot), nameFingerprint);
+    setSlot(getNameSlot(slot) + 1, idFingerprint);
+  }
+
+  private List<Long> findNameIDs(long nameFingerprint) {
+    List<Long> idFingerprints = new ArrayList<Long>(1);
+    int mask = slotCount - 1;
+    int slot = (int)nameFingerprint & mask;
+    long current = getSlot(getNameSlot(slot));
+    while (current != EMPTY) {
+      if (current == nameFingerprint) {
+        idFingerprints.add(getSlot(getNameSlot(slot) + 1));
+      }
+      slot = (slot + 1) & mask;
+      current = getSlot(getNameSlot(slot));
+    }
+    return idFingerprints;
+  }
+
+  /**
+   * @return The position (in longs, after the header) of an entry in the site ID table
+   */
+  private int getIDSlot(int slot) {
+    return slot * ID_ENTRY_LONGS;
+  }
+
+  /**
+   * @return The position (in longs, after the header) of an entry in the site name table
+   */
+  private int getNameSlot(int slot) {
+    return ID_ENTRY_LONGS * slotCount + slot * NAME_ENTRY_LONGS;
+  }
+
+  private long getSlot(int position) {
+    return buffer.getLong(HEADER_SIZE + position * Long.BYTES);
+  }
+
+  private void setSlot(int position, long fingerprint) {
+    buffer.putLong(HEADER_SIZE + position * Long.BYTES, fingerprint);
+  }
+}
@@ -0,0 +1,129 @@
+package org.linkja.saltengine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the salt files of a project across several output directories (for example, one on each of several disks),
+ * so a large project can use the write bandwidth of all of them and no single directory gets too large.  Each root
+ * has its own DirectoryOutput, and a salt file is saved straight into the root it is assigned to, so the worker
+ * threads write to every root at the same time and committing a salt file is only a rename within its root.
+ *
+ * Salt files are assigned to roots either in turn (ROUND_ROBIN), which spreads them evenly, or by a hash of the salt
+ * file name (HASH), which is made from the site ID, so a site always goes to the same root.  Either way, a salt file
+ * that is already in one of the roots is replaced where it is, so a site never ends up in two roots.  The root a
+ * salt file was assigned to is only remembered until it is committed; after that it is found by looking in the roots,
+ * starting with its hashed root.
+ */
+public class StripedOutput implements SaltFileOutput {
+  public enum Striping {
+    ROUND_ROBIN,
+    HASH
+  }
+
+  private final List<DirectoryOutput> roots;
+  private final Striping striping;
+  private final AtomicLong nextRoot = new AtomicLong();
+  // Salt file name -> the root it was assigned to, from when it is staged until it is committed
+  private final Map<String, DirectoryOutput> assignedRoots = new ConcurrentHashMap<String, DirectoryOutput>();
+
+  /**
+   * @param roots The output directories
+   * @param striping How salt files are assigned to the directories
+   */
+  public StripedOutput(List<Path> roots, Striping striping) {
+    if (roots.isEmpty()) {
+      throw new IllegalArgumentException("At least one output root is needed");
+    }
+
+    this.roots = new ArrayList<DirectoryOutput>(roots.size());
+    for (Path root : roots) {
+      this.roots.add(new DirectoryOutput(root.toAbsolutePath()));
+    }
+    this.striping = striping;
+  }
+
+  public Striping getStriping() {
+    return striping;
+  }
+
+  public List<Path> getRoots() {
+    List<Path> paths = new ArrayList<Path>(roots.size());
+    for (DirectoryOutput root : roots) {
+      paths.add(root.getDirectory());
+    }
+    return paths;
+  }
+
+  @Override
+  public Path getStagingPath(String fileName) {
+    return assignedRoots.computeIfAbsent(fileName, this::assignRoot).getStagingPath(fileName);
+  }
+
+  @Override
+  public long commit(Path stagedFile, String fileName) throws IOException {
+    DirectoryOutput root = assignedRoots.remove(fileName);
+    if (root == null) {
+      throw new IOException(String.format("The salt file %s was never staged, so it can't be committed", fileName));
+    }
+    return root.commit(stagedFile, fileName);
+  }
+
+  @Override
+  public String getLocation(String fileName) {
+    DirectoryOutput root = assignedRoots.get(fileName);
+    if (root == null) {
+      Path existing = findCommitted(fileName);
+      return (existing != null ? existing.toString() : getHashRoot(fileName).getLocation(fileName));
+    }
+    return root.getLocation(fileName);
+  }
+
+  @Override
+  public Path findCommitted(String fileName) {
+    DirectoryOutput root = assignedRoots.get(fileName);
+    if (root != null) {
+      return root.findCommitted(fileName);
+    }
+
+    // The hashed root is the most likely place, even for round robin, so it is checked first
+    DirectoryOutput hashRoot = getHashRoot(fileName);
+    Path file = hashRoot.findCommitted(fileName);
+    for (int index = 0; file == null && index < roots.size(); index++) {
+      if (roots.get(index) != hashRoot) {
+        file = roots.get(index).findCommitted(fileName);
+      }
+    }
+    return file;
+  }
+
+  @Override
+  public void close() {
+    // Each salt file is complete once it has been committed, so there is nothing left to do
+  }
+
+  private DirectoryOutput assignRoot(String fileName) {
+    Path existing = findCommitted(fileName);
+    if (existing != null) {
+      for (DirectoryOutput root : roots) {
+        if (existing.getParent().equals(root.getDirectory())) {
+          return root;
+        }
+      }
+    }
+
+    if (striping == Striping.HASH) {
+      return getHashRoot(fileName);
+    }
+    return roots.get((int)Long.remainderUnsigned(nextRoot.getAndIncrement(), roots.size()));
+  }
+
+  private DirectoryOutput getHashRoot(String fileName) {
+    return roots.get((int)Long.remainderUnsigned(FingerprintSet.fingerprint(fileName), roots.size()));
+  }
+}
@@ -0,0 +1,122 @@
+package org.linkja.saltengine;
+
+import java.util.Arrays;
+
+/**
+ * A random token held in a reusable character array rather than a String, so it can be wiped as soon as it is no
+ * longer needed.  Buffers normally come from a {@link TokenBufferPool} - closing the buffer wipes it and returns it
+ * to the pool.
+ *
+ * A buffer is not thread-safe.  It may be handed from one thread to another, as long as only one thread uses it at a
+ * time.
+ */
+public class TokenBuffer implements AutoCloseable {
+  private final TokenBufferPool pool;
+  private final char[] characters;
+  private int length = 0;
+  private boolean closed = false;
+
+  /**
+   * Create a buffer that does not belong to a pool
+   * @param capacity The largest number of token characters the buffer can hold
+   */
+  public TokenBuffer(int capacity) {
+    this(null, capacity);
+  }
+
+  TokenBuffer(TokenBufferPool pool, int capacity) {
+    this.pool = pool;
+    this.characters = new char[capacity];
+  }
+
+  public int capacity() {
+    return characters.length;
+  }
+
+  /**
+   * @return The number of characters in the token
+   */
+  public int length() {
+    return length;
+  }
+
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(String.format("Index %d is outside of the token, which has %d characters", index, length));
+    }
+    return characters[index];
+  }
+
+  /**
+   * Copy a token into the buffer, replacing what was there
+   * @param source The characters to copy from
+   * @param offset The position of the token in source
+   * @param count The number of characters in the token
+   */
+  void fill(char[] source, int offset, int count) {
+    if (closed) {
+      throw new IllegalStateException("The token buffer has already been closed");
+    }
+    if (count > characters.length) {
+      throw new IllegalArgumentException(String.format("The token has %d characters, but the buffer can only hold %d", count, characters.length));
+    }
+
+    System.arraycopy(source, offset, characters, 0, count);
+    if (count < length) {
+      Arrays.fill(characters, count, length, '\0');
+    }
+    length = count;
+  }
+
+  /**
+   * Copy the token into a new String.  This should only be used to hand the token to an API that requires a String,
+   * such as SaltFile, as late as possible - the String cannot be wiped, and stays in memory until it is collected.
+   * @return The token
+   */
+  public String toSaltString() {
+    if (closed) {
+      throw new IllegalStateException("The token buffer has already been closed");
+    }
+    return new String(characters, 0, length);
+  }
+
+  /**
+   * Overwrite the token with zeros
+   */
+  public void wipe() {
+    Arrays.fill(characters, '\0');
+    length = 0;
+  }
+
+  /**
+   * Wipe the token, and return the buffer to its pool.  The buffer must not be used after it has been closed.
+   * Closing a buffer more than once has no effect.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    wipe();
+    closed = true;
+    if (pool != null) {
+      pool.release(this);
+    }
+  }
+
+  /**
+   * Called by the pool when the buffer is handed out again
+   */
+  void reopen() {
+    closed = false;
+  }
+
+  /**
+   * Deliberately does not include the token, so it can't end up in a log by accident
+   */
+  @Override
+  public String toString() {
+    return String.format("TokenBuffer[%d characters]", length);
+  }
+}
@@ -0,0 +1,83 @@
+package org.linkja.saltengine;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of reusable {@link TokenBuffer}s.  Once a run has warmed up, tokens are written into buffers
+ * that were already allocated, so creating a token produces almost no garbage.  Every buffer is wiped before it is
+ * returned to the pool.
+ */
+public class TokenBufferPool {
+  // Enough for every salt file that can be in the pipeline at once with a few dozen threads
+  public static final int DEFAULT_MAXIMUM_POOLED = 256;
+
+  // The smallest buffer that is allocated, which holds a token of the default length
+  public static final int MINIMUM_CAPACITY = SaltEngine.DEFAULT_TOKEN_LENGTH * 2;
+
+  private final int maximumPooled;
+  private final ConcurrentLinkedQueue<TokenBuffer> freeBuffers = new ConcurrentLinkedQueue<TokenBuffer>();
+  private final AtomicInteger pooledCount = new AtomicInteger();
+  private final AtomicLong allocatedCount = new AtomicLong();
+
+  public TokenBufferPool() {
+    this(DEFAULT_MAXIMUM_POOLED);
+  }
+
+  /**
+   * @param maximumPooled The most buffers that are kept for reuse.  Buffers returned beyond this are discarded.
+   */
+  public TokenBufferPool(int maximumPooled) {
+    if (maximumPooled < 0) {
+      throw new IllegalArgumentException(String.format("The number of pooled buffers cannot be negative, but %d was requested.", maximumPooled));
+    }
+    this.maximumPooled = maximumPooled;
+  }
+
+  /**
+   * Get an empty buffer from the pool, allocating a new one only if needed
+   * @param characterCount The number of token characters the buffer must be able to hold
+   * @return The buffer, which must be closed once the token is no longer needed
+   */
+  public TokenBuffer acquire(int characterCount) {
+    TokenBuffer buffer = freeBuffers.poll();
+    if (buffer != null) {
+      pooledCount.decrementAndGet();
+      if (buffer.capacity() >= characterCount) {
+        buffer.reopen();
+        return buffer;
+      }
+      // Too small for this token, so let it be collected
+    }
+
+    allocatedCount.incrementAndGet();
+    return new TokenBuffer(this, Math.max(characterCount, MINIMUM_CAPACITY));
+  }
+
+  /**
+   * Called when a buffer from this pool is closed.  The buffer has already been wiped.
+   */
+  void release(TokenBuffer buffer) {
+    if (pooledCount.incrementAndGet() <= maximumPooled) {
+      freeBuffers.offer(buffer);
+    }
+    else {
+      pooledCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return The number of buffers waiting to be reused
+   */
+  public int getPooledCount() {
+    return pooledCount.get();
+  }
+
+  /**
+   * @return The number of buffers that have been allocated by the pool
+   */
+  public long getAllocatedCount() {
+    return allocatedCount.get();
+  }
+}
@@ -0,0 +1,141 @@
+package org.linkja.saltengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A refillable pool of random token characters.  Rather than making one call to the token source for every token,
+ * the pool fills a large chunk of entropy at a time and slices tokens out of it.  Characters that are handed out
+ * are never reused - once a chunk cannot satisfy a request, whatever remains of it is discarded and a new chunk is
+ * filled.
+ *
+ * The native library is only known to support tokens up to SaltEngine.MAXIMUM_TOKEN_LENGTH, so a chunk is filled
+ * with several requests of at most that length.  Each request returns independent random characters, so the chunk is
+ * just as random as if it had been created in one request.
+ *
+ * Tokens have the same format as those from {@link TokenSource#generateToken(int)}: a token created for a length of
+ * L is made up of 2 * L characters.
+ *
+ * The chunk is kept in a character array, and the characters of each token are zeroed as soon as they are handed out,
+ * so the only copies of a token are the ones held by the caller.  The native library returns each chunk as a String,
+ * which can't be wiped, but that String is dropped as soon as it has been copied.  The pure Java source writes
+ * straight into the chunk.
+ *
+ * A pool can be shared between threads, but it holds its lock while it refills, so SaltEngine gives each thread its
+ * own pool.
+ */
+public class TokenPool {
+  public static final int DEFAULT_CHUNK_LENGTH = 8 * SaltEngine.MAXIMUM_TOKEN_LENGTH;
+
+  // The largest length that is requested from the token source at once
+  public static final int MAXIMUM_REQUEST_LENGTH = SaltEngine.MAXIMUM_TOKEN_LENGTH;
+
+  private final TokenSource tokenSource;
+
+  // The token length worth of characters that the pool is filled with each time it is refilled
+  private final int chunkLength;
+
+  private char[] chunk = new char[0];
+  private int position = 0;
+
+  public TokenPool() {
+    this(DEFAULT_CHUNK_LENGTH);
+  }
+
+  public TokenPool(int chunkLength) {
+    this(new NativeTokenSource(), chunkLength);
+  }
+
+  public TokenPool(TokenSource tokenSource) {
+    this(tokenSource, DEFAULT_CHUNK_LENGTH);
+  }
+
+  /**
+   * @param tokenSource Where the pool gets its entropy
+   * @param chunkLength The token length worth of characters to fill the pool with on each refill (which may take
+   *                    several requests to the token source).  This must be at least as large as the largest token
+   *                    that will be requested from the pool.
+   */
+  public TokenPool(TokenSource tokenSource, int chunkLength) {
+    if (chunkLength < SaltEngine.MAXIMUM_TOKEN_LENGTH) {
+      throw new IllegalArgumentException(String.format("The chunk length must be at least %d, but %d was requested.",
+              SaltEngine.MAXIMUM_TOKEN_LENGTH, chunkLength));
+    }
+    this.tokenSource = tokenSource;
+    this.chunkLength = chunkLength;
+  }
+
+  public TokenSource getTokenSource() {
+    return tokenSource;
+  }
+
+  public int getChunkLength() {
+    return chunkLength;
+  }
+
+  /**
+   * Take a single token from the pool, refilling it from the token source if needed.  Length validation is the
+   * responsibility of the caller.
+   * @param tokenLength The token length, using the same meaning as {@link TokenSource#generateToken(int)}
+   * @return The token
+   */
+  public synchronized String nextToken(int tokenLength) {
+    int characterCount = tokenLength * 2;
+    ensureAvailable(characterCount);
+    String token = new String(chunk, position, characterCount);
+    consume(characterCount);
+    return token;
+  }
+
+  /**
+   * Take a single token from the pool and write it into a buffer, without creating a String.  Length validation is
+   * the responsibility of the caller.
+   * @param tokenLength The token length, using the same meaning as {@link TokenSource#generateToken(int)}
+   * @param buffer The buffer to write the token into, replacing anything that was in it
+   */
+  public synchronized void nextToken(int tokenLength, TokenBuffer buffer) {
+    int characterCount = tokenLength * 2;
+    ensureAvailable(characterCount);
+    buffer.fill(chunk, position, characterCount);
+    consume(characterCount);
+  }
+
+  /**
+   * Take multiple tokens from the pool at once
+   * @param count The number of tokens to create
+   * @param tokenLength The token length, using the same meaning as {@link TokenSource#generateToken(int)}
+   * @return The list of tokens
+   */
+  public synchronized List<String> nextTokens(int count, int tokenLength) {
+    List<String> tokens = new ArrayList<String>(count);
+    for (int index = 0; index < count; index++) {
+      tokens.add(nextToken(tokenLength));
+    }
+    return tokens;
+  }
+
+  private void ensureAvailable(int characterCount) {
+    if (chunk.length - position < characterCount) {
+      refill();
+    }
+  }
+
+  /**
+   * Move past characters that have been handed out, zeroing them so they only exist in the caller's copy
+   */
+  private void consume(int characterCount) {
+    Arrays.fill(chunk, position, position + characterCount, '\0');
+    position += characterCount;
+  }
+
+  private void refill() {
+    if (chunk.length != chunkLength * 2) {
+      chunk = new char[chunkLength * 2];
+    }
+    for (int filled = 0; filled < chunkLength; filled += MAXIMUM_REQUEST_LENGTH) {
+      tokenSource.generateToken(Math.min(MAXIMUM_REQUEST_LENGTH, chunkLength - filled), chunk, filled * 2);
+    }
+    position = 0;
+  }
+}
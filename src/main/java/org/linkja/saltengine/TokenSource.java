@@ -0,0 +1,59 @@
+package org.linkja.saltengine;
+
+import org.linkja.core.LinkjaException;
+
+/**
+ * Where the random tokens used for project and private salts come from.  Every source follows the same format as the
+ * native library: a token created for a length of L is L random bytes, written as 2 * L lowercase hexadecimal
+ * characters.  Sources must be safe to use from several threads at once.
+ */
+public interface TokenSource {
+  String NATIVE = "native";
+  String JAVA = "java";
+  String AUTO = "auto";
+
+  /**
+   * @return The name of the source, as used by {@link #create(String)}
+   */
+  String getName();
+
+  /**
+   * Create a random token.  Length validation is the responsibility of the caller.
+   * @param tokenLength The token length, in bytes of randomness
+   * @return The token, as 2 * tokenLength hexadecimal characters
+   */
+  String generateToken(int tokenLength);
+
+  /**
+   * Create a random token and write it into an array, so that it can be wiped once it has been used.  Sources that
+   * can create a token without a String should override this.
+   * @param tokenLength The token length, in bytes of randomness
+   * @param destination The array to write the 2 * tokenLength characters of the token into
+   * @param offset The position in the array to start writing at
+   */
+  default void generateToken(int tokenLength, char[] destination, int offset) {
+    String token = generateToken(tokenLength);
+    token.getChars(0, token.length(), destination, offset);
+  }
+
+  /**
+   * Create a token source by name
+   * @param name {@link #NATIVE} for the native library, {@link #JAVA} for the pure Java source, or {@link #AUTO} for
+   *             the native library if it can be loaded, and otherwise the pure Java source
+   * @return The token source
+   * @throws LinkjaException If the name is not recognized
+   */
+  static TokenSource create(String name) throws LinkjaException {
+    if (NATIVE.equalsIgnoreCase(name)) {
+      return new NativeTokenSource();
+    }
+    if (JAVA.equalsIgnoreCase(name)) {
+      return new SecureRandomTokenSource();
+    }
+    if (AUTO.equalsIgnoreCase(name)) {
+      return (NativeTokenSource.isAvailable() ? new NativeTokenSource() : new SecureRandomTokenSource());
+    }
+    throw new LinkjaException(String.format("The token source must be one of '%s', '%s' or '%s', but '%s' was requested.",
+            NATIVE, JAVA, AUTO, name));
+  }
+}
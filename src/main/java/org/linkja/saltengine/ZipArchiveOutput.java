@@ -0,0 +1,120 @@
+package org.linkja.saltengine;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes all of the salt files as entries in a single zip archive, using the same names the salt files would have
+ * if they were written to a directory.
+ *
+ * The salt files are staged in a local temporary directory and then streamed into the archive through a single
+ * buffered writer.  The archive itself is written under a temporary name, synced to disk once when the output is
+ * closed, and then renamed, so a partially written archive is never left behind under the final name.  If the run
+ * fails, the output is aborted instead, and an archive from an earlier run is left as it was.
+ */
+public class ZipArchiveOutput implements SaltFileOutput {
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final Path archiveFile;
+  private final Path tempArchiveFile;
+  private final Path stagingDirectory;
+  private final FileOutputStream fileStream;
+  private final ZipOutputStream zipStream;
+  private boolean closed = false;
+
+  public ZipArchiveOutput(Path archiveFile) throws IOException {
+    this.archiveFile = archiveFile.toAbsolutePath();
+    this.tempArchiveFile = Paths.get(this.archiveFile.toString() + SaltEngine.TEMP_FILE_SUFFIX);
+    this.stagingDirectory = Files.createTempDirectory("saltengine");
+    this.fileStream = new FileOutputStream(tempArchiveFile.toFile());
+    this.zipStream = new ZipOutputStream(new BufferedOutputStream(fileStream, BUFFER_SIZE));
+    // The salt files are encrypted, so there is little to gain from trying hard to compress them
+    this.zipStream.setLevel(Deflater.BEST_SPEED);
+  }
+
+  public Path getArchiveFile() {
+    return archiveFile;
+  }
+
+  @Override
+  public Path getStagingPath(String fileName) {
+    return stagingDirectory.resolve(fileName);
+  }
+
+  @Override
+  public synchronized long commit(Path stagedFile, String fileName) throws IOException {
+    if (closed) {
+      throw new IOException(String.format("Unable to add %s, because the archive has already been closed", fileName));
+    }
+
+    zipStream.putNextEntry(new ZipEntry(fileName));
+    long fileSize = Files.copy(stagedFile, zipStream);
+    zipStream.closeEntry();
+    Files.deleteIfExists(stagedFile);
+    return fileSize;
+  }
+
+  @Override
+  public String getLocation(String fileName) {
+    return archiveFile.toString() + "!/" + fileName;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    try {
+      try {
+        zipStream.finish();
+        zipStream.flush();
+        fileStream.getFD().sync();
+      }
+      finally {
+        zipStream.close();
+      }
+      Files.move(tempArchiveFile, archiveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      deleteTemporaryFiles();
+    }
+  }
+
+  /**
+   * Discard the archive that was being written, without replacing the existing archive
+   * @throws IOException
+   */
+  @Override
+  public synchronized void abort() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    try {
+      zipStream.close();
+    }
+    finally {
+      deleteTemporaryFiles();
+    }
+  }
+
+  private void deleteTemporaryFiles() throws IOException {
+    Files.deleteIfExists(tempArchiveFile);
+    try (Stream<Path> stagedFiles = Files.list(stagingDirectory)) {
+      stagedFiles.forEach(path -> path.toFile().delete());
+    }
+    Files.deleteIfExists(stagingDirectory);
+  }
+}
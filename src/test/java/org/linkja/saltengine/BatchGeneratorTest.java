@@ -0,0 +1,99 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchGeneratorTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private Path createBatchDirectory() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path directory = TestProjects.createTemporaryDirectory();
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), directory.resolve("sites.csv"));
+    return directory;
+  }
+
+  private Path writeBatchFile(Path directory, String contents) throws Exception {
+    Path batchFile = directory.resolve("batch.csv");
+    Files.write(batchFile, contents.getBytes(StandardCharsets.UTF_8));
+    return batchFile;
+  }
+
+  @Test
+  void loadBatch_Valid() throws Exception {
+    Path directory = createBatchDirectory();
+    Path batchFile = writeBatchFile(directory, "Project A,sites.csv\r\n\"Project B\"," + directory.resolve("sites.csv").toString() + "\r\n");
+
+    BatchGenerator generator = new BatchGenerator();
+    List<BatchGenerator.BatchProject> projects = generator.loadBatch(batchFile.toFile());
+    assertEquals(2, projects.size());
+    assertEquals("Project A", projects.get(0).getProjectName());
+    assertEquals(directory.resolve("sites.csv").toFile().getCanonicalFile(), projects.get(0).getSitesFile().getCanonicalFile());
+    assertEquals("Project B", projects.get(1).getProjectName());
+    assertEquals(directory.resolve("sites.csv").toFile().getCanonicalFile(), projects.get(1).getSitesFile().getCanonicalFile());
+  }
+
+  @Test
+  void loadBatch_Invalid() throws Exception {
+    Path directory = createBatchDirectory();
+    BatchGenerator generator = new BatchGenerator();
+
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> generator.loadBatch(writeBatchFile(directory, "Project A,sites.csv,extra\r\n").toFile()));
+    assertTrue(exception.getMessage().startsWith("Row 1 has 3 columns"));
+
+    exception = assertThrows(LinkjaException.class, () -> generator.loadBatch(writeBatchFile(directory, "Project A,sites.csv\r\n Project A ,sites.csv\r\n").toFile()));
+    assertTrue(exception.getMessage().startsWith("Row 2 repeats the project 'Project A'"));
+
+    exception = assertThrows(LinkjaException.class, () -> generator.loadBatch(writeBatchFile(directory, " ,sites.csv\r\n").toFile()));
+    assertTrue(exception.getMessage().startsWith("Row 1 has a blank project name"));
+
+    exception = assertThrows(LinkjaException.class, () -> generator.loadBatch(writeBatchFile(directory, "").toFile()));
+    assertEquals("The batch file does not list any projects.", exception.getMessage());
+
+    assertThrows(FileNotFoundException.class, () -> generator.loadBatch(writeBatchFile(directory, "Project A,missing.csv\r\n").toFile()));
+  }
+
+  @Test
+  void generate_MultipleProjects() throws Exception {
+    Path directory = createBatchDirectory();
+    Path batchFile = writeBatchFile(directory, "Project A,sites.csv\r\nProject B,./sites.csv\r\n");
+
+    BatchGenerator generator = new BatchGenerator();
+    generator.setBatchFile(batchFile.toFile());
+    generator.setThreadCount(2);
+    generator.generate();
+
+    assertEquals(2, generator.getMetrics().size());
+    assertEquals(3, generator.getMetrics().get("Project A").getSaltFilesWritten());
+    assertEquals(3, generator.getMetrics().get("Project B").getSaltFilesWritten());
+
+    // Each project has its own project token, even though they share the same site file
+    SaltFile projectA = new SaltFile();
+    projectA.load(directory.resolve(projectA.getSaltFileName("Project A", "001")).toFile());
+    SaltFile projectB = new SaltFile();
+    projectB.load(directory.resolve(projectB.getSaltFileName("Project B", "001")).toFile());
+    assertEquals("Project A", projectA.getProjectName());
+    assertEquals("Project B", projectB.getProjectName());
+    assertNotEquals(projectA.getProjectSalt(), projectB.getProjectSalt());
+  }
+
+  @Test
+  void setThreadCount_Invalid() {
+    BatchGenerator generator = new BatchGenerator();
+    assertThrows(LinkjaException.class, () -> generator.setThreadCount(0));
+  }
+}
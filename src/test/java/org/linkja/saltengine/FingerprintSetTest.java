@@ -0,0 +1,47 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintSetTest {
+  @Test
+  void add_Duplicates() {
+    FingerprintSet set = new FingerprintSet();
+    assertTrue(set.add(FingerprintSet.fingerprint("001")));
+    assertTrue(set.add(FingerprintSet.fingerprint("002")));
+    assertFalse(set.add(FingerprintSet.fingerprint("001")));
+    assertEquals(2, set.size());
+  }
+
+  @Test
+  void add_EmptyFingerprint() {
+    FingerprintSet set = new FingerprintSet();
+    assertFalse(set.contains(0L));
+    assertTrue(set.add(0L));
+    assertFalse(set.add(0L));
+    assertTrue(set.contains(0L));
+    assertEquals(1, set.size());
+  }
+
+  @Test
+  void add_Resize() {
+    // Add enough fingerprints that the table has to grow several times, and make sure none of them are lost
+    FingerprintSet set = new FingerprintSet();
+    for (int index = 0; index < 100000; index++) {
+      assertTrue(set.add(FingerprintSet.fingerprint(Integer.toString(index))));
+    }
+    assertEquals(100000, set.size());
+    for (int index = 0; index < 100000; index++) {
+      assertTrue(set.contains(FingerprintSet.fingerprint(Integer.toString(index))));
+    }
+    assertFalse(set.contains(FingerprintSet.fingerprint("100000")));
+  }
+
+  @Test
+  void fingerprint_Distinct() {
+    assertEquals(FingerprintSet.fingerprint("Test 1"), FingerprintSet.fingerprint("Test 1"));
+    assertNotEquals(FingerprintSet.fingerprint("Test 1"), FingerprintSet.fingerprint("Test 2"));
+    assertNotEquals(FingerprintSet.fingerprint("ab"), FingerprintSet.fingerprint("ba"));
+  }
+}
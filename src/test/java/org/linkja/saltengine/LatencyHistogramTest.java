@@ -0,0 +1,49 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+  @Test
+  void getPercentile_Empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50.0));
+    assertEquals(0.0, histogram.getMean());
+  }
+
+  @Test
+  void getPercentile_SmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 10; value++) {
+      histogram.record(value);
+    }
+    assertEquals(5, histogram.getPercentile(50.0));
+    assertEquals(9, histogram.getPercentile(90.0));
+    assertEquals(10, histogram.getPercentile(100.0));
+    assertEquals(10, histogram.getMaximum());
+    assertEquals(5.5, histogram.getMean());
+  }
+
+  @Test
+  void getPercentile_LargeValuesAreApproximate() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 1000; value++) {
+      histogram.record(value * 1_000_000L);
+    }
+
+    // Each reported value should be within a few percent of the actual value
+    assertEquals(500_000_000.0, histogram.getPercentile(50.0), 500_000_000.0 * 0.04);
+    assertEquals(990_000_000.0, histogram.getPercentile(99.0), 990_000_000.0 * 0.04);
+    assertEquals(1_000_000_000L, histogram.getMaximum());
+  }
+
+  @Test
+  void bucketIndex_RoundTrip() {
+    for (long value : new long[] { 0, 1, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+      long bucketValue = LatencyHistogram.bucketValue(LatencyHistogram.bucketIndex(value));
+      assertEquals(LatencyHistogram.bucketIndex(value), LatencyHistogram.bucketIndex(bucketValue));
+    }
+  }
+}
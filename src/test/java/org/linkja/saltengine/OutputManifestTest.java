@@ -0,0 +1,95 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.Site;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutputManifestTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  @Test
+  void getManifestPath() {
+    Path directory = Paths.get("data");
+    assertEquals("Test_Project_1.manifest.csv", OutputManifest.getManifestPath(directory, "Test Project/1").getFileName().toString());
+  }
+
+  @Test
+  void recordCommitted_Reload() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(0, manifest.getCommittedCount());
+      assertNull(manifest.getAnyCommittedFileName());
+      manifest.recordCommitted(new Site("1", "Site 1"), "test_1.txt", "abc");
+      manifest.recordCommitted(new Site("2", "Site 2"), "test_2.txt", "def");
+      manifest.recordFailed(new Site("3", "Site 3"));
+    }
+
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(2, manifest.getCommittedCount());
+      assertTrue(manifest.isCommitted("1"));
+      assertEquals("test_2.txt", manifest.getCommittedFileName("2"));
+      assertFalse(manifest.isCommitted("3"));
+
+      // A site that fails after being committed is no longer considered committed
+      manifest.recordFailed(new Site("1", "Site 1"));
+    }
+
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(1, manifest.getCommittedCount());
+      assertFalse(manifest.isCommitted("1"));
+    }
+  }
+
+  @Test
+  void open_IncompleteLastRow() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    Path manifestFile = OutputManifest.getManifestPath(directory, "Test");
+    Files.write(manifestFile, "Site ID,File Name,SHA-256,Status\r\n1,test_1.txt,abc,committed\r\n2,test_2".getBytes(StandardCharsets.UTF_8));
+
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(1, manifest.getCommittedCount());
+      manifest.recordCommitted(new Site("2", "Site 2"), "test_2.txt", "def");
+    }
+
+    // The new row must not have been joined to the incomplete one
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(2, manifest.getCommittedCount());
+    }
+  }
+
+  @Test
+  void open_CutOffInsideQuotes() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    Path manifestFile = OutputManifest.getManifestPath(directory, "Test");
+    Files.write(manifestFile, "Site ID,File Name,SHA-256,Status\r\n1,test_1.txt,abc,committed\r\n\"2,3\",\"test_2".getBytes(StandardCharsets.UTF_8));
+
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(1, manifest.getCommittedCount());
+      manifest.recordCommitted(new Site("2,3", "Site 2"), "test_2.txt", "def");
+    }
+
+    // The cut off row was dropped, so it doesn't swallow the rows added after it
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test")) {
+      assertEquals(2, manifest.getCommittedCount());
+      assertEquals("abc", manifest.getCommittedChecksum("1"));
+      assertEquals("test_2.txt", manifest.getCommittedFileName("2,3"));
+    }
+  }
+
+  @Test
+  void checksum() throws Exception {
+    Path file = TestProjects.createTemporaryDirectory().resolve("saltengine.txt");
+    Files.write(file, "abc".getBytes(StandardCharsets.UTF_8));
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", OutputManifest.checksum(file));
+  }
+}
@@ -0,0 +1,145 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectSaltFilesTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private static SaltFile load(Path directory, String projectName, String siteID) throws Exception {
+    SaltFile saltFile = new SaltFile();
+    saltFile.load(directory.resolve(saltFile.getSaltFileName(projectName, siteID)).toFile());
+    return saltFile;
+  }
+
+  private static int countHiddenEntries(Path directory) throws Exception {
+    int count = 0;
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, ".*")) {
+      for (Path entry : entries) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  void find_FromManifest() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(directory, "Test Project");
+    List<Path> files = projectFiles.find();
+    assertEquals(3, files.size());
+    assertEquals(3, projectFiles.load(files, 2).size());
+  }
+
+  @Test
+  void find_WithoutManifest() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    Files.delete(OutputManifest.getManifestPath(directory, "Test Project"));
+
+    List<Path> files = new ProjectSaltFiles(directory, "Test Project").find();
+    assertEquals(3, files.size());
+    assertTrue(files.contains(directory.resolve(new SaltFile().getSaltFileName("Test Project", "001"))));
+  }
+
+  @Test
+  void find_NoSaltFiles() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> new ProjectSaltFiles(directory, "Other Project").find());
+    assertTrue(exception.getMessage().startsWith("No salt files were found for the project 'Other Project'"));
+  }
+
+  @Test
+  void load_DifferentProjectTokens() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    // Replace one of the salt files with one from a different run of the same project
+    Path otherDirectory = TestProjects.generateProject("Test Project");
+    String fileName = new SaltFile().getSaltFileName("Test Project", "002");
+    Files.copy(otherDirectory.resolve(fileName), directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(directory, "Test Project");
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> projectFiles.load(projectFiles.find(), 2));
+    assertTrue(exception.getMessage().contains("have different project tokens"));
+  }
+
+  @Test
+  void load_Unreadable() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    Files.write(directory.resolve(new SaltFile().getSaltFileName("Test Project", "003")), new byte[] { 1, 2, 3 });
+
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(directory, "Test Project");
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> projectFiles.load(projectFiles.find(), 2));
+    assertTrue(exception.getMessage().startsWith("Unable to load 1 of 3 salt files"));
+  }
+
+  @Test
+  void rotateProject_KeepsPrivateSalts() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    SaltFile before = load(directory, "Test Project", "001");
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setProjectDirectory(directory.toFile());
+    engine.setThreadCount(2);
+    engine.rotateProject();
+
+    assertEquals(3, engine.getMetrics().getSaltFilesWritten());
+    SaltFile after = load(directory, "Test Project", "001");
+    assertNotEquals(before.getProjectSalt(), after.getProjectSalt());
+    assertEquals(before.getPrivateSalt(), after.getPrivateSalt());
+    assertEquals(before.getSite().getSiteName(), after.getSite().getSiteName());
+    assertEquals(after.getProjectSalt(), load(directory, "Test Project", "003").getProjectSalt());
+
+    // The staging directory and the previous salt files are gone
+    assertEquals(0, countHiddenEntries(directory));
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test Project")) {
+      assertEquals(3, manifest.getCommittedCount());
+    }
+  }
+
+  @Test
+  void rotateProject_RotatesPrivateSalts() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    SaltFile before = load(directory, "Test Project", "002");
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setProjectDirectory(directory.toFile());
+    engine.setRotatePrivateSalts(true);
+    engine.rotateProject();
+
+    SaltFile after = load(directory, "Test Project", "002");
+    assertNotEquals(before.getProjectSalt(), after.getProjectSalt());
+    assertNotEquals(before.getPrivateSalt(), after.getPrivateSalt());
+  }
+
+  @Test
+  void replace_RestoresOnFailure() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    ProjectSaltFiles projectFiles = new ProjectSaltFiles(directory, "Test Project");
+    String first = new SaltFile().getSaltFileName("Test Project", "001");
+    String second = new SaltFile().getSaltFileName("Test Project", "002");
+    byte[] original = Files.readAllBytes(directory.resolve(first));
+
+    // Only the first file is staged, so replacing the second one fails
+    Path stagingDirectory = projectFiles.createStagingDirectory();
+    Files.write(stagingDirectory.resolve(first), new byte[] { 1, 2, 3 });
+    assertThrows(LinkjaException.class, () -> projectFiles.replace(stagingDirectory, Arrays.asList(first, second)));
+    assertArrayEquals(original, Files.readAllBytes(directory.resolve(first)));
+    ProjectSaltFiles.deleteDirectory(stagingDirectory);
+    assertEquals(0, countHiddenEntries(directory));
+  }
+}
@@ -1,9 +1,11 @@
 package org.linkja.saltengine;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.linkja.core.CryptoHelper;
 import org.linkja.core.FileHelper;
 import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
 import org.linkja.core.Site;
 import org.mockito.Mockito;
 import org.mockito.internal.util.reflection.FieldSetter;
@@ -12,16 +14,26 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipFile;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class SaltEngineTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
   @Test
   void loadSites_FileNotFound() {
     FileHelper fileHelperMock = Mockito.mock(FileHelper.class);
@@ -108,6 +120,54 @@ class SaltEngineTest {
     assertEquals("Site names must be unique, but 'Test' was found more than once.", exception.getMessage());
   }
 
+  @Test
+  void streamSites_ValidFile() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File sitesFile = new File(classLoader.getResource("valid-sites-file.csv").toURI());
+
+    SaltEngine engine = new SaltEngine();
+    List<Site> sites = new ArrayList<Site>();
+    List<Long> rowNumbers = new ArrayList<Long>();
+    long siteCount = engine.streamSites(sitesFile, (site, rowNumber) -> { sites.add(site); rowNumbers.add(rowNumber); });
+    assertEquals(3, siteCount);
+    assertEquals(3, sites.size());
+    assertEquals("002", sites.get(1).getSiteID());
+    assertEquals(2L, (long)rowNumbers.get(1));
+  }
+
+  @Test
+  void streamSites_EmptyFile() throws URISyntaxException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File sitesFile = new File(classLoader.getResource("empty-sites-file.csv").toURI());
+
+    SaltEngine engine = new SaltEngine();
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> engine.streamSites(sitesFile, (site, rowNumber) -> {}));
+    assertEquals("You must specify at least one site", exception.getMessage());
+  }
+
+  @Test
+  void streamSites_DuplicateID() throws URISyntaxException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File sitesFile = new File(classLoader.getResource("duplicate-id-sites-file.csv").toURI());
+
+    SaltEngine engine = new SaltEngine();
+    List<Site> sites = new ArrayList<Site>();
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> engine.streamSites(sitesFile, (site, rowNumber) -> sites.add(site)));
+    assertEquals("Site IDs must be unique, but '001' was found more than once.", exception.getMessage());
+    // The sites before the duplicate have already been streamed
+    assertEquals(2, sites.size());
+  }
+
+  @Test
+  void streamSites_DuplicateName() throws URISyntaxException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File sitesFile = new File(classLoader.getResource("duplicate-name-sites-file.csv").toURI());
+
+    SaltEngine engine = new SaltEngine();
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> engine.streamSites(sitesFile, (site, rowNumber) -> {}));
+    assertEquals("Site names must be unique, but 'Test 2' was found more than once.", exception.getMessage());
+  }
+
   @Test
   void setProjectName_NullEmpty() {
     SaltEngine engine = new SaltEngine();
@@ -189,4 +249,251 @@ class SaltEngineTest {
       tokens.add(token);
     }
   }
+
+  @Test
+  void generateTokens_SizeViolation() {
+    SaltEngine engine = new SaltEngine();
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> engine.generateTokens(5, SaltEngine.MINIMUM_TOKEN_LENGTH - 1));
+    assertTrue(exception.getMessage().equals("The token must be between 32 and 1024 characters, but 31 were requested."));
+
+    exception = assertThrows(LinkjaException.class, () -> engine.generateTokens(5, SaltEngine.MAXIMUM_TOKEN_LENGTH + 1));
+    assertTrue(exception.getMessage().equals("The token must be between 32 and 1024 characters, but 1025 were requested."));
+
+    exception = assertThrows(LinkjaException.class, () -> engine.generateTokens(-1, SaltEngine.DEFAULT_TOKEN_LENGTH));
+    assertTrue(exception.getMessage().equals("The number of tokens cannot be negative, but -1 were requested."));
+  }
+
+  @Test
+  void generateTokens_Valid() throws LinkjaException {
+    SaltEngine engine = new SaltEngine();
+    assertEquals(0, engine.generateTokens(0, SaltEngine.DEFAULT_TOKEN_LENGTH).size());
+
+    // Request enough tokens (and a large enough length) that the pool has to be refilled several times
+    List<String> tokens = engine.generateTokens(500, SaltEngine.MAXIMUM_TOKEN_LENGTH);
+    assertEquals(500, tokens.size());
+    HashSet<String> distinctTokens = new HashSet<String>();
+    for (String token : tokens) {
+      assertEquals(SaltEngine.MAXIMUM_TOKEN_LENGTH * 2, token.length());
+      assertTrue(distinctTokens.add(token));
+    }
+  }
+
+  @Test
+  void setThreadCount_Invalid() {
+    SaltEngine engine = new SaltEngine();
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> engine.setThreadCount(0));
+    assertEquals("The number of threads must be at least 1, but 0 was requested.", exception.getMessage());
+    assertEquals(SaltEngine.DEFAULT_THREAD_COUNT, engine.getThreadCount());
+  }
+
+  @Test
+  void setThreadCount_Valid() throws LinkjaException {
+    SaltEngine engine = new SaltEngine();
+    engine.setThreadCount(8);
+    assertEquals(8, engine.getThreadCount());
+  }
+
+  @Test
+  void generate_MultipleThreads() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.setThreadCount(4);
+    engine.generate();
+
+    // We expect the sites file, the manifest, its lock file, the site index and one salt file per site, and no leftover temporary files
+    File[] files = outputPath.toFile().listFiles();
+    assertEquals(7, files.length);
+    for (File file : files) {
+      assertFalse(file.getName().endsWith(SaltEngine.TEMP_FILE_SUFFIX));
+    }
+  }
+
+  @Test
+  void generate_ArchiveFile() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+    Path archiveFile = outputPath.resolve("salts.zip");
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.setArchiveFile(archiveFile.toFile());
+    engine.setThreadCount(2);
+    engine.generate();
+
+    // Only the sites file, the archive and its lock file should be in the directory (no manifest is kept for archives), and the archive has one entry per site
+    assertEquals(3, outputPath.toFile().listFiles().length);
+    try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+      assertEquals(3, zipFile.size());
+      assertNotNull(zipFile.getEntry(new org.linkja.core.SaltFile().getSaltFileName("Test Project", "002")));
+    }
+  }
+
+  @Test
+  void throwIfFailed_KeepsFirstFailures() throws Exception {
+    SaltEngine.ProjectRun run = new SaltEngine.ProjectRun("Test Project", "token", null, null, null);
+    int failureCount = SaltEngine.MAXIMUM_REPORTED_FAILURES + 5;
+    // Failures arrive in any order, but the earliest rows are the ones that are kept
+    for (long row = failureCount; row >= 1; row--) {
+      run.addFailure(row, String.format("  Row %d failed", row));
+    }
+
+    LinkjaException exception = assertThrows(LinkjaException.class, run::throwIfFailed);
+    assertTrue(exception.getMessage().startsWith(String.format("Unable to create the salt files for %d of", failureCount)));
+    assertTrue(exception.getMessage().contains("  Row 1 failed"));
+    assertFalse(exception.getMessage().contains(String.format("  Row %d failed", failureCount)));
+    assertTrue(exception.getMessage().endsWith("  ... and 5 more"));
+  }
+
+  @Test
+  void generate_ProjectLocked() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+
+    // While another run holds the project, this one fails straight away without writing anything
+    try (ProjectLock lock = ProjectLock.acquire(OutputManifest.getManifestPath(outputPath, "Test Project"))) {
+      LinkjaException exception = assertThrows(LinkjaException.class, engine::generate);
+      assertTrue(exception.getMessage().contains("is being used by another run"));
+      assertFalse(Files.exists(OutputManifest.getManifestPath(outputPath, "Test Project")));
+    }
+
+    engine.generate();
+    assertEquals(3, engine.getMetrics().getSaltFilesWritten());
+  }
+
+  @Test
+  void generate_ArchiveFileFailedRun() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+    Path archiveFile = outputPath.resolve("salts.zip");
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.setArchiveFile(archiveFile.toFile());
+    engine.generate();
+    byte[] originalArchive = Files.readAllBytes(archiveFile);
+
+    // When streaming, the duplicate site is only found after the first sites have gone into the new archive
+    Files.write(sitesFile, "004,Test 4\n005,Test 5\n004,Test 4 again\n".getBytes(StandardCharsets.UTF_8));
+    engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.setArchiveFile(archiveFile.toFile());
+    engine.setStreamSites(true);
+    assertThrows(LinkjaException.class, engine::generate);
+
+    // The archive from the first run is untouched, and the partial archive is gone
+    assertArrayEquals(originalArchive, Files.readAllBytes(archiveFile));
+    assertEquals(3, outputPath.toFile().listFiles().length);
+  }
+
+  @Test
+  void generate_ResumeFromManifest() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.generate();
+    assertEquals(3, engine.getMetrics().getSaltFilesWritten());
+    assertTrue(Files.exists(OutputManifest.getManifestPath(outputPath, "Test Project")));
+
+    // Simulate a run that stopped before the last salt file was written
+    SaltFile saltFile = new SaltFile();
+    Path firstFile = outputPath.resolve(saltFile.getSaltFileName("Test Project", "001"));
+    Path lastFile = outputPath.resolve(saltFile.getSaltFileName("Test Project", "003"));
+    byte[] firstFileContents = Files.readAllBytes(firstFile);
+    Files.delete(lastFile);
+
+    engine.generate();
+    assertEquals(1, engine.getMetrics().getSaltFilesWritten());
+    assertEquals(2, engine.getMetrics().getSitesSkipped());
+    assertArrayEquals(firstFileContents, Files.readAllBytes(firstFile));
+
+    // The new salt file must belong to the same project as the ones that were already there
+    SaltFile firstSaltFile = new SaltFile();
+    firstSaltFile.load(firstFile.toFile());
+    SaltFile lastSaltFile = new SaltFile();
+    lastSaltFile.load(lastFile.toFile());
+    assertEquals(firstSaltFile.getProjectSalt(), lastSaltFile.getProjectSalt());
+  }
+
+  @Test
+  void generate_ResumeDamagedFile() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    Path sitesFile = outputPath.resolve("sites.csv");
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), sitesFile);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(sitesFile.toFile());
+    engine.generate();
+
+    // Simulate a salt file that was cut short after it was committed
+    Path damagedFile = outputPath.resolve(new SaltFile().getSaltFileName("Test Project", "002"));
+    byte[] contents = Files.readAllBytes(damagedFile);
+    Files.write(damagedFile, Arrays.copyOf(contents, contents.length / 2));
+
+    engine.generate();
+    assertEquals(1, engine.getMetrics().getSaltFilesWritten());
+    assertEquals(2, engine.getMetrics().getSitesSkipped());
+    SaltFile recreatedFile = new SaltFile();
+    recreatedFile.load(damagedFile.toFile());
+    assertEquals("002", recreatedFile.getSite().getSiteID());
+  }
+
+  @Test
+  void generate_CommitFailsAfterSave() throws Exception {
+    Path outputPath = TestProjects.createTemporaryDirectory();
+    StringBuilder sites = new StringBuilder();
+    for (int siteNumber = 1; siteNumber <= 40; siteNumber++) {
+      sites.append(String.format("S%03d,Site %d\r\n", siteNumber, siteNumber));
+      // A directory with the name of the salt file can't be replaced, so the salt file is saved but not committed
+      if (siteNumber % 4 == 0) {
+        Path blocked = outputPath.resolve(new SaltFile().getSaltFileName("Test Project", String.format("S%03d", siteNumber)));
+        Files.createDirectories(blocked.resolve("blocked"));
+      }
+    }
+    Files.write(outputPath.resolve("sites.csv"), sites.toString().getBytes(StandardCharsets.UTF_8));
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(outputPath.resolve("sites.csv").toFile());
+    engine.setThreadCount(4);
+    assertThrows(LinkjaException.class, () -> engine.generate());
+    assertEquals(30, engine.getMetrics().getSaltFilesWritten());
+
+    // The failed sites didn't release their private tokens a second time, so every site still has its own
+    Set<String> privateSalts = new HashSet<String>();
+    for (int siteNumber = 1; siteNumber <= 40; siteNumber++) {
+      if (siteNumber % 4 != 0) {
+        SaltFile saltFile = new SaltFile();
+        saltFile.load(outputPath.resolve(saltFile.getSaltFileName("Test Project", String.format("S%03d", siteNumber))).toFile());
+        assertTrue(saltFile.getPrivateSalt().matches("[0-9a-f]+"));
+        privateSalts.add(saltFile.getPrivateSalt());
+      }
+    }
+    assertEquals(30, privateSalts.size());
+  }
 }
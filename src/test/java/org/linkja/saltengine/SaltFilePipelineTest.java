@@ -0,0 +1,143 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaltFilePipelineTest {
+  /**
+   * A job that records the steps it went through, and can be told to fail at one of them
+   */
+  private static class TestJob implements SaltFilePipeline.Job {
+    final List<String> steps = Collections.synchronizedList(new ArrayList<String>());
+    final String failAt;
+    final boolean throwError;
+    volatile Exception failure;
+
+    TestJob(String failAt) {
+      this(failAt, false);
+    }
+
+    TestJob(String failAt, boolean throwError) {
+      this.failAt = failAt;
+      this.throwError = throwError;
+    }
+
+    private void step(String name) throws Exception {
+      steps.add(name);
+      if (name.equals(failAt)) {
+        if (throwError) {
+          throw new NoClassDefFoundError(name + " failed");
+        }
+        throw new Exception(name + " failed");
+      }
+    }
+
+    public void prepare() throws Exception { step("prepare"); }
+    public void save() throws Exception { step("save"); }
+    public void commit() throws Exception { step("commit"); }
+    public OutputManifest getManifest() { return null; }
+    public void complete() throws Exception { step("complete"); }
+    public void fail(Exception e) { failure = e; steps.add("fail"); }
+    public void finish() { steps.add("finish"); }
+  }
+
+  @Test
+  void submit_RunsEveryStage() throws Exception {
+    List<TestJob> jobs = new ArrayList<TestJob>();
+    try (SaltFilePipeline pipeline = new SaltFilePipeline(3)) {
+      for (int index = 0; index < 500; index++) {
+        TestJob job = new TestJob("");
+        jobs.add(job);
+        pipeline.submit(job);
+      }
+    }
+
+    for (TestJob job : jobs) {
+      assertEquals(Arrays.asList("prepare", "save", "commit", "complete", "finish"), job.steps);
+    }
+  }
+
+  @Test
+  void submit_FailedStep() throws Exception {
+    TestJob prepareFails = new TestJob("prepare");
+    TestJob saveFails = new TestJob("save");
+    TestJob commitFails = new TestJob("commit");
+    TestJob completeFails = new TestJob("complete");
+    try (SaltFilePipeline pipeline = new SaltFilePipeline(2)) {
+      pipeline.submit(prepareFails);
+      pipeline.submit(saveFails);
+      pipeline.submit(commitFails);
+      pipeline.submit(completeFails);
+    }
+
+    assertEquals(Arrays.asList("prepare", "fail", "finish"), prepareFails.steps);
+    assertEquals(Arrays.asList("prepare", "save", "fail", "finish"), saveFails.steps);
+    assertEquals(Arrays.asList("prepare", "save", "commit", "fail", "finish"), commitFails.steps);
+    assertEquals(Arrays.asList("prepare", "save", "commit", "complete", "fail", "finish"), completeFails.steps);
+  }
+
+  @Test
+  void submit_StepThrowsError() {
+    // An Error fails the job like any other problem, and every stage still shuts down
+    List<TestJob> jobs = new ArrayList<TestJob>();
+    for (String failAt : new String[] { "prepare", "save", "commit", "complete", "" }) {
+      jobs.add(new TestJob(failAt, true));
+    }
+    assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+      try (SaltFilePipeline pipeline = new SaltFilePipeline(2)) {
+        for (TestJob job : jobs) {
+          pipeline.submit(job);
+        }
+      }
+    });
+
+    for (TestJob job : jobs.subList(0, 4)) {
+      assertEquals("fail", job.steps.get(job.steps.size() - 2));
+      assertEquals("finish", job.steps.get(job.steps.size() - 1));
+      assertTrue(job.failure.getCause() instanceof NoClassDefFoundError);
+    }
+    assertEquals(Arrays.asList("prepare", "save", "commit", "complete", "finish"), jobs.get(4).steps);
+  }
+
+  @Test
+  void getStageStats() throws Exception {
+    SaltFilePipeline pipeline = new SaltFilePipeline(2);
+    try {
+      for (int index = 0; index < 100; index++) {
+        pipeline.submit(new TestJob(index % 10 == 0 ? "save" : ""));
+      }
+    }
+    finally {
+      pipeline.close();
+    }
+
+    List<RunMetrics.StageStats> stages = pipeline.getStageStats();
+    assertEquals(3, stages.size());
+    assertEquals("prepare", stages.get(0).getName());
+    assertEquals(100, stages.get(0).getProcessed());
+    assertEquals("save", stages.get(1).getName());
+    assertEquals(2, stages.get(1).getThreadCount());
+    assertEquals(100, stages.get(1).getProcessed());
+    // The jobs that failed to save never reach the commit stage
+    assertEquals("commit", stages.get(2).getName());
+    assertEquals(90, stages.get(2).getProcessed());
+    for (RunMetrics.StageStats stage : stages) {
+      assertEquals(0, stage.getQueueDepth());
+      assertTrue(stage.getMaxQueueDepth() >= 0);
+    }
+  }
+
+  @Test
+  void submit_AfterClose() throws Exception {
+    SaltFilePipeline pipeline = new SaltFilePipeline(1);
+    pipeline.close();
+    assertThrows(IllegalStateException.class, () -> pipeline.submit(new TestJob("")));
+  }
+}
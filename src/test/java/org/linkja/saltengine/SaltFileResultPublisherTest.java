@@ -0,0 +1,225 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.Site;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaltFileResultPublisherTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  /**
+   * Collects results, requesting a fixed number at a time
+   */
+  private static class TestSubscriber implements SaltFileFlow.Subscriber<SaltFileResult> {
+    final List<SaltFileResult> results = Collections.synchronizedList(new ArrayList<SaltFileResult>());
+    final long batchSize;
+    final long cancelAfter;
+    SaltFileFlow.Subscription subscription;
+    volatile Throwable error;
+    volatile boolean completed = false;
+
+    TestSubscriber(long batchSize, long cancelAfter) {
+      this.batchSize = batchSize;
+      this.cancelAfter = cancelAfter;
+    }
+
+    @Override
+    public void onSubscribe(SaltFileFlow.Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(SaltFileResult result) {
+      results.add(result);
+      if (results.size() == cancelAfter) {
+        subscription.cancel();
+      }
+      else if (results.size() % batchSize == 0) {
+        subscription.request(batchSize);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+  }
+
+  private static SaltEngine createEngine(int siteCount) throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    StringBuilder sites = new StringBuilder();
+    for (int index = 1; index <= siteCount; index++) {
+      sites.append(String.format("S%03d,Site %d\r\n", index, index));
+    }
+    Files.write(directory.resolve("sites.csv"), sites.toString().getBytes(StandardCharsets.UTF_8));
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.setThreadCount(2);
+    return engine;
+  }
+
+  @Test
+  void publishGenerate_OneAtATime() throws Exception {
+    SaltEngine engine = createEngine(20);
+    TestSubscriber subscriber = new TestSubscriber(1, -1);
+    engine.publishGenerate(Runnable::run).subscribe(subscriber);
+
+    assertTrue(subscriber.completed);
+    assertNull(subscriber.error);
+    assertEquals(20, subscriber.results.size());
+    for (SaltFileResult result : subscriber.results) {
+      assertEquals(SaltFileResult.Status.COMMITTED, result.getStatus());
+      assertTrue(Files.exists(Paths.get(result.getLocation())));
+    }
+
+    // Running it again skips every site, since they are all in the manifest
+    subscriber = new TestSubscriber(Long.MAX_VALUE, -1);
+    engine.publishGenerate(Runnable::run).subscribe(subscriber);
+    assertTrue(subscriber.completed);
+    assertEquals(20, subscriber.results.size());
+    assertEquals(SaltFileResult.Status.SKIPPED, subscriber.results.get(0).getStatus());
+  }
+
+  @Test
+  void publishGenerate_Backpressure() throws Exception {
+    SaltEngine engine = createEngine(200);
+    AtomicBoolean completed = new AtomicBoolean(false);
+    List<SaltFileResult> results = Collections.synchronizedList(new ArrayList<SaltFileResult>());
+    SaltFileFlow.Subscription[] subscription = { null };
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      engine.publishGenerate(executor).subscribe(new SaltFileFlow.Subscriber<SaltFileResult>() {
+        @Override
+        public void onSubscribe(SaltFileFlow.Subscription s) {
+          subscription[0] = s;
+          s.request(5);
+        }
+        @Override
+        public void onNext(SaltFileResult result) {
+          results.add(result);
+        }
+        @Override
+        public void onError(Throwable throwable) {
+        }
+        @Override
+        public void onComplete() {
+          completed.set(true);
+        }
+      });
+
+      // Nothing more than was requested arrives, and the run waits for more demand
+      Thread.sleep(500);
+      assertEquals(5, results.size());
+      assertFalse(completed.get());
+
+      subscription[0].cancel();
+    }
+    finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+    assertEquals(5, results.size());
+    assertFalse(completed.get());
+    assertTrue(engine.getMetrics().getSaltFilesWritten() < 200);
+  }
+
+  @Test
+  void publishGenerate_Cancel() throws Exception {
+    SaltEngine engine = createEngine(200);
+    TestSubscriber subscriber = new TestSubscriber(1, 3);
+    engine.publishGenerate(Runnable::run).subscribe(subscriber);
+
+    assertEquals(3, subscriber.results.size());
+    assertFalse(subscriber.completed);
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  void publishGenerate_Error() throws Exception {
+    SaltEngine engine = createEngine(1);
+    engine.setShard(new Shard(0, 2));
+    TestSubscriber subscriber = new TestSubscriber(1, -1);
+    engine.publishGenerate(Runnable::run).subscribe(subscriber);
+    assertTrue(subscriber.error instanceof LinkjaException);
+    assertFalse(subscriber.completed);
+
+    // Only one subscriber is allowed
+    SaltFileFlow.Publisher<SaltFileResult> publisher = createEngine(1).publishGenerate(Runnable::run);
+    publisher.subscribe(new TestSubscriber(1, -1));
+    TestSubscriber second = new TestSubscriber(1, -1);
+    publisher.subscribe(second);
+    assertTrue(second.error instanceof IllegalStateException);
+  }
+
+  @Test
+  void emit_WaitingDoesNotBlockError() throws Exception {
+    TestSubscriber subscriber = new TestSubscriber(1, -1);
+    SaltFileResultPublisher.Emitter emitter = new SaltFileResultPublisher.Emitter(subscriber);
+
+    // Nothing has been requested, so the result waits for demand that never comes
+    Thread waiting = new Thread(() -> emitter.emit(SaltFileResult.skipped(new Site("001", "Test 1"), 1, "001.txt")));
+    waiting.start();
+    Thread.sleep(200);
+    assertTrue(waiting.isAlive());
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(() -> emitter.error(new LinkjaException("The run failed"))).get(10, TimeUnit.SECONDS);
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertTrue(subscriber.error instanceof LinkjaException);
+
+    emitter.cancel();
+    waiting.join(10000);
+    assertFalse(waiting.isAlive());
+    assertTrue(subscriber.results.isEmpty());
+  }
+
+  @Test
+  void subscribe_RunThrowsError() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      TestSubscriber subscriber = new TestSubscriber(1, -1);
+      new SaltFileResultPublisher(executor, (results) -> {
+        throw new NoClassDefFoundError("The run failed");
+      }).subscribe(subscriber);
+
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+      assertTrue(subscriber.error instanceof NoClassDefFoundError);
+      assertFalse(subscriber.completed);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaltFileVerifierTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private static SaltFileVerifier createVerifier(Path directory) throws Exception {
+    SaltFileVerifier verifier = new SaltFileVerifier();
+    verifier.setProjectDirectory(directory.toFile());
+    verifier.setProjectName("Test Project");
+    verifier.setThreadCount(2);
+    return verifier;
+  }
+
+  @Test
+  void verify_Valid() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    List<SaltFileVerifier.FileResult> results = new ArrayList<SaltFileVerifier.FileResult>();
+    SaltFileVerifier.Summary summary = createVerifier(directory).verify(results::add);
+
+    assertTrue(summary.isValid());
+    assertEquals(3, summary.getFilesChecked());
+    assertEquals(SaltFileVerifier.FINGERPRINT_DISPLAY_LENGTH, summary.getProjectTokenFingerprint().length());
+    assertEquals(3, results.size());
+    assertEquals("001", results.get(0).getSiteID());
+    for (SaltFileVerifier.FileResult result : results) {
+      assertTrue(result.isValid());
+    }
+  }
+
+  @Test
+  void verify_Problems() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    Path otherDirectory = TestProjects.generateProject("Test Project");
+    String secondFile = new SaltFile().getSaltFileName("Test Project", "002");
+    String thirdFile = new SaltFile().getSaltFileName("Test Project", "003");
+    // The second file comes from another run of the project, and the third one can't be loaded
+    Files.copy(otherDirectory.resolve(secondFile), directory.resolve(secondFile), StandardCopyOption.REPLACE_EXISTING);
+    Files.write(directory.resolve(thirdFile), new byte[] { 1, 2, 3 });
+
+    List<SaltFileVerifier.FileResult> results = new ArrayList<SaltFileVerifier.FileResult>();
+    SaltFileVerifier.Summary summary = createVerifier(directory).verify(results::add);
+
+    assertFalse(summary.isValid());
+    assertEquals(3, summary.getFilesChecked());
+    assertEquals(2, summary.getFilesFailed());
+    assertTrue(results.get(0).isValid());
+    assertTrue(results.get(1).getProblem().startsWith("has a different project token"));
+    assertTrue(results.get(2).getProblem().startsWith("could not be loaded"));
+  }
+
+  @Test
+  void verify_NoSaltFiles() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    assertThrows(LinkjaException.class, () -> createVerifier(directory).verify((result) -> {}));
+  }
+}
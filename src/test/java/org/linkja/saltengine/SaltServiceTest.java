@@ -0,0 +1,242 @@
+package org.linkja.saltengine;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SaltServiceTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  @Test
+  void constructor_InvalidParameters() {
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> new SaltService(-1, 1, 1));
+    assertEquals("The port must be between 0 and 65535, but -1 was requested.", exception.getMessage());
+
+    exception = assertThrows(LinkjaException.class, () -> new SaltService(0, 0, 1));
+    assertEquals("The number of job threads must be at least 1, but 0 was requested.", exception.getMessage());
+
+    exception = assertThrows(LinkjaException.class, () -> new SaltService(0, 1, 0));
+    assertEquals("The job queue size must be at least 1, but 0 was requested.", exception.getMessage());
+  }
+
+  @Test
+  void handleJob_MissingParameter() throws Exception {
+    SaltService service = new SaltService(0, 1, 1);
+    service.start();
+    try {
+      HttpURLConnection connection = sendRequest(service, SaltService.ADD_SITES_PATH, "POST", "{}");
+      assertEquals(422, connection.getResponseCode());
+      assertTrue(readResponse(connection.getErrorStream()).contains("The request must include 'siteFile'"));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  @Test
+  void handleJob_InvalidRequest() throws Exception {
+    SaltService service = new SaltService(0, 1, 1);
+    service.start();
+    try {
+      HttpURLConnection connection = sendRequest(service, SaltService.GENERATE_PROJECT_PATH, "GET", null);
+      assertEquals(HttpURLConnection.HTTP_BAD_METHOD, connection.getResponseCode());
+
+      connection = sendRequest(service, SaltService.GENERATE_PROJECT_PATH, "POST", "not json");
+      assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  @Test
+  void handleJob_BodyTooLarge() throws Exception {
+    SaltService service = new SaltService(0, 1, 1);
+    service.start();
+    try {
+      // A declared length that is too large is rejected before any of the body is read
+      String request = "POST " + SaltService.GENERATE_PROJECT_PATH + " HTTP/1.1\r\nHost: localhost:%d\r\n" +
+              SaltService.ACCESS_TOKEN_HEADER + ": " + service.getAccessToken() + "\r\nContent-Type: application/json\r\n" +
+              "Content-Length: %d\r\nConnection: close\r\n\r\n";
+      assertTrue(sendRawRequestForStatus(service, String.format(request, service.getPort(), SaltService.MAXIMUM_BODY_SIZE + 1)).startsWith("HTTP/1.1 413"));
+
+      // Without a length, reading stops once the body is too large
+      char[] padding = new char[SaltService.MAXIMUM_BODY_SIZE];
+      Arrays.fill(padding, ' ');
+      String chunk = "{\"siteFile\": \"sites.csv\"" + new String(padding) + "}";
+      request = "POST " + SaltService.GENERATE_PROJECT_PATH + " HTTP/1.1\r\nHost: localhost:%d\r\n" +
+              SaltService.ACCESS_TOKEN_HEADER + ": " + service.getAccessToken() + "\r\nContent-Type: application/json\r\n" +
+              "Transfer-Encoding: chunked\r\nConnection: close\r\n\r\n%x\r\n%s\r\n0\r\n\r\n";
+      assertTrue(sendRawRequestForStatus(service, String.format(request, service.getPort(), chunk.length(), chunk)).startsWith("HTTP/1.1 413"));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  @Test
+  void handleJob_Rejected() throws Exception {
+    SaltService service = new SaltService(0, 1, 1);
+    service.start();
+    try {
+      // No access token
+      HttpURLConnection connection = sendRequest(service, SaltService.ADD_SITES_PATH, "POST", "{}", null, "application/json");
+      assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, connection.getResponseCode());
+      connection = sendRequest(service, SaltService.STATUS_PATH, "GET", null, "wrong", null);
+      assertEquals(HttpURLConnection.HTTP_UNAUTHORIZED, connection.getResponseCode());
+
+      // A cross-origin form or text/plain POST
+      connection = sendRequest(service, SaltService.ADD_SITES_PATH, "POST", "{}", service.getAccessToken(), "text/plain");
+      assertEquals(415, connection.getResponseCode());
+
+      // From a web page, or for another host name
+      String request = "POST /addSites HTTP/1.1\r\nHost: localhost:%d\r\nOrigin: http://example.com\r\n" +
+              SaltService.ACCESS_TOKEN_HEADER + ": " + service.getAccessToken() +
+              "\r\nContent-Type: application/json\r\nContent-Length: 2\r\nConnection: close\r\n\r\n{}";
+      assertTrue(sendRawRequest(service, String.format(request, service.getPort())).startsWith("HTTP/1.1 403"));
+      request = "GET /status HTTP/1.1\r\nHost: attacker.example.com:%d\r\n" +
+              SaltService.ACCESS_TOKEN_HEADER + ": " + service.getAccessToken() + "\r\nConnection: close\r\n\r\n";
+      assertTrue(sendRawRequest(service, String.format(request, service.getPort())).startsWith("HTTP/1.1 403"));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  @Test
+  void handleJob_OutsideBaseDirectory() throws Exception {
+    Path baseDirectory = TestProjects.createTemporaryDirectory();
+    Path otherDirectory = TestProjects.createTemporaryDirectory();
+    Files.write(baseDirectory.resolve("sites.csv"), "001,Test 1\r\n".getBytes(StandardCharsets.UTF_8));
+    Files.write(otherDirectory.resolve("sites.csv"), "001,Test 1\r\n".getBytes(StandardCharsets.UTF_8));
+
+    SaltService service = new SaltService(0, 1, 1);
+    service.setBaseDirectory(baseDirectory.toFile());
+    service.setMaximumThreads(2);
+    service.start();
+    try {
+      JSONObject job = new JSONObject();
+      job.put("projectName", "Test Project");
+      job.put("siteFile", otherDirectory.resolve("sites.csv").toString());
+      HttpURLConnection connection = sendRequest(service, SaltService.GENERATE_PROJECT_PATH, "POST", job.toString());
+      assertEquals(422, connection.getResponseCode());
+      assertTrue(readResponse(connection.getErrorStream()).contains("The siteFile must be inside the service's base directory"));
+
+      job.put("siteFile", "sites.csv");
+      job.put("archiveFile", "../salts.zip");
+      connection = sendRequest(service, SaltService.GENERATE_PROJECT_PATH, "POST", job.toString());
+      assertEquals(422, connection.getResponseCode());
+      assertTrue(readResponse(connection.getErrorStream()).contains("The archiveFile must be inside the service's base directory"));
+
+      job = new JSONObject();
+      job.put("projectName", "Test Project");
+      job.put("siteFile", "sites.csv");
+      job.put("threads", 3);
+      connection = sendRequest(service, SaltService.GENERATE_PROJECT_PATH, "POST", job.toString());
+      assertEquals(422, connection.getResponseCode());
+      assertTrue(readResponse(connection.getErrorStream()).contains("A job may use at most 2 threads, but 3 were requested."));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  @Test
+  void handleStatus() throws Exception {
+    SaltService service = new SaltService(0, 2, 5);
+    service.start();
+    try {
+      HttpURLConnection connection = sendRequest(service, SaltService.STATUS_PATH, "GET", null);
+      assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+      JSONObject status = new JSONObject(readResponse(connection.getInputStream()));
+      assertEquals(5, status.getInt("queueSize"));
+      assertEquals(0, status.getInt("runningJobs"));
+    }
+    finally {
+      service.stop();
+    }
+  }
+
+  private static HttpURLConnection sendRequest(SaltService service, String path, String method, String body) throws IOException {
+    return sendRequest(service, path, method, body, service.getAccessToken(), "application/json");
+  }
+
+  private static HttpURLConnection sendRequest(SaltService service, String path, String method, String body,
+                                               String accessToken, String contentType) throws IOException {
+    URL url = new URL(String.format("http://localhost:%d%s", service.getPort(), path));
+    HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+    connection.setRequestMethod(method);
+    if (accessToken != null) {
+      connection.setRequestProperty(SaltService.ACCESS_TOKEN_HEADER, accessToken);
+    }
+    if (contentType != null) {
+      connection.setRequestProperty("Content-Type", contentType);
+    }
+    if (body != null) {
+      connection.setDoOutput(true);
+      try (OutputStream stream = connection.getOutputStream()) {
+        stream.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return connection;
+  }
+
+  /**
+   * Send a request as written, since HttpURLConnection won't let us set the Host or Origin headers
+   * @return The whole response
+   */
+  private static String sendRawRequest(SaltService service, String request) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), service.getPort())) {
+      socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+      socket.getOutputStream().flush();
+      return readResponse(socket.getInputStream());
+    }
+  }
+
+  /**
+   * Send a request as written, and read only the status line of the response, since the body of the request may never
+   * be sent in full
+   */
+  private static String sendRawRequestForStatus(SaltService service, String request) throws IOException {
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), service.getPort())) {
+      socket.setSoTimeout(30000);
+      socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+      socket.getOutputStream().flush();
+      ByteArrayOutputStream statusLine = new ByteArrayOutputStream();
+      int next;
+      while ((next = socket.getInputStream().read()) != -1 && next != '\n') {
+        statusLine.write(next);
+      }
+      return new String(statusLine.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String readResponse(InputStream stream) throws IOException {
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = stream.read(buffer)) != -1) {
+      response.write(buffer, 0, length);
+    }
+    return new String(response.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,158 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardMergerTest {
+  private static final int SITE_COUNT = 40;
+
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private Path createProjectDirectory() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    StringBuilder sites = new StringBuilder();
+    for (int index = 1; index <= SITE_COUNT; index++) {
+      sites.append(String.format("S%03d,Site %d\r\n", index, index));
+    }
+    Files.write(directory.resolve("sites.csv"), sites.toString().getBytes(StandardCharsets.UTF_8));
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.createProjectTokenFile(directory.resolve("token.salt").toFile());
+    return directory;
+  }
+
+  private static void generateShard(Path directory, int index, int count) throws Exception {
+    SaltEngine engine = new SaltEngine();
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.setSaltFile(directory.resolve("token.salt").toFile());
+    engine.setShard(new Shard(index, count));
+    engine.generateShard();
+  }
+
+  private static ShardMerger createMerger(Path directory, int count) throws Exception {
+    ShardMerger merger = new ShardMerger();
+    merger.setSitesFile(directory.resolve("sites.csv").toFile());
+    merger.setTokenFile(directory.resolve("token.salt").toFile());
+    merger.setShardCount(count);
+    return merger;
+  }
+
+  @Test
+  void getShardIndex_Partition() throws Exception {
+    int[] counts = new int[4];
+    for (int index = 0; index < 1000; index++) {
+      String siteID = String.format("S%05d", index);
+      int shardIndex = Shard.getShardIndex(siteID, 4);
+      assertEquals(shardIndex, Shard.getShardIndex(siteID, 4));
+      counts[shardIndex]++;
+    }
+    for (int count : counts) {
+      assertTrue(count > 150);
+    }
+
+    assertThrows(LinkjaException.class, () -> new Shard(4, 4));
+    assertThrows(LinkjaException.class, () -> new Shard(0, 0));
+  }
+
+  @Test
+  void merge_ConcurrentShards() throws Exception {
+    Path directory = createProjectDirectory();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<?>> shards = new ArrayList<Future<?>>();
+      for (int index = 0; index < 3; index++) {
+        int shardIndex = index;
+        shards.add(executor.submit(() -> {
+          generateShard(directory, shardIndex, 3);
+          return null;
+        }));
+      }
+      for (Future<?> shard : shards) {
+        shard.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+
+    ShardMerger merger = createMerger(directory, 3);
+    merger.merge();
+    assertEquals(SITE_COUNT, merger.getSiteCount());
+    long total = 0;
+    for (long count : merger.getShardSiteCounts()) {
+      total += count;
+    }
+    assertEquals(SITE_COUNT, total);
+
+    // Every salt file shares the project token from the token file, and the merged project verifies
+    SaltFile token = new SaltFile();
+    token.load(directory.resolve("token.salt").toFile());
+    SaltFile first = new SaltFile();
+    first.load(directory.resolve(first.getSaltFileName("Test Project", "S001")).toFile());
+    assertEquals(token.getProjectSalt(), first.getProjectSalt());
+    try (OutputManifest manifest = OutputManifest.open(directory, "Test Project")) {
+      assertEquals(SITE_COUNT, manifest.getCommittedCount());
+    }
+
+    SaltFileVerifier verifier = new SaltFileVerifier();
+    verifier.setProjectDirectory(directory.toFile());
+    verifier.setProjectName("Test Project");
+    assertTrue(verifier.verify((result) -> {}).isValid());
+  }
+
+  @Test
+  void merge_MissingShard() throws Exception {
+    Path directory = createProjectDirectory();
+    generateShard(directory, 0, 3);
+    generateShard(directory, 1, 3);
+
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> createMerger(directory, 3).merge());
+    assertTrue(exception.getMessage().contains("There is no manifest for shard 2"));
+    assertTrue(exception.getMessage().contains("has no salt file"));
+    assertFalse(Files.exists(OutputManifest.getManifestPath(directory, "Test Project")));
+  }
+
+  @Test
+  void merge_WrongShard() throws Exception {
+    Path directory = createProjectDirectory();
+    generateShard(directory, 0, 2);
+    // Shard 1's manifest actually lists the sites of shard 0
+    Shard shard = new Shard(0, 2);
+    Files.copy(shard.getManifestPath(directory, "Test Project"), new Shard(1, 2).getManifestPath(directory, "Test Project"));
+
+    LinkjaException exception = assertThrows(LinkjaException.class, () -> createMerger(directory, 2).merge());
+    assertTrue(exception.getMessage().contains("was committed by both shard 0 and shard 1"));
+  }
+
+  @Test
+  void generate_RequiresTokenFile() throws Exception {
+    Path directory = createProjectDirectory();
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.setShard(new Shard(0, 2));
+    assertThrows(LinkjaException.class, engine::generate);
+    assertThrows(LinkjaException.class, engine::generateShard);
+
+    File tokenFile = directory.resolve("token.salt").toFile();
+    assertThrows(LinkjaException.class, () -> engine.createProjectTokenFile(tokenFile));
+  }
+}
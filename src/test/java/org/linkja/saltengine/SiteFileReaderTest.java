@@ -0,0 +1,116 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SiteFileReaderTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private static SiteFileReader reader(String contents) {
+    return new SiteFileReader(Channels.newChannel(new ByteArrayInputStream(contents.getBytes(StandardCharsets.UTF_8))),
+            true, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read every row, as "record number: field count: first field|second field"
+   */
+  private static List<String> readAll(SiteFileReader reader) throws IOException {
+    List<String> rows = new ArrayList<String>();
+    while (reader.next()) {
+      rows.add(String.format("%d:%d:%s|%s", reader.getRecordNumber(), reader.getFieldCount(), reader.get(0), reader.get(1)));
+    }
+    reader.close();
+    return rows;
+  }
+
+  @Test
+  void next_Simple() throws Exception {
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site 2"), readAll(reader("1,Site 1\n2,Site 2\n")));
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site 2"), readAll(reader("1,Site 1\r\n2,Site 2")));
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site 2"), readAll(reader("1,Site 1\r2,Site 2\r")));
+  }
+
+  @Test
+  void next_EmptyLinesAreNotCounted() throws Exception {
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site 2"), readAll(reader("\n\r\n1,Site 1\n\n\n2,Site 2\n\n")));
+    assertEquals(new ArrayList<String>(), readAll(reader("")));
+    assertEquals(new ArrayList<String>(), readAll(reader("\r\n\n")));
+  }
+
+  @Test
+  void next_QuotedFields() throws Exception {
+    assertEquals(Arrays.asList("1:2:1|Clinic, North Campus", "2:2:2|The \"Main\" Clinic", "3:2:3|Line 1\r\nLine 2", "4:2:4|"),
+            readAll(reader("\"1\",\"Clinic, North Campus\"\n2,\"The \"\"Main\"\" Clinic\"\n3,\"Line 1\r\nLine 2\"\n4,\"\"\n")));
+    // Whitespace after the closing quote is ignored, and a quote inside an unquoted field is kept as it is
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site \"2\""), readAll(reader("\"1\"  ,\"Site 1\" \n2,Site \"2\"")));
+  }
+
+  @Test
+  void next_KeepsSpacesAndAccents() throws Exception {
+    assertEquals(Arrays.asList("1:2: 1 | Cl\u00ednica "), readAll(reader(" 1 , Cl\u00ednica ")));
+  }
+
+  @Test
+  void next_FieldCount() throws Exception {
+    assertEquals(Arrays.asList("1:1:1|null", "2:3:2|Site 2", "3:3:3|", "4:2:|"),
+            readAll(reader("1\n2,Site 2,Extra\n3,,\n,\n")));
+  }
+
+  @Test
+  void next_LongField() throws Exception {
+    StringBuilder name = new StringBuilder();
+    while (name.length() < SiteFileReader.BUFFER_SIZE * 3) {
+      name.append("Affiliated Clinic ");
+    }
+    assertEquals(Arrays.asList("1:2:1|" + name, "2:2:2|Site 2"), readAll(reader("1,\"" + name + "\"\n2,Site 2\n")));
+  }
+
+  @Test
+  void next_InvalidQuotes() throws Exception {
+    SiteFileReader unterminated = reader("1,Site 1\n2,\"Site 2\n");
+    assertTrue(unterminated.next());
+    assertThrows(IOException.class, unterminated::next);
+
+    SiteFileReader textAfterQuote = reader("1,\"Site\" 1\n");
+    assertThrows(IOException.class, textAfterQuote::next);
+  }
+
+  @Test
+  void open_Compressed() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    File plain = directory.resolve("sites.csv").toFile();
+    File compressed = directory.resolve("sites.dat").toFile();
+    Files.write(plain.toPath(), "1,Site 1\n2,\"Site, 2\"\n".getBytes(StandardCharsets.UTF_8));
+    try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressed.toPath()))) {
+      Files.copy(plain.toPath(), output);
+    }
+
+    // Compression is recognised from the contents, not the file name
+    assertEquals(readAll(SiteFileReader.open(plain)), readAll(SiteFileReader.open(compressed)));
+    assertEquals(Arrays.asList("1:2:1|Site 1", "2:2:2|Site, 2"), readAll(SiteFileReader.open(compressed)));
+  }
+
+  @Test
+  void isStandardInput() {
+    assertTrue(SiteFileReader.isStandardInput(new File("-")));
+    assertFalse(SiteFileReader.isStandardInput(new File("sites.csv")));
+  }
+}
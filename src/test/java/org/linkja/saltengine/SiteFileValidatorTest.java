@@ -0,0 +1,96 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.SaltFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SiteFileValidatorTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  @Test
+  void validate_Valid() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File siteFile = Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()).toFile();
+    SiteFileValidator.Result result = new SiteFileValidator().validate(siteFile);
+    assertTrue(result.isValid());
+    assertEquals(3, result.getSiteCount());
+  }
+
+  @Test
+  void validate_CollectsEveryProblem() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    Path siteFile = directory.resolve("sites.csv");
+    Files.write(siteFile, ("001,Test 1\r\n" +
+            "002,Test 2,extra\r\n" +
+            ",Test 3\r\n" +
+            "004,\r\n" +
+            "001,Test 5\r\n" +
+            "006,Test 1\r\n" +
+            "007,Test 7\r\n").getBytes(StandardCharsets.UTF_8));
+    Files.write(directory.resolve(new SaltFile().getSaltFileName("Test Project", "007")), new byte[] { 1 });
+
+    SiteFileValidator validator = new SiteFileValidator();
+    validator.setProjectName("Test Project");
+    SiteFileValidator.Result result = validator.validate(siteFile.toFile());
+
+    assertFalse(result.isValid());
+    assertEquals(7, result.getSiteCount());
+    assertEquals(6, result.getProblemCount());
+    assertTrue(result.getProblems().get(0).startsWith("Row 2 has 3 columns"));
+    assertTrue(result.getProblems().get(1).startsWith("Row 3 has a blank site ID"));
+    assertTrue(result.getProblems().get(2).startsWith("Row 4 has a blank site name"));
+    assertEquals("Row 5 has the site ID '001', which was already used on row 1.", result.getProblems().get(3));
+    assertEquals("Row 6 has the site name 'Test 1', which was already used on row 1.", result.getProblems().get(4));
+    assertTrue(result.getProblems().get(5).startsWith("Row 7 is for the site '007', whose salt file"));
+  }
+
+  @Test
+  void validate_ExistingSaltFilesWhereWritten() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File siteFile = Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()).toFile();
+    Path projectDirectory = TestProjects.createTemporaryDirectory();
+    Path firstRoot = TestProjects.createTemporaryDirectory();
+    Path secondRoot = TestProjects.createTemporaryDirectory();
+    SaltFile saltFile = new SaltFile();
+    Files.write(projectDirectory.resolve(saltFile.getSaltFileName("Test Project", "002")), new byte[] { 1 });
+    Files.write(secondRoot.resolve(saltFile.getSaltFileName("Test Project", "003")), new byte[] { 1 });
+
+    // When adding sites, the salt files go to the project directory rather than next to the site file
+    SiteFileValidator validator = new SiteFileValidator();
+    validator.setProjectName("Test Project");
+    validator.setProjectDirectory(projectDirectory.toFile());
+    SiteFileValidator.Result result = validator.validate(siteFile);
+    assertEquals(1, result.getProblemCount());
+    assertTrue(result.getProblems().get(0).startsWith("Row 2 is for the site '002', whose salt file"));
+
+    // With output roots, a salt file could be in any of them
+    validator.setOutputRoots(Arrays.asList(firstRoot.toFile(), secondRoot.toFile()));
+    result = validator.validate(siteFile);
+    assertEquals(1, result.getProblemCount());
+    assertTrue(result.getProblems().get(0).startsWith("Row 3 is for the site '003', whose salt file"));
+  }
+
+  @Test
+  void validate_EmptyOrMissing() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    File siteFile = Paths.get(classLoader.getResource("empty-sites-file.csv").toURI()).toFile();
+    SiteFileValidator.Result result = new SiteFileValidator().validate(siteFile);
+    assertFalse(result.isValid());
+    assertEquals(1, result.getProblemCount());
+
+    assertThrows(FileNotFoundException.class, () -> new SiteFileValidator().validate(new File("/not/a/real/file.csv")));
+  }
+}
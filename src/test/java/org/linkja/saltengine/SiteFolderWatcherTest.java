@@ -0,0 +1,207 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SiteFolderWatcherTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private static Path getSaltFile(Path projectDirectory, String siteID) {
+    return projectDirectory.resolve(new SaltFile().getSaltFileName("Test Project", siteID));
+  }
+
+  private static void writeSiteFile(Path file, String sites) throws Exception {
+    Files.write(file, sites.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Write a site file into a folder that is being watched, under another name first, so the watcher never sees it
+   * half written
+   */
+  private static void dropSiteFile(Path file, String sites) throws Exception {
+    Path partFile = file.resolveSibling(file.getFileName().toString() + ".part");
+    writeSiteFile(partFile, sites);
+    Files.move(partFile, file, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Test
+  void processWaitingFiles_Batch() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    writeSiteFile(watchFolder.resolve("a.csv"), "004,Test 4\r\n");
+    writeSiteFile(watchFolder.resolve("b.csv"), "005,Test 5\r\n006,Test 6\r\n");
+    // Uses the name of a site that is already in the project
+    writeSiteFile(watchFolder.resolve("c.csv"), "007,Test 7\r\n008,Test 1\r\n");
+    writeSiteFile(watchFolder.resolve("d.csv"), "not a valid site file");
+    writeSiteFile(watchFolder.resolve("e.csv.part"), "009,Test 9\r\n");
+
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    List<Path> done = new ArrayList<Path>();
+    List<Path> failed = new ArrayList<Path>();
+    watcher.setBatchListener((doneFiles, failedFiles) -> {
+      done.addAll(doneFiles);
+      failed.addAll(failedFiles.keySet());
+    });
+    Files.createDirectories(watchFolder.resolve(SiteFolderWatcher.DONE_FOLDER));
+    Files.createDirectories(watchFolder.resolve(SiteFolderWatcher.FAILED_FOLDER));
+    watcher.processWaitingFiles();
+
+    assertEquals(1, watcher.getBatchCount());
+    assertEquals(2, done.size());
+    assertEquals(2, failed.size());
+    for (String siteID : new String[] { "004", "005", "006" }) {
+      assertTrue(Files.exists(getSaltFile(projectDirectory, siteID)));
+    }
+    assertFalse(Files.exists(getSaltFile(projectDirectory, "007")));
+    assertTrue(Files.exists(watchFolder.resolve(SiteFolderWatcher.DONE_FOLDER).resolve("a.csv")));
+    assertTrue(Files.exists(watchFolder.resolve(SiteFolderWatcher.FAILED_FOLDER).resolve("c.csv")));
+    String error = new String(Files.readAllBytes(watchFolder.resolve(SiteFolderWatcher.FAILED_FOLDER).resolve("c.csv" + SiteFolderWatcher.ERROR_FILE_SUFFIX)), StandardCharsets.UTF_8);
+    assertTrue(error.contains("The site name 'Test 1' is already used in the project"));
+    assertTrue(Files.exists(watchFolder.resolve("e.csv.part")));
+  }
+
+  @Test
+  void start_PicksUpNewFiles() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    watcher.setQuietPeriodMillis(100);
+    CountDownLatch batchFinished = new CountDownLatch(1);
+    watcher.setBatchListener((doneFiles, failedFiles) -> batchFinished.countDown());
+    watcher.start();
+    try {
+      dropSiteFile(watchFolder.resolve("new.csv"), "004,Test 4\r\n");
+      assertTrue(batchFinished.await(30, TimeUnit.SECONDS));
+      assertTrue(Files.exists(getSaltFile(projectDirectory, "004")));
+      assertTrue(Files.exists(watchFolder.resolve(SiteFolderWatcher.DONE_FOLDER).resolve("new.csv")));
+    }
+    finally {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  void start_KeepsRunningAfterFailedBatch() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    writeSiteFile(watchFolder.resolve("first.csv"), "004,Test 4\r\n");
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    watcher.setQuietPeriodMillis(100);
+    List<Exception> problems = new ArrayList<Exception>();
+    CountDownLatch firstBatch = new CountDownLatch(1);
+    CountDownLatch secondBatch = new CountDownLatch(1);
+    watcher.setBatchListener(new SiteFolderWatcher.BatchListener() {
+      @Override
+      public void batchFinished(List<Path> doneFiles, Map<Path, String> failedFiles) {
+        if (doneFiles.get(0).getFileName().toString().equals("first.csv")) {
+          throw new IllegalStateException("Listener failed");
+        }
+        secondBatch.countDown();
+      }
+
+      @Override
+      public void batchFailed(Exception problem) {
+        problems.add(problem);
+        firstBatch.countDown();
+      }
+    });
+    watcher.start();
+    try {
+      // The first batch fails in the listener, but the watcher still picks up the next file
+      assertTrue(firstBatch.await(30, TimeUnit.SECONDS));
+      dropSiteFile(watchFolder.resolve("second.csv"), "005,Test 5\r\n");
+      assertTrue(secondBatch.await(30, TimeUnit.SECONDS));
+      assertEquals(1, problems.size());
+      assertEquals("Listener failed", problems.get(0).getMessage());
+      assertTrue(Files.exists(getSaltFile(projectDirectory, "005")));
+    }
+    finally {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  void start_ThreadEndsUnexpectedly() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    writeSiteFile(watchFolder.resolve("first.csv"), "004,Test 4\r\n");
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    watcher.setBatchListener((doneFiles, failedFiles) -> { throw new NoClassDefFoundError("Listener failed"); });
+    watcher.start();
+    try {
+      // An Error ends the watch thread, but doesn't leave awaitStop waiting forever
+      assertTimeoutPreemptively(Duration.ofSeconds(30), watcher::awaitStop);
+    }
+    finally {
+      watcher.stop();
+    }
+  }
+
+  @Test
+  void processWaitingFiles_MoveFails() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    writeSiteFile(watchFolder.resolve("a.csv"), "004,Test 4\r\n");
+
+    // Without a done folder, the file can't be moved
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    List<Path> unmoved = new ArrayList<Path>();
+    watcher.setBatchListener(new SiteFolderWatcher.BatchListener() {
+      @Override
+      public void batchFinished(List<Path> doneFiles, Map<Path, String> failedFiles) {
+      }
+
+      @Override
+      public void moveFailed(Path file, String problem) {
+        unmoved.add(file);
+      }
+    });
+    watcher.processWaitingFiles();
+    assertEquals(1, watcher.getBatchCount());
+    assertEquals(1, unmoved.size());
+    assertTrue(Files.exists(watchFolder.resolve("a.csv")));
+    assertTrue(Files.exists(getSaltFile(projectDirectory, "004")));
+
+    // The file isn't picked up again until it changes
+    watcher.processWaitingFiles();
+    assertEquals(1, watcher.getBatchCount());
+    Files.setLastModifiedTime(watchFolder.resolve("a.csv"), FileTime.fromMillis(System.currentTimeMillis() + 60000));
+    watcher.processWaitingFiles();
+    assertEquals(2, watcher.getBatchCount());
+  }
+
+  @Test
+  void processWaitingFiles_SkipsProjectFiles() throws Exception {
+    Path projectDirectory = TestProjects.generateProject("Test Project");
+    Path watchFolder = TestProjects.createTemporaryDirectory();
+    Files.copy(OutputManifest.getManifestPath(projectDirectory, "Test Project"),
+            OutputManifest.getManifestPath(watchFolder, "Test Project"));
+    writeSiteFile(OutputManifest.getLocationIndexPath(watchFolder, "Test Project"), "001,001.txt\r\n");
+
+    SiteFolderWatcher watcher = new SiteFolderWatcher(watchFolder.toFile(), getSaltFile(projectDirectory, "001").toFile());
+    watcher.processWaitingFiles();
+    assertEquals(0, watcher.getBatchCount());
+
+    assertThrows(LinkjaException.class, () -> watcher.setProjectDirectory(watchFolder.toFile()));
+    assertThrows(LinkjaException.class, () -> new SiteFolderWatcher(projectDirectory.toFile(), getSaltFile(projectDirectory, "001").toFile()));
+  }
+}
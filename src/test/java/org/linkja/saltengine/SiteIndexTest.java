@@ -0,0 +1,132 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+import org.linkja.core.Site;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SiteIndexTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  @Test
+  void add_Lookup() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      index.add(new Site("001", "Test 1"));
+      index.add(new Site("001", "Test 1"));
+      assertEquals(1, index.size());
+      assertTrue(index.mayContainID("001"));
+      assertTrue(index.mayContainName("Test 1"));
+      assertFalse(index.mayContainID("Test 1"));
+      assertFalse(index.mayContainName("002"));
+    }
+  }
+
+  @Test
+  void add_ResizeAndReopen() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      for (int siteNumber = 0; siteNumber < 5000; siteNumber++) {
+        index.add(new Site(String.format("S%05d", siteNumber), String.format("Site %d", siteNumber)));
+      }
+    }
+
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      assertEquals(5000, index.size());
+      for (int siteNumber = 0; siteNumber < 5000; siteNumber++) {
+        assertTrue(index.mayContainID(String.format("S%05d", siteNumber)));
+        assertTrue(index.mayContainName(String.format("Site %d", siteNumber)));
+      }
+      assertFalse(index.mayContainID("S05000"));
+    }
+  }
+
+  @Test
+  void findSiteIDs() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      for (int siteNumber = 0; siteNumber < 2000; siteNumber++) {
+        index.add(new Site(String.format("S%05d", siteNumber), String.format("Site %d", siteNumber)));
+      }
+    }
+
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      assertEquals(Arrays.asList("S01234"), index.findSiteIDs("Site 1234", Arrays.asList("S00001", "S01234", "S01999")));
+      assertTrue(index.findSiteIDs("Site 1234", Arrays.asList("S00001", "S01999")).isEmpty());
+      assertTrue(index.findSiteIDs("Site 2000", Arrays.asList("S01234", "S02000")).isEmpty());
+    }
+  }
+
+  @Test
+  void open_Invalid() throws Exception {
+    Path directory = TestProjects.createTemporaryDirectory();
+    Files.write(SiteIndex.getIndexPath(directory, "Test Project"), "not an index".getBytes(StandardCharsets.UTF_8));
+    assertThrows(IOException.class, () -> SiteIndex.open(directory, "Test Project"));
+  }
+
+  private static SaltEngine createAddSitesEngine(Path directory, Path sitesDirectory, String sites) throws Exception {
+    Files.write(sitesDirectory.resolve("new-sites.csv"), sites.getBytes(StandardCharsets.UTF_8));
+    SaltEngine engine = new SaltEngine();
+    engine.setSitesFile(sitesDirectory.resolve("new-sites.csv").toFile());
+    engine.setSaltFile(directory.resolve(new SaltFile().getSaltFileName("Test Project", "001")).toFile());
+    return engine;
+  }
+
+  private static SaltEngine createAddSitesEngine(Path directory, String sites) throws Exception {
+    return createAddSitesEngine(directory, directory, sites);
+  }
+
+  @Test
+  void addSites_Collisions() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    // An index left over from before is rebuilt from the salt files
+    Files.write(SiteIndex.getIndexPath(directory, "Test Project"), "not an index".getBytes(StandardCharsets.UTF_8));
+
+    LinkjaException exception = assertThrows(LinkjaException.class,
+            () -> createAddSitesEngine(directory, "004,Test 4\r\n002,Other 2\r\n").addSites());
+    assertTrue(exception.getMessage().contains("The site ID '002' is already used in the project"));
+    // No salt files are created for any of the sites
+    assertFalse(Files.exists(directory.resolve(new SaltFile().getSaltFileName("Test Project", "004"))));
+
+    exception = assertThrows(LinkjaException.class,
+            () -> createAddSitesEngine(directory, "004,Test 4\r\n005,Test 3\r\n").addSites());
+    assertTrue(exception.getMessage().contains("The site name 'Test 3' is already used in the project, by the site '003'"));
+
+    // Sites that are already in the project with the same name are allowed, and skipped
+    SaltEngine engine = createAddSitesEngine(directory, "003,Test 3\r\n004,Test 4\r\n");
+    engine.addSites();
+    assertTrue(Files.exists(directory.resolve(new SaltFile().getSaltFileName("Test Project", "004"))));
+    try (SiteIndex index = SiteIndex.open(directory, "Test Project")) {
+      assertEquals(4, index.size());
+      assertTrue(index.mayContainName("Test 4"));
+    }
+  }
+
+  @Test
+  void addSites_SiteFileElsewhere() throws Exception {
+    Path directory = TestProjects.generateProject("Test Project");
+    Path sitesDirectory = TestProjects.createTemporaryDirectory();
+
+    // The project is found from the salt file, so the collision is still caught
+    LinkjaException exception = assertThrows(LinkjaException.class,
+            () -> createAddSitesEngine(directory, sitesDirectory, "004,Test 4\r\n005,Test 3\r\n").addSites());
+    assertTrue(exception.getMessage().contains("The site name 'Test 3' is already used in the project, by the site '003'"));
+
+    createAddSitesEngine(directory, sitesDirectory, "004,Test 4\r\n").addSites();
+    assertTrue(Files.exists(directory.resolve(new SaltFile().getSaltFileName("Test Project", "004"))));
+    assertFalse(Files.exists(SiteIndex.getIndexPath(sitesDirectory, "Test Project")));
+    assertFalse(Files.exists(OutputManifest.getManifestPath(sitesDirectory, "Test Project")));
+  }
+}
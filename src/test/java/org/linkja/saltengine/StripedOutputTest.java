@@ -0,0 +1,204 @@
+package org.linkja.saltengine;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+import org.linkja.core.SaltFile;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripedOutputTest {
+  @AfterEach
+  void deleteTemporaryDirectories() {
+    TestProjects.deleteTemporaryDirectories();
+  }
+
+  private static List<Path> createRoots(int count) throws Exception {
+    List<Path> roots = new ArrayList<Path>();
+    for (int index = 0; index < count; index++) {
+      roots.add(TestProjects.createTemporaryDirectory().toAbsolutePath());
+    }
+    return roots;
+  }
+
+  private static void stageAndCommit(StripedOutput output, String fileName) throws Exception {
+    Path stagedFile = output.getStagingPath(fileName);
+    Files.write(stagedFile, fileName.getBytes(StandardCharsets.UTF_8));
+    output.commit(stagedFile, fileName);
+  }
+
+  @Test
+  void commit_RoundRobin() throws Exception {
+    List<Path> roots = createRoots(3);
+    StripedOutput output = new StripedOutput(roots, StripedOutput.Striping.ROUND_ROBIN);
+    for (int fileNumber = 0; fileNumber < 6; fileNumber++) {
+      stageAndCommit(output, String.format("file-%d.txt", fileNumber));
+    }
+
+    for (Path root : roots) {
+      assertEquals(2, root.toFile().list().length);
+    }
+    assertEquals(roots.get(1).resolve("file-4.txt"), output.findCommitted("file-4.txt"));
+    assertNull(output.findCommitted("file-6.txt"));
+  }
+
+  @Test
+  void commit_Hash() throws Exception {
+    List<Path> roots = createRoots(3);
+    StripedOutput output = new StripedOutput(roots, StripedOutput.Striping.HASH);
+    for (int fileNumber = 0; fileNumber < 30; fileNumber++) {
+      stageAndCommit(output, String.format("file-%d.txt", fileNumber));
+    }
+
+    // A new output for the same roots finds every file where the hash puts it
+    StripedOutput reopened = new StripedOutput(roots, StripedOutput.Striping.HASH);
+    for (int fileNumber = 0; fileNumber < 30; fileNumber++) {
+      String fileName = String.format("file-%d.txt", fileNumber);
+      assertEquals(output.findCommitted(fileName), reopened.findCommitted(fileName));
+      assertEquals(reopened.findCommitted(fileName).getParent(), reopened.getStagingPath(fileName).getParent());
+    }
+  }
+
+  @Test
+  void commit_ReplacesInPlace() throws Exception {
+    List<Path> roots = createRoots(2);
+    Files.write(roots.get(1).resolve("file-0.txt"), "old".getBytes(StandardCharsets.UTF_8));
+
+    // Round robin would start with the first root, but the existing file is replaced where it is
+    StripedOutput output = new StripedOutput(roots, StripedOutput.Striping.ROUND_ROBIN);
+    stageAndCommit(output, "file-0.txt");
+    assertFalse(Files.exists(roots.get(0).resolve("file-0.txt")));
+    assertEquals("file-0.txt", new String(Files.readAllBytes(roots.get(1).resolve("file-0.txt")), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void commit_NotStaged() throws Exception {
+    StripedOutput output = new StripedOutput(createRoots(2), StripedOutput.Striping.HASH);
+    assertThrows(IOException.class, () -> output.commit(Paths.get("missing.tmp"), "missing.txt"));
+
+    // The assigned root is forgotten once the salt file is committed, but the file is still found
+    stageAndCommit(output, "file-0.txt");
+    assertThrows(IOException.class, () -> output.commit(Paths.get("file-0.tmp"), "file-0.txt"));
+    assertNotNull(output.findCommitted("file-0.txt"));
+  }
+
+  private static Map<String, String> readLocationIndex(Path indexFile) throws Exception {
+    Map<String, String> locations = new HashMap<String, String>();
+    try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+         CSVParser parser = CSVParser.parse(reader, CSVFormat.DEFAULT)) {
+      for (CSVRecord record : parser) {
+        if (record.getRecordNumber() > 1) {
+          locations.put(record.get(0), record.get(1));
+        }
+      }
+    }
+    return locations;
+  }
+
+  @Test
+  void generate_OutputRoots() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path directory = TestProjects.createTemporaryDirectory();
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), directory.resolve("sites.csv"));
+    List<Path> roots = createRoots(2);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.setOutputRoots(Arrays.asList(roots.get(0).toFile(), roots.get(1).toFile()));
+    engine.setStriping("roundRobin");
+    engine.generate();
+
+    SaltFile saltFile = new SaltFile();
+    Path indexFile = OutputManifest.getLocationIndexPath(directory, "Test Project");
+    Map<String, String> locations = readLocationIndex(indexFile);
+    assertEquals(3, locations.size());
+    for (String siteID : new String[] { "001", "002", "003" }) {
+      String fileName = saltFile.getSaltFileName("Test Project", siteID);
+      assertFalse(Files.exists(directory.resolve(fileName)));
+      assertTrue(Files.exists(Paths.get(locations.get(siteID))));
+      assertEquals(fileName, Paths.get(locations.get(siteID)).getFileName().toString());
+    }
+    assertEquals(3, roots.get(0).toFile().list().length + roots.get(1).toFile().list().length);
+
+    // Adding a site finds the project's salt files in the roots, and adds the new site to the index.  The salt file
+    // isn't next to the manifest, so the project directory has to be given.
+    Files.write(directory.resolve("new-sites.csv"), "003,Test 3\r\n004,Test 4\r\n".getBytes(StandardCharsets.UTF_8));
+    SaltEngine addEngine = new SaltEngine();
+    addEngine.setSitesFile(directory.resolve("new-sites.csv").toFile());
+    addEngine.setSaltFile(new File(locations.get("001")));
+    addEngine.setOutputRoots(Arrays.asList(roots.get(0).toFile(), roots.get(1).toFile()));
+    assertThrows(LinkjaException.class, () -> addEngine.addSites());
+    addEngine.setProjectDirectory(directory.toFile());
+    addEngine.addSites();
+
+    Map<String, String> newLocations = readLocationIndex(indexFile);
+    assertEquals(4, newLocations.size());
+    assertEquals(locations.get("003"), newLocations.get("003"));
+    assertTrue(Files.exists(Paths.get(newLocations.get("004"))));
+  }
+
+  @Test
+  void generate_OutputRootsVerifyAndRotate() throws Exception {
+    ClassLoader classLoader = getClass().getClassLoader();
+    Path directory = TestProjects.createTemporaryDirectory();
+    Files.copy(Paths.get(classLoader.getResource("valid-sites-file.csv").toURI()), directory.resolve("sites.csv"));
+    List<Path> roots = createRoots(2);
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.setOutputRoots(Arrays.asList(roots.get(0).toFile(), roots.get(1).toFile()));
+    engine.generate();
+
+    // Verifying follows the location index to the salt files in the roots
+    SaltFileVerifier verifier = new SaltFileVerifier();
+    verifier.setProjectDirectory(directory.toFile());
+    verifier.setProjectName("Test Project");
+    List<String> fileNames = new ArrayList<String>();
+    SaltFileVerifier.Summary summary = verifier.verify(result -> fileNames.add(result.getFileName()));
+    assertEquals(3, summary.getFilesChecked());
+    assertTrue(summary.isValid());
+    assertEquals(new SaltFile().getSaltFileName("Test Project", "001"), fileNames.get(0));
+
+    // Rotating can't swap the salt files in place, so it is refused before anything is written
+    SaltEngine rotateEngine = new SaltEngine();
+    rotateEngine.setProjectName("Test Project");
+    rotateEngine.setProjectDirectory(directory.toFile());
+    LinkjaException exception = assertThrows(LinkjaException.class, rotateEngine::rotateProject);
+    assertTrue(exception.getMessage().contains("spread across several output directories"));
+  }
+
+  @Test
+  void generate_OutputRootsWithArchive() throws Exception {
+    SaltEngine engine = new SaltEngine();
+    engine.setOutputRoots(Arrays.asList(createRoots(1).get(0).toFile()));
+    engine.setArchiveFile("test.zip");
+    engine.setProjectName("Test Project");
+    engine.setSitesFile(new File(getClass().getClassLoader().getResource("valid-sites-file.csv").toURI()));
+    assertThrows(LinkjaException.class, () -> engine.generate());
+    // The settings are rejected before the archive is locked
+    assertFalse(Files.exists(ProjectLock.getLockPath(Paths.get("test.zip"))));
+  }
+
+  @Test
+  void setStriping_Invalid() {
+    assertThrows(LinkjaException.class, () -> new SaltEngine().setStriping("random"));
+  }
+}
@@ -0,0 +1,67 @@
+package org.linkja.saltengine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Creates the projects that tests work with
+ */
+final class TestProjects {
+  private static final List<Path> temporaryDirectories = Collections.synchronizedList(new ArrayList<Path>());
+
+  private TestProjects() {
+  }
+
+  /**
+   * Create a temporary directory, which is deleted by deleteTemporaryDirectories
+   * @return The new directory
+   * @throws IOException
+   */
+  static Path createTemporaryDirectory() throws IOException {
+    Path directory = Files.createTempDirectory("saltengine");
+    temporaryDirectories.add(directory);
+    return directory;
+  }
+
+  /**
+   * Delete every temporary directory created so far, and everything in them.  Test classes call this after each test.
+   */
+  static void deleteTemporaryDirectories() {
+    synchronized (temporaryDirectories) {
+      for (Path directory : temporaryDirectories) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+          paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        catch (IOException exc) {
+          // Anything left behind is still in the system's temporary directory
+        }
+      }
+      temporaryDirectories.clear();
+    }
+  }
+
+  /**
+   * Generate a project for the sites in valid-sites-file.csv (001 to 003) in a new temporary directory
+   * @param projectName The name of the project
+   * @return The directory, which holds the site file (sites.csv) and everything generated from it
+   * @throws Exception
+   */
+  static Path generateProject(String projectName) throws Exception {
+    Path directory = createTemporaryDirectory();
+    Files.copy(Paths.get(TestProjects.class.getClassLoader().getResource("valid-sites-file.csv").toURI()),
+            directory.resolve("sites.csv"));
+
+    SaltEngine engine = new SaltEngine();
+    engine.setProjectName(projectName);
+    engine.setSitesFile(directory.resolve("sites.csv").toFile());
+    engine.generate();
+    return directory;
+  }
+}
@@ -0,0 +1,78 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBufferPoolTest {
+  private static final char[] TOKEN = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef".toCharArray();
+
+  @Test
+  void acquire_ReusesClosedBuffers() {
+    TokenBufferPool pool = new TokenBufferPool();
+    TokenBuffer first = pool.acquire(TOKEN.length);
+    first.fill(TOKEN, 0, TOKEN.length);
+    first.close();
+    assertEquals(1, pool.getPooledCount());
+
+    TokenBuffer second = pool.acquire(TOKEN.length);
+    assertSame(first, second);
+    assertEquals(0, second.length());
+    assertEquals(1, pool.getAllocatedCount());
+    assertEquals(0, pool.getPooledCount());
+  }
+
+  @Test
+  void acquire_LargerThanPooled() {
+    TokenBufferPool pool = new TokenBufferPool();
+    pool.acquire(TokenBufferPool.MINIMUM_CAPACITY).close();
+
+    TokenBuffer buffer = pool.acquire(TokenBufferPool.MINIMUM_CAPACITY * 4);
+    assertEquals(TokenBufferPool.MINIMUM_CAPACITY * 4, buffer.capacity());
+    assertEquals(2, pool.getAllocatedCount());
+  }
+
+  @Test
+  void release_LimitsPooledBuffers() {
+    TokenBufferPool pool = new TokenBufferPool(2);
+    TokenBuffer[] buffers = { pool.acquire(8), pool.acquire(8), pool.acquire(8) };
+    for (TokenBuffer buffer : buffers) {
+      buffer.close();
+    }
+    assertEquals(2, pool.getPooledCount());
+  }
+
+  @Test
+  void close_WipesToken() {
+    TokenBufferPool pool = new TokenBufferPool();
+    TokenBuffer buffer = pool.acquire(TOKEN.length);
+    buffer.fill(TOKEN, 0, TOKEN.length);
+    assertEquals(new String(TOKEN), buffer.toSaltString());
+    assertEquals('0', buffer.charAt(0));
+
+    buffer.close();
+    assertEquals(0, buffer.length());
+    assertThrows(IndexOutOfBoundsException.class, () -> buffer.charAt(0));
+    assertThrows(IllegalStateException.class, buffer::toSaltString);
+
+    // Closing again must not put the same buffer in the pool twice
+    buffer.close();
+    assertEquals(1, pool.getPooledCount());
+  }
+
+  @Test
+  void fill_ShorterToken() {
+    TokenBuffer buffer = new TokenBuffer(TOKEN.length);
+    buffer.fill(TOKEN, 0, TOKEN.length);
+    buffer.fill(TOKEN, 10, 4);
+    assertEquals("abcd", buffer.toSaltString());
+    assertThrows(IllegalArgumentException.class, () -> buffer.fill(new char[TOKEN.length + 1], 0, TOKEN.length + 1));
+  }
+
+  @Test
+  void toString_HidesToken() {
+    TokenBuffer buffer = new TokenBuffer(TOKEN.length);
+    buffer.fill(TOKEN, 0, TOKEN.length);
+    assertEquals("TokenBuffer[64 characters]", buffer.toString());
+  }
+}
@@ -0,0 +1,158 @@
+package org.linkja.saltengine;
+
+import org.junit.jupiter.api.Test;
+import org.linkja.core.LinkjaException;
+
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenSourceTest {
+  @Test
+  void generateToken_Format() {
+    TokenSource source = new SecureRandomTokenSource();
+    for (int tokenLength : new int[] { SaltEngine.MINIMUM_TOKEN_LENGTH, 37, SaltEngine.MAXIMUM_TOKEN_LENGTH }) {
+      String token = source.generateToken(tokenLength);
+      assertEquals(tokenLength * 2, token.length());
+      assertTrue(token.matches("[0-9a-f]+"));
+    }
+    assertNotEquals(source.generateToken(SaltEngine.DEFAULT_TOKEN_LENGTH), source.generateToken(SaltEngine.DEFAULT_TOKEN_LENGTH));
+  }
+
+  @Test
+  void generateToken_IntoArray() {
+    char[] destination = new char[8 + SaltEngine.MINIMUM_TOKEN_LENGTH * 2];
+    Arrays.fill(destination, '-');
+    new SecureRandomTokenSource().generateToken(SaltEngine.MINIMUM_TOKEN_LENGTH, destination, 4);
+    String result = new String(destination);
+    assertTrue(result.startsWith("----"));
+    assertTrue(result.endsWith("----"));
+    assertTrue(result.substring(4, result.length() - 4).matches("[0-9a-f]+"));
+  }
+
+  @Test
+  void generateToken_ManyThreads() throws Exception {
+    TokenSource source = new SecureRandomTokenSource();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+      for (int thread = 0; thread < 8; thread++) {
+        results.add(executor.submit(() -> {
+          List<String> tokens = new ArrayList<String>();
+          for (int index = 0; index < 500; index++) {
+            tokens.add(source.generateToken(SaltEngine.MINIMUM_TOKEN_LENGTH));
+          }
+          return tokens;
+        }));
+      }
+
+      Set<String> tokens = new HashSet<String>();
+      for (Future<List<String>> result : results) {
+        tokens.addAll(result.get());
+      }
+      assertEquals(8 * 500, tokens.size());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void create_ByName() throws LinkjaException {
+    assertEquals(TokenSource.JAVA, TokenSource.create("java").getName());
+    assertEquals(TokenSource.NATIVE, TokenSource.create("Native").getName());
+    assertThrows(LinkjaException.class, () -> TokenSource.create("other"));
+  }
+
+  @Test
+  void tokenPool_RequestsWithinMaximum() {
+    // Records each length that is requested, and fills the token with a different letter for each request
+    List<Integer> requestedLengths = new ArrayList<Integer>();
+    TokenSource source = new TokenSource() {
+      @Override
+      public String getName() {
+        return "test";
+      }
+
+      @Override
+      public String generateToken(int tokenLength) {
+        char[] token = new char[tokenLength * 2];
+        Arrays.fill(token, (char)('a' + requestedLengths.size()));
+        requestedLengths.add(tokenLength);
+        return new String(token);
+      }
+    };
+
+    TokenPool pool = new TokenPool(source, 2 * SaltEngine.MAXIMUM_TOKEN_LENGTH + 100);
+    String first = pool.nextToken(SaltEngine.MAXIMUM_TOKEN_LENGTH);
+    String second = pool.nextToken(SaltEngine.MAXIMUM_TOKEN_LENGTH);
+    String third = pool.nextToken(100);
+    assertEquals(Arrays.asList(SaltEngine.MAXIMUM_TOKEN_LENGTH, SaltEngine.MAXIMUM_TOKEN_LENGTH, 100), requestedLengths);
+    assertTrue(first.matches("a+"));
+    assertTrue(second.matches("b+"));
+    assertTrue(third.matches("c+"));
+  }
+
+  @Test
+  void generateTokenBuffer_PoolPerThread() throws Exception {
+    // Each refill waits until another thread is refilling too, which can only happen if the threads don't share a pool
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    TokenSource source = new TokenSource() {
+      @Override
+      public String getName() {
+        return "test";
+      }
+
+      @Override
+      public String generateToken(int tokenLength) {
+        try {
+          barrier.await(10, TimeUnit.SECONDS);
+        }
+        catch (Exception e) {
+          throw new IllegalStateException("The other thread did not refill at the same time", e);
+        }
+        char[] token = new char[tokenLength * 2];
+        Arrays.fill(token, 'a');
+        return new String(token);
+      }
+    };
+
+    SaltEngine engine = new SaltEngine();
+    engine.setTokenSource(source);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<?>> results = new ArrayList<Future<?>>();
+      for (int thread = 0; thread < 2; thread++) {
+        results.add(executor.submit(() -> {
+          engine.generateTokenBuffer(SaltEngine.DEFAULT_TOKEN_LENGTH).close();
+          return null;
+        }));
+      }
+      for (Future<?> result : results) {
+        result.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void tokenPool_JavaSource() throws LinkjaException {
+    SaltEngine engine = new SaltEngine();
+    engine.setTokenSource(TokenSource.JAVA);
+    List<String> tokens = engine.generateTokens(100, SaltEngine.DEFAULT_TOKEN_LENGTH);
+    assertEquals(100, new HashSet<String>(tokens).size());
+    for (String token : tokens) {
+      assertEquals(SaltEngine.DEFAULT_TOKEN_LENGTH * 2, token.length());
+    }
+    try (TokenBuffer buffer = engine.generateTokenBuffer(SaltEngine.DEFAULT_TOKEN_LENGTH)) {
+      assertEquals(SaltEngine.DEFAULT_TOKEN_LENGTH * 2, buffer.length());
+    }
+  }
+}